@@ -0,0 +1,441 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.math.*;
+
+/**
+ * Elementary functions of BigDecimals, correct to the requested number of significant digits (give or take an ulp).
+ *
+ * Each function works with a few guard digits and rounds at the end.
+ * Square and cube roots use Newton's method on BigIntegers; logarithms use the arithmetic-geometric mean;
+ * exp, the trigonometric functions, and atan use Taylor series after reducing their argument.
+ * The constants they need come from MathConstants.
+ *
+ * Arguments outside a function's domain cause an ArithmeticException; callers fall back to machine precision,
+ * which gives the usual NaN or infinity.
+ */
+final class BigRealMath {
+    // Enough extra digits to absorb the rounding errors of a few dozen operations.
+    private static final int GUARD_DIGITS = 10;
+
+    // exp(n) for larger n wouldn't fit in a BigDecimal's exponent.
+    private static final long MAX_EXP_ARGUMENT = 1000000000L;
+
+    // Reducing a trigonometric argument needs pi to as many extra digits as the argument has before its decimal point.
+    private static final int MAX_TRIGONOMETRIC_MAGNITUDE = 100000;
+
+    private static final BigDecimal TWO = BigDecimal.valueOf(2);
+    private static final BigDecimal FOUR = BigDecimal.valueOf(4);
+
+    private BigRealMath() {
+    }
+
+    private static MathContext guarded(MathContext mc, int extraDigits) {
+        return new MathContext(mc.getPrecision() + extraDigits, RoundingMode.HALF_EVEN);
+    }
+
+    // Returns the number of bits of precision corresponding to mc's number of digits.
+    private static int bits(MathContext mc) {
+        return (int) Math.ceil(mc.getPrecision() * 3.3219280948873626) + 1;
+    }
+
+    // Returns the number of decimal digits in |n|.
+    private static int digits(long n) {
+        return Long.toString(Math.abs(n)).length();
+    }
+
+    // Returns the power of ten of the most significant digit of x (so 0 for 1.5, and -3 for 0.00123).
+    private static int magnitude(BigDecimal x) {
+        return x.precision() - x.scale() - 1;
+    }
+
+    // Returns the arithmetic-geometric mean of a and b.
+    private static BigDecimal agm(BigDecimal a, BigDecimal b, MathContext mc) {
+        final BigDecimal epsilon = BigDecimal.ONE.movePointLeft(mc.getPrecision() - 1);
+        while (a.subtract(b).abs().compareTo(a.multiply(epsilon)) > 0) {
+            final BigDecimal nextA = a.add(b).divide(TWO, mc);
+            b = sqrt(a.multiply(b, mc), mc);
+            a = nextA;
+        }
+        return a;
+    }
+
+    /**
+     * Returns the square root of x, which mustn't be negative.
+     */
+    static BigDecimal sqrt(BigDecimal x, MathContext mc) {
+        return root(x, 2, mc);
+    }
+
+    /**
+     * Returns the cube root of x.
+     */
+    static BigDecimal cbrt(BigDecimal x, MathContext mc) {
+        if (x.signum() < 0) {
+            return root(x.negate(), 3, mc).negate();
+        }
+        return root(x, 3, mc);
+    }
+
+    // Returns the k'th root of x >= 0, by taking the integer root of x scaled by a suitable power of 10^k.
+    // Exact roots come out exact.
+    private static BigDecimal root(BigDecimal x, int k, MathContext mc) {
+        if (x.signum() < 0) {
+            throw new ArithmeticException("root of negative number");
+        } else if (x.signum() == 0) {
+            return BigDecimal.ZERO;
+        }
+        // We want the scaled integer to have at least k*(precision + 2) digits, and its exponent to be a multiple of k.
+        final int digits = mc.getPrecision() + 2;
+        final int scale = (int) Math.ceil((double) (k * digits - (magnitude(x) + 1)) / k);
+        final BigInteger n = x.movePointRight(k * scale).toBigInteger();
+        final BigInteger root = (k == 2) ? NumberTheory.sqrt(n) : integerCubeRoot(n);
+        return new BigDecimal(root, scale).round(mc);
+    }
+
+    // Returns floor(cbrt(n)) for n > 0.
+    private static BigInteger integerCubeRoot(BigInteger n) {
+        final BigInteger three = BigInteger.valueOf(3);
+        // Start above the root, and Newton's method decreases monotonically to the answer.
+        BigInteger x = BigInteger.ONE.shiftLeft(n.bitLength() / 3 + 1);
+        while (true) {
+            final BigInteger y = x.shiftLeft(1).add(n.divide(x.multiply(x))).divide(three);
+            if (y.compareTo(x) >= 0) {
+                return x;
+            }
+            x = y;
+        }
+    }
+
+    /**
+     * Returns e^x.
+     */
+    static BigDecimal exp(BigDecimal x, MathContext mc) {
+        if (x.signum() == 0) {
+            return BigDecimal.ONE;
+        }
+        // e^x = e^n * e^f, where n is the nearest integer to x, and |f| <= 1/2.
+        final BigDecimal n = x.setScale(0, RoundingMode.HALF_EVEN);
+        if (n.abs().compareTo(BigDecimal.valueOf(MAX_EXP_ARGUMENT)) > 0) {
+            throw new ArithmeticException("exp argument too large");
+        }
+        final int intN = n.intValue();
+        // Raising e to the n'th power magnifies its relative error n times.
+        final MathContext wmc = guarded(mc, GUARD_DIGITS + digits(intN));
+        final BigDecimal f = x.subtract(n);
+        BigDecimal result = expTaylor(f, wmc);
+        if (intN != 0) {
+            result = result.multiply(MathConstants.E.value(wmc).pow(intN, wmc), wmc);
+        }
+        return result.round(mc);
+    }
+
+    // Returns e^x for small |x| by summing the Taylor series for e^(x/2^k), then squaring k times.
+    private static BigDecimal expTaylor(BigDecimal x, MathContext mc) {
+        // Halving about sqrt(bits) times balances the cost of the series against the cost of the squarings.
+        final int k = (int) Math.sqrt(bits(mc));
+        // Each squaring doubles the relative error, so we need an extra bit per squaring.
+        final MathContext wmc = guarded(mc, GUARD_DIGITS + k / 3);
+        final BigDecimal r = x.divide(TWO.pow(k), wmc);
+        final BigDecimal epsilon = BigDecimal.ONE.movePointLeft(wmc.getPrecision());
+        BigDecimal sum = BigDecimal.ONE;
+        BigDecimal term = BigDecimal.ONE;
+        for (int i = 1; term.abs().compareTo(epsilon) > 0; ++i) {
+            term = term.multiply(r, wmc).divide(BigDecimal.valueOf(i), wmc);
+            sum = sum.add(term, wmc);
+        }
+        for (int i = 0; i < k; ++i) {
+            sum = sum.multiply(sum, wmc);
+        }
+        return sum.round(mc);
+    }
+
+    /**
+     * Returns the natural logarithm of x, which must be positive.
+     */
+    static BigDecimal log(BigDecimal x, MathContext mc) {
+        if (x.signum() <= 0) {
+            throw new ArithmeticException("log of non-positive number");
+        } else if (x.compareTo(BigDecimal.ONE) == 0) {
+            return BigDecimal.ZERO;
+        }
+        final BigDecimal difference = x.subtract(BigDecimal.ONE);
+        if (difference.abs().compareTo(BigDecimal.valueOf(0.25)) < 0) {
+            // Near 1, the AGM formula would cancel away most of its digits, but this series converges quickly.
+            return logNearOne(x, mc);
+        }
+        // ln(x) = ln(y) + k*ln(10), where y = x/10^k is in [1, 10). The two terms may be much larger than the result,
+        // so we need as many extra digits as k has.
+        final int k = magnitude(x);
+        final MathContext wmc = guarded(mc, GUARD_DIGITS + digits(k));
+        final BigDecimal y = x.movePointLeft(k);
+        BigDecimal result = logAgm(y, wmc);
+        if (k != 0) {
+            result = result.add(MathConstants.LN10.value(wmc).multiply(BigDecimal.valueOf(k)), wmc);
+        }
+        return result.round(mc);
+    }
+
+    // Returns ln(x) for x in [1, 10), as ln(s) - m*ln(2), where s = x*2^m is large enough that ln(s) ~ pi/(2*AGM(1, 4/s)).
+    private static BigDecimal logAgm(BigDecimal x, MathContext mc) {
+        // The approximation is good to about 1/s^2, and we lose a few digits to cancellation when we subtract m*ln(2).
+        final MathContext wmc = guarded(mc, GUARD_DIGITS);
+        final int m = bits(wmc) / 2 + 2;
+        final BigDecimal s = x.multiply(TWO.pow(m));
+        final BigDecimal agm = agm(BigDecimal.ONE, FOUR.divide(s, wmc), wmc);
+        final BigDecimal logS = MathConstants.PI.value(wmc).divide(agm.multiply(TWO), wmc);
+        return logS.subtract(MathConstants.LN2.value(wmc).multiply(BigDecimal.valueOf(m)), wmc).round(mc);
+    }
+
+    // Returns ln(x) = 2*atanh((x-1)/(x+1)) for x near 1.
+    private static BigDecimal logNearOne(BigDecimal x, MathContext mc) {
+        final MathContext wmc = guarded(mc, GUARD_DIGITS);
+        final BigDecimal y = x.subtract(BigDecimal.ONE).divide(x.add(BigDecimal.ONE), wmc);
+        final BigDecimal ySquared = y.multiply(y, wmc);
+        final BigDecimal epsilon = y.abs().movePointLeft(wmc.getPrecision());
+        BigDecimal sum = y;
+        BigDecimal power = y;
+        for (int i = 3; ; i += 2) {
+            power = power.multiply(ySquared, wmc);
+            final BigDecimal term = power.divide(BigDecimal.valueOf(i), wmc);
+            if (term.abs().compareTo(epsilon) < 0) {
+                break;
+            }
+            sum = sum.add(term, wmc);
+        }
+        return sum.multiply(TWO).round(mc);
+    }
+
+    /**
+     * Returns the base-10 logarithm of x, which must be positive.
+     */
+    static BigDecimal log10(BigDecimal x, MathContext mc) {
+        final MathContext wmc = guarded(mc, GUARD_DIGITS);
+        return log(x, wmc).divide(MathConstants.LN10.value(wmc), mc);
+    }
+
+    /**
+     * Returns x^y for x > 0, or for x = 0 and y > 0.
+     */
+    static BigDecimal power(BigDecimal x, BigDecimal y, MathContext mc) {
+        if (x.signum() == 0 && y.signum() > 0) {
+            return BigDecimal.ZERO;
+        }
+        // The error in y*ln(x) becomes the relative error in the result, so we need as many extra digits as y*ln(x) has integer digits.
+        final BigDecimal estimate = y.multiply(log(x, new MathContext(20)));
+        final MathContext wmc = guarded(mc, GUARD_DIGITS + Math.max(0, magnitude(estimate) + 1));
+        return exp(y.multiply(log(x, wmc), wmc), wmc).round(mc);
+    }
+
+    /**
+     * Returns the sine of x radians.
+     */
+    static BigDecimal sin(BigDecimal x, MathContext mc) {
+        return sinOrCos(x, true, mc);
+    }
+
+    /**
+     * Returns the cosine of x radians.
+     */
+    static BigDecimal cos(BigDecimal x, MathContext mc) {
+        return sinOrCos(x, false, mc);
+    }
+
+    /**
+     * Returns the tangent of x radians.
+     */
+    static BigDecimal tan(BigDecimal x, MathContext mc) {
+        final MathContext wmc = guarded(mc, GUARD_DIGITS);
+        return sin(x, wmc).divide(cos(x, wmc), mc);
+    }
+
+    private static BigDecimal sinOrCos(BigDecimal x, boolean isSin, MathContext mc) {
+        if (x.signum() == 0) {
+            return isSin ? BigDecimal.ZERO : BigDecimal.ONE;
+        } else if (magnitude(x) > MAX_TRIGONOMETRIC_MAGNITUDE) {
+            throw new ArithmeticException("trigonometric argument too large");
+        }
+        // Reduce x to r = x - k*pi/2, with |r| <= pi/4. We need pi to as many extra digits as x has integer digits,
+        // and if r turns out to be tiny, we need to try again with enough extra digits to make up for the cancellation.
+        int extraDigits = GUARD_DIGITS + Math.max(0, magnitude(x) + 1);
+        while (true) {
+            final MathContext wmc = guarded(mc, extraDigits);
+            final BigDecimal halfPi = MathConstants.PI.value(wmc).divide(TWO, wmc);
+            final BigDecimal k = x.divide(halfPi, wmc).setScale(0, RoundingMode.HALF_EVEN);
+            final BigDecimal r = x.subtract(k.multiply(halfPi, wmc), wmc);
+            if (r.signum() != 0 && -magnitude(r) > extraDigits - GUARD_DIGITS - Math.max(0, magnitude(x) + 1)) {
+                extraDigits += -magnitude(r);
+                continue;
+            }
+            // sin(r + k*pi/2) and cos(r + k*pi/2) are +/- sin(r) or cos(r), depending on k mod 4.
+            final int quadrant = k.toBigInteger().and(BigInteger.valueOf(3)).intValue() + (isSin ? 0 : 1);
+            final BigDecimal result = (quadrant % 2 == 0) ? sinTaylor(r, wmc) : cosTaylor(r, wmc);
+            return ((quadrant & 2) != 0 ? result.negate() : result).round(mc);
+        }
+    }
+
+    private static BigDecimal sinTaylor(BigDecimal x, MathContext mc) {
+        final BigDecimal xSquared = x.multiply(x, mc);
+        final BigDecimal epsilon = x.abs().movePointLeft(mc.getPrecision());
+        BigDecimal sum = x;
+        BigDecimal term = x;
+        for (int i = 2; ; i += 2) {
+            term = term.multiply(xSquared, mc).divide(BigDecimal.valueOf(-(long) i * (i + 1)), mc);
+            if (term.abs().compareTo(epsilon) < 0) {
+                return sum;
+            }
+            sum = sum.add(term, mc);
+        }
+    }
+
+    private static BigDecimal cosTaylor(BigDecimal x, MathContext mc) {
+        final BigDecimal xSquared = x.multiply(x, mc);
+        final BigDecimal epsilon = BigDecimal.ONE.movePointLeft(mc.getPrecision());
+        BigDecimal sum = BigDecimal.ONE;
+        BigDecimal term = BigDecimal.ONE;
+        for (int i = 1; ; i += 2) {
+            term = term.multiply(xSquared, mc).divide(BigDecimal.valueOf(-(long) i * (i + 1)), mc);
+            if (term.abs().compareTo(epsilon) < 0) {
+                return sum;
+            }
+            sum = sum.add(term, mc);
+        }
+    }
+
+    /**
+     * Returns the arc tangent of x, in radians.
+     */
+    static BigDecimal atan(BigDecimal x, MathContext mc) {
+        if (x.signum() == 0) {
+            return BigDecimal.ZERO;
+        } else if (x.signum() < 0) {
+            return atan(x.negate(), mc).negate();
+        }
+        final MathContext wmc = guarded(mc, GUARD_DIGITS);
+        if (x.compareTo(BigDecimal.ONE) > 0) {
+            // atan(x) = pi/2 - atan(1/x).
+            return MathConstants.PI.value(wmc).divide(TWO, wmc).subtract(atan(BigDecimal.ONE.divide(x, wmc), wmc), wmc).round(mc);
+        }
+        // Each use of atan(x) = 2*atan(x/(1 + sqrt(1 + x^2))) roughly halves x, which speeds up the series.
+        final int k = (int) Math.sqrt(bits(mc)) / 2;
+        for (int i = 0; i < k; ++i) {
+            x = x.divide(BigDecimal.ONE.add(sqrt(BigDecimal.ONE.add(x.multiply(x, wmc)), wmc)), wmc);
+        }
+        final BigDecimal xSquared = x.multiply(x, wmc);
+        final BigDecimal epsilon = x.movePointLeft(wmc.getPrecision());
+        BigDecimal sum = x;
+        BigDecimal power = x;
+        for (int i = 3; ; i += 2) {
+            power = power.multiply(xSquared, wmc).negate();
+            final BigDecimal term = power.divide(BigDecimal.valueOf(i), wmc);
+            if (term.abs().compareTo(epsilon) < 0) {
+                break;
+            }
+            sum = sum.add(term, wmc);
+        }
+        return sum.multiply(TWO.pow(k)).round(mc);
+    }
+
+    /**
+     * Returns the arc sine of x, in radians, for |x| <= 1.
+     */
+    static BigDecimal asin(BigDecimal x, MathContext mc) {
+        final int comparison = x.abs().compareTo(BigDecimal.ONE);
+        if (comparison > 0) {
+            throw new ArithmeticException("asin argument out of range");
+        }
+        final MathContext wmc = guarded(mc, GUARD_DIGITS);
+        if (comparison == 0) {
+            final BigDecimal halfPi = MathConstants.PI.value(wmc).divide(TWO, mc);
+            return (x.signum() < 0) ? halfPi.negate() : halfPi;
+        }
+        // asin(x) = atan(x/sqrt(1 - x^2)), where 1 - x^2 is computed exactly.
+        return atan(x.divide(sqrt(BigDecimal.ONE.subtract(x.multiply(x)), wmc), wmc), mc);
+    }
+
+    /**
+     * Returns the arc cosine of x, in radians, for |x| <= 1.
+     */
+    static BigDecimal acos(BigDecimal x, MathContext mc) {
+        if (x.abs().compareTo(BigDecimal.ONE) > 0) {
+            throw new ArithmeticException("acos argument out of range");
+        } else if (x.compareTo(BigDecimal.ONE.negate()) == 0) {
+            return MathConstants.PI.value(mc);
+        }
+        // acos(x) = 2*atan(sqrt((1 - x)/(1 + x))) doesn't suffer from cancellation near x = 1, unlike pi/2 - asin(x).
+        final MathContext wmc = guarded(mc, GUARD_DIGITS);
+        final BigDecimal ratio = BigDecimal.ONE.subtract(x).divide(BigDecimal.ONE.add(x), wmc);
+        return atan(sqrt(ratio, wmc), wmc).multiply(TWO).round(mc);
+    }
+
+    /**
+     * Returns the angle, in radians, of the point (x, y).
+     */
+    static BigDecimal atan2(BigDecimal y, BigDecimal x, MathContext mc) {
+        final MathContext wmc = guarded(mc, GUARD_DIGITS);
+        if (x.signum() == 0) {
+            if (y.signum() == 0) {
+                return BigDecimal.ZERO;
+            }
+            final BigDecimal halfPi = MathConstants.PI.value(wmc).divide(TWO, mc);
+            return (y.signum() < 0) ? halfPi.negate() : halfPi;
+        }
+        final BigDecimal angle = atan(y.divide(x, wmc), wmc);
+        if (x.signum() > 0) {
+            return angle.round(mc);
+        }
+        final BigDecimal pi = MathConstants.PI.value(wmc);
+        return ((y.signum() < 0) ? angle.subtract(pi) : angle.add(pi)).round(mc);
+    }
+
+    /**
+     * Returns the hyperbolic sine of x.
+     */
+    static BigDecimal sinh(BigDecimal x, MathContext mc) {
+        if (x.signum() == 0) {
+            return BigDecimal.ZERO;
+        }
+        // (e^x - e^-x)/2 cancels for small x, so we need extra digits to make up for that.
+        final MathContext wmc = guarded(mc, GUARD_DIGITS + Math.max(0, -magnitude(x)));
+        final BigDecimal e = exp(x, wmc);
+        return e.subtract(BigDecimal.ONE.divide(e, wmc)).divide(TWO, mc);
+    }
+
+    /**
+     * Returns the hyperbolic cosine of x.
+     */
+    static BigDecimal cosh(BigDecimal x, MathContext mc) {
+        final MathContext wmc = guarded(mc, GUARD_DIGITS);
+        final BigDecimal e = exp(x, wmc);
+        return e.add(BigDecimal.ONE.divide(e, wmc)).divide(TWO, mc);
+    }
+
+    /**
+     * Returns the hyperbolic tangent of x.
+     */
+    static BigDecimal tanh(BigDecimal x, MathContext mc) {
+        if (x.abs().compareTo(BigDecimal.valueOf(mc.getPrecision())) > 0) {
+            // e^-2|x| is below our precision, so tanh(x) is +/-1 to the last digit.
+            return BigDecimal.valueOf(x.signum());
+        }
+        final MathContext wmc = guarded(mc, GUARD_DIGITS);
+        return sinh(x, wmc).divide(cosh(x, wmc), mc);
+    }
+}
@@ -22,14 +22,29 @@ import java.math.*;
 
 /**
  * Represents an arbitrary precision approximate number.
+ *
+ * A number typed in as a decimal literal has no MathContext: it's exact, and so are sums and products involving it.
+ * A number computed at a user-selected precision carries that precision's MathContext, and everything computed
+ * from it is rounded to that many significant digits. (If two numbers with different precisions meet,
+ * the result can't be more precise than the less precise of the two.)
  */
 public class BigRealNode implements Comparable<BigRealNode>, NumberNode {
     public static final BigRealNode ZERO = new BigRealNode(BigDecimal.ZERO);
 
+    private static final BigDecimal DEGREES_PER_HALF_TURN = BigDecimal.valueOf(180);
+
     private final BigDecimal value;
 
+    // The precision to which results should be rounded, or null for exact arithmetic.
+    private final MathContext mathContext;
+
     public BigRealNode(BigDecimal value) {
+        this(value, null);
+    }
+
+    public BigRealNode(BigDecimal value, MathContext mathContext) {
         this.value = value;
+        this.mathContext = mathContext;
     }
 
     public BigRealNode(String s) {
@@ -41,13 +56,57 @@ public class BigRealNode implements Comparable<BigRealNode>, NumberNode {
     }
 
     public BigRealNode abs() {
-        return new BigRealNode(value.abs());
+        return new BigRealNode(value.abs(), mathContext);
+    }
+
+    public NumberNode acos() {
+        try {
+            return result(BigRealMath.acos(value, mathContext()));
+        } catch (ArithmeticException ex) {
+            return toReal().acos();
+        }
+    }
+
+    public NumberNode asin() {
+        try {
+            return result(BigRealMath.asin(value, mathContext()));
+        } catch (ArithmeticException ex) {
+            return toReal().asin();
+        }
+    }
+
+    public NumberNode atan() {
+        return result(BigRealMath.atan(value, mathContext()));
+    }
+
+    public NumberNode atan2(BigRealNode x) {
+        return new BigRealNode(BigRealMath.atan2(value, x.value, mathContext(x)), mathContext(x));
+    }
+
+    public NumberNode cbrt() {
+        return result(BigRealMath.cbrt(value, mathContext()));
     }
 
     public int compareTo(BigRealNode rhs) {
         return value.compareTo(rhs.value);
     }
 
+    public NumberNode cos() {
+        try {
+            return result(BigRealMath.cos(value, mathContext()));
+        } catch (ArithmeticException ex) {
+            return toReal().cos();
+        }
+    }
+
+    public NumberNode cosh() {
+        try {
+            return result(BigRealMath.cosh(value, mathContext()));
+        } catch (ArithmeticException ex) {
+            return toReal().cosh();
+        }
+    }
+
     public NumberNode divide(NumberNode rhs) {
         if (rhs instanceof RealNode) {
             return toReal().divide(rhs);
@@ -61,7 +120,8 @@ public class BigRealNode implements Comparable<BigRealNode>, NumberNode {
             divisor = bRhs.value;
         }
         try {
-            return new BigRealNode(value.divide(divisor, MathContext.DECIMAL128));
+            final MathContext mc = combine(mathContext, rhs);
+            return new BigRealNode(value.divide(divisor, (mc != null) ? mc : MathContext.DECIMAL128), mc);
         } catch (ArithmeticException ex) {
             throw new CalculatorError("division by zero");
         }
@@ -82,39 +142,107 @@ public class BigRealNode implements Comparable<BigRealNode>, NumberNode {
         return value.hashCode();
     }
 
+    public NumberNode exp() {
+        try {
+            return result(BigRealMath.exp(value, mathContext()));
+        } catch (ArithmeticException ex) {
+            return toReal().exp();
+        }
+    }
+
     public NumberNode fractionalPart() {
         BigDecimal integerPart = new BigDecimal(value.toBigInteger());
         if (value.equals(integerPart)) {
             return IntegerNode.ZERO;
         }
-        return new BigRealNode(value.subtract(integerPart).abs());
+        return new BigRealNode(value.subtract(integerPart).abs(), mathContext);
+    }
+
+    public NumberNode hypot(BigRealNode y) {
+        final MathContext mc = mathContext(y);
+        return new BigRealNode(BigRealMath.sqrt(value.multiply(value).add(y.value.multiply(y.value)), mc), mc);
     }
 
     public NumberNode increment() {
-        return new BigRealNode(value.add(BigDecimal.ONE));
+        return new BigRealNode(round(value.add(BigDecimal.ONE)), mathContext);
     }
 
     public IntegerNode integerPart() {
         return IntegerNode.valueOf(value.toBigInteger());
     }
 
+    public NumberNode log(BigRealNode base) {
+        try {
+            final MathContext mc = mathContext(base);
+            final MathContext wmc = new MathContext(mc.getPrecision() + 5);
+            return new BigRealNode(BigRealMath.log(value, wmc).divide(BigRealMath.log(base.value, wmc), mc), mc);
+        } catch (ArithmeticException ex) {
+            return toReal().log(base.toReal());
+        }
+    }
+
+    public NumberNode log2() {
+        try {
+            final MathContext wmc = new MathContext(mathContext().getPrecision() + 5);
+            return result(BigRealMath.log(value, wmc).divide(MathConstants.LN2.value(wmc), mathContext()));
+        } catch (ArithmeticException ex) {
+            return toReal().log2();
+        }
+    }
+
+    public NumberNode logE() {
+        try {
+            return result(BigRealMath.log(value, mathContext()));
+        } catch (ArithmeticException ex) {
+            return toReal().logE();
+        }
+    }
+
+    public NumberNode log10() {
+        try {
+            return result(BigRealMath.log10(value, mathContext()));
+        } catch (ArithmeticException ex) {
+            return toReal().log10();
+        }
+    }
+
     public NumberNode plus(NumberNode rhs) {
         if (rhs instanceof RealNode) {
             return toReal().plus(rhs);
         } else if (rhs instanceof IntegerNode) {
             IntegerNode iRhs = (IntegerNode) rhs;
-            return new BigRealNode(value.add(new BigDecimal(iRhs.big())));
+            return new BigRealNode(round(value.add(new BigDecimal(iRhs.big()))), mathContext);
         } else {
             BigRealNode bRhs = (BigRealNode) rhs;
-            return new BigRealNode(value.add(bRhs.value));
+            final MathContext mc = combine(mathContext, bRhs);
+            return new BigRealNode(round(value.add(bRhs.value), mc), mc);
         }
     }
 
     public NumberNode power(NumberNode rhs) {
         if (rhs instanceof IntegerNode) {
             IntegerNode iRhs = (IntegerNode) rhs;
-            if (!iRhs.isBig() && iRhs.fix() <= Integer.MAX_VALUE) {
-                return new BigRealNode(value.pow((int) iRhs.fix()));
+            if (!iRhs.isBig() && Math.abs(iRhs.fix()) <= 999999999) {
+                final int n = (int) iRhs.fix();
+                if (mathContext != null) {
+                    try {
+                        return new BigRealNode(value.pow(n, mathContext), mathContext);
+                    } catch (ArithmeticException ex) {
+                        throw new CalculatorError("division by zero");
+                    }
+                } else if (n >= 0) {
+                    return new BigRealNode(value.pow(n));
+                }
+            }
+        } else if (rhs instanceof BigRealNode) {
+            final BigRealNode bRhs = (BigRealNode) rhs;
+            final MathContext mc = combine(mathContext, bRhs);
+            if (mc != null) {
+                try {
+                    return new BigRealNode(BigRealMath.power(value, bRhs.value, mc), mc);
+                } catch (ArithmeticException ex) {
+                    // Fall through to machine precision, which gives NaN for negative bases.
+                }
             }
         }
         return toReal().power(rhs);
@@ -128,28 +256,124 @@ public class BigRealNode implements Comparable<BigRealNode>, NumberNode {
         return this;
     }
 
+    public NumberNode sin() {
+        try {
+            return result(BigRealMath.sin(value, mathContext()));
+        } catch (ArithmeticException ex) {
+            return toReal().sin();
+        }
+    }
+
+    public NumberNode sinh() {
+        try {
+            return result(BigRealMath.sinh(value, mathContext()));
+        } catch (ArithmeticException ex) {
+            return toReal().sinh();
+        }
+    }
+
+    public NumberNode sqrt() {
+        try {
+            return result(BigRealMath.sqrt(value, mathContext()));
+        } catch (ArithmeticException ex) {
+            return toReal().sqrt();
+        }
+    }
+
     public NumberNode subtract(NumberNode rhs) {
         if (rhs instanceof RealNode) {
             return toReal().subtract(rhs);
         } else if (rhs instanceof IntegerNode) {
             IntegerNode iRhs = (IntegerNode) rhs;
-            return new BigRealNode(value.subtract(new BigDecimal(iRhs.big())));
+            return new BigRealNode(round(value.subtract(new BigDecimal(iRhs.big()))), mathContext);
         } else {
             BigRealNode bRhs = (BigRealNode) rhs;
-            return new BigRealNode(value.subtract(bRhs.value));
+            final MathContext mc = combine(mathContext, bRhs);
+            return new BigRealNode(round(value.subtract(bRhs.value), mc), mc);
         }
     }
 
+    public NumberNode tan() {
+        try {
+            return result(BigRealMath.tan(value, mathContext()));
+        } catch (ArithmeticException ex) {
+            return toReal().tan();
+        }
+    }
+
+    public NumberNode tanh() {
+        return result(BigRealMath.tanh(value, mathContext()));
+    }
+
     public NumberNode times(NumberNode rhs) {
         if (rhs instanceof RealNode) {
             return toReal().times(rhs);
         } else if (rhs instanceof IntegerNode) {
             IntegerNode iRhs = (IntegerNode) rhs;
-            return new BigRealNode(value.multiply(new BigDecimal(iRhs.big())));
+            return new BigRealNode(round(value.multiply(new BigDecimal(iRhs.big()))), mathContext);
         } else {
             BigRealNode bRhs = (BigRealNode) rhs;
-            return new BigRealNode(value.multiply(bRhs.value));
+            final MathContext mc = combine(mathContext, bRhs);
+            return new BigRealNode(round(value.multiply(bRhs.value), mc), mc);
+        }
+    }
+
+    /**
+     * Converts this angle from degrees to radians.
+     * We keep a few extra digits (but not the extra precision), so the conversion itself doesn't add rounding error.
+     */
+    BigRealNode degreesToRadians() {
+        final MathContext wmc = new MathContext(mathContext().getPrecision() + 5);
+        return new BigRealNode(value.multiply(MathConstants.PI.value(wmc)).divide(DEGREES_PER_HALF_TURN, wmc), mathContext);
+    }
+
+    /**
+     * Converts this angle from radians to degrees.
+     */
+    BigRealNode radiansToDegrees() {
+        final MathContext mc = mathContext();
+        final MathContext wmc = new MathContext(mc.getPrecision() + 5);
+        return new BigRealNode(value.multiply(DEGREES_PER_HALF_TURN).divide(MathConstants.PI.value(wmc), mc), mathContext);
+    }
+
+    /**
+     * Returns this number rounded to the given precision, with everything computed from it rounded likewise.
+     */
+    BigRealNode withMathContext(MathContext mc) {
+        return new BigRealNode(value.round(mc), mc);
+    }
+
+    // Returns the precision of a result involving this number and 'rhs': the lower of the two, ignoring exact numbers.
+    private static MathContext combine(MathContext mc, NumberNode rhs) {
+        final MathContext rhsMc = (rhs instanceof BigRealNode) ? ((BigRealNode) rhs).mathContext : null;
+        if (mc == null) {
+            return rhsMc;
+        } else if (rhsMc == null) {
+            return mc;
         }
+        return (mc.getPrecision() <= rhsMc.getPrecision()) ? mc : rhsMc;
+    }
+
+    // Returns the precision for transcendental functions of this number. We can't compute those exactly, so literals get DECIMAL128.
+    private MathContext mathContext() {
+        return (mathContext != null) ? mathContext : MathContext.DECIMAL128;
+    }
+
+    private MathContext mathContext(BigRealNode rhs) {
+        final MathContext mc = combine(mathContext, rhs);
+        return (mc != null) ? mc : MathContext.DECIMAL128;
+    }
+
+    private BigRealNode result(BigDecimal newValue) {
+        return new BigRealNode(newValue, mathContext());
+    }
+
+    private BigDecimal round(BigDecimal newValue) {
+        return round(newValue, mathContext);
+    }
+
+    private static BigDecimal round(BigDecimal newValue, MathContext mc) {
+        return (mc != null) ? newValue.round(mc) : newValue;
     }
 
     public double doubleValue() {
@@ -165,6 +389,16 @@ public class BigRealNode implements Comparable<BigRealNode>, NumberNode {
     }
 
     @Override public String toString() {
+        if (mathContext != null) {
+            // Trailing zeros in a rounded result aren't significant, and we don't want to pad very large or very small
+            // results with thousands of zeros either.
+            if (value.signum() == 0) {
+                return "0";
+            }
+            final BigDecimal stripped = value.stripTrailingZeros();
+            final int magnitude = stripped.precision() - stripped.scale() - 1;
+            return (magnitude < -6 || magnitude >= mathContext.getPrecision()) ? stripped.toString() : stripped.toPlainString();
+        }
         return value.toPlainString();
     }
 }
@@ -20,83 +20,191 @@ package org.jessies.calc;
 
 import java.math.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 // FIXME: Mac OS' calculator offers -d variants of all the trig functions for degrees. that, or offer constants to multiply by to convert to degrees/radians?
 // FIXME: higher-order built-in functions like http://www.vitanuova.com/inferno/man/1/calc.html (sum, product, integral, differential, solve).
 // FIXME: integer division (//).
 public class Calculator {
-    private final Map<String, CalculatorFunction> functions;
-    private final Map<CalculatorToken, CalculatorFunction> operators;
-    private final Map<String, Variable> variables;
-    private final Variable ans;
+    // The built-in functions are immutable, so all calculators share them.
+    private static final Map<String, CalculatorFunction> functions = new HashMap<String, CalculatorFunction>();
+    private static final Map<CalculatorToken, CalculatorFunction> operators = new EnumMap<CalculatorToken, CalculatorFunction>(CalculatorToken.class);
 
     // We keep track of the "basic" names (like "ArcCos", as distinct from the
     // derived names like "arccos" and "arc_cos") so we can automatically
     // generate the on-line help.
-    private final TreeSet<String> basicFunctionNames = new TreeSet<String>();
+    private static final TreeSet<String> basicFunctionNames = new TreeSet<String>();
 
-    private boolean degreesMode = false;
-    private static int outputBase = 10; // TODO: pass this around instead of using static.
+    static {
+        initBuiltInFunctions();
+    }
+
+    // The state shared by a Calculator and all the scopes created from it.
+    private final Globals globals;
+
+    // Settings are per-scope, so one thread can't change how another thread's evaluation behaves part way through.
+    // A new scope starts with its parent's settings.
+    private volatile boolean degreesMode = false;
+    private volatile int outputBase = 10;
+    private volatile int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+    // The number of significant digits for approximate results, or 0 for machine (double) precision.
+    // The MathContext is derived from it, and null in machine precision.
+    private volatile int precision = 0;
+    private volatile MathContext mathContext = null;
+    private volatile Summation summation = Summation.PLAIN;
 
-    private CalculatorPlotter plotter;
+    // Below this many iterations, it's not worth farming out a Sum or Map to other threads.
+    private static final int DEFAULT_PARALLEL_THRESHOLD = 10000;
+
+    // The parameter values of any CompiledExpressions currently being evaluated.
+    // A scope is only used by one thread at a time, so this needs no synchronization.
+    CompiledExpression.Frame frame;
+
+    // Users often evaluate the same expression again, so we keep recently parsed expressions, most recently used last.
+    private static final int PARSE_CACHE_SIZE = 64;
 
     // Variable names are case-insensitive but case-preserving.
     // We implement case-insensitivity by using name.toLowerCase() as the key.
     // We preserve case by using a pair of the first-encountered name and the variable's value as the map's value type.
     static class Variable {
         String name;
-        Node value;
+        volatile Node value;
         boolean isAssignable = true;
+        // True for built-in constants, whose values never change. (Ans can't be assigned to, but isn't constant.)
+        boolean isConstant = false;
+        // For constants like pi that we can compute to any precision, the means of doing so.
+        MathConstants.Constant constant;
     }
 
-    public Calculator() {
-        this.functions = new HashMap<String, CalculatorFunction>();
-        this.operators = new EnumMap<CalculatorToken, CalculatorFunction>(CalculatorToken.class);
-        this.variables = new HashMap<String, Variable>();
-        this.ans = initAns();
-        initBuiltInConstants();
-        initBuiltInFunctions();
+    private static class ParsedExpression {
+        final Node expression;
+        final Node simplifiedExpression;
+        // The keys of all the variables mentioned in the expression.
+        final Set<String> variableKeys;
+
+        ParsedExpression(Node expression, Node simplifiedExpression, Set<String> variableKeys) {
+            this.expression = expression;
+            this.simplifiedExpression = simplifiedExpression;
+            this.variableKeys = variableKeys;
+        }
     }
 
-    public void setPlotter(CalculatorPlotter plotter) {
-        this.plotter = plotter;
+    // Everything that's visible to all threads using a Calculator.
+    // The parse cache fields are guarded by the Globals instance's lock.
+    private static class Globals {
+        final ConcurrentHashMap<String, Variable> variables = new ConcurrentHashMap<String, Variable>();
+        final Variable ans;
+        volatile CalculatorPlotter plotter;
+
+        final LinkedHashMap<String, ParsedExpression> parseCache = new LinkedHashMap<String, ParsedExpression>(PARSE_CACHE_SIZE, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<String, ParsedExpression> eldest) {
+                if (size() <= PARSE_CACHE_SIZE) {
+                    return false;
+                }
+                forgetDependencies(eldest.getKey(), eldest.getValue());
+                return true;
+            }
+        };
+        // Maps each variable (by key) to the cached expressions that refer to it, so we know what to invalidate when it changes.
+        final HashMap<String, Set<String>> parseCacheDependents = new HashMap<String, Set<String>>();
+        long parseCacheHitCount;
+        long parseCacheMissCount;
+
+        Globals() {
+            this.ans = initAns();
+            initBuiltInConstants();
+        }
+
+        private Variable initAns() {
+            final Variable result = new Variable();
+            result.name = "Ans";
+            result.value = null;
+            result.isAssignable = false;
+            variables.put(result.name.toLowerCase(Locale.US), result);
+            return result;
+        }
+
+        private void initBuiltInConstants() {
+            // These are the machine-precision values; see valueOf for the others.
+            initConstant("e", new RealNode(Math.E)).constant = MathConstants.E;
+
+            final Node pi = new RealNode(Math.PI);
+            initConstant("pi", pi).constant = MathConstants.PI;
+            initConstant("\u03c0", pi).constant = MathConstants.PI;
+
+            final Node infinity = new RealNode(Double.POSITIVE_INFINITY);
+            initConstant("Infinity", infinity);
+            initConstant("\u221e", infinity);
+
+            initConstant("false", BooleanNode.FALSE);
+            initConstant("true", BooleanNode.TRUE);
+        }
+
+        private Variable initConstant(String name, Node value) {
+            final Variable constant = new Variable();
+            constant.name = name;
+            constant.value = value;
+            constant.isAssignable = false;
+            constant.isConstant = true;
+            final String key = name.toLowerCase(Locale.US);
+            variables.put(key, constant);
+            return constant;
+        }
+
+        void forgetDependencies(String stringExpression, ParsedExpression parsedExpression) {
+            for (String key : parsedExpression.variableKeys) {
+                final Set<String> dependents = parseCacheDependents.get(key);
+                if (dependents != null) {
+                    dependents.remove(stringExpression);
+                    if (dependents.isEmpty()) {
+                        parseCacheDependents.remove(key);
+                    }
+                }
+            }
+        }
     }
 
-    public CalculatorPlotter getPlotter() {
-        return plotter;
+    /**
+     * Creates a calculator with its own variables and settings.
+     * A calculator can be used by many threads at once; each evaluation gets its own scope.
+     */
+    public Calculator() {
+        this.globals = new Globals();
     }
 
-    private Variable initAns() {
-        final Variable result = new Variable();
-        result.name = "Ans";
-        result.value = null;
-        result.isAssignable = false;
-        variables.put(result.name.toLowerCase(Locale.US), result);
-        return result;
+    // Creates a new scope sharing 'parent's variables, and starting with its settings.
+    private Calculator(Calculator parent) {
+        this.globals = parent.globals;
+        this.degreesMode = parent.degreesMode;
+        this.outputBase = parent.outputBase;
+        this.parallelThreshold = parent.parallelThreshold;
+        this.precision = parent.precision;
+        this.mathContext = parent.mathContext;
+        this.summation = parent.summation;
+        this.frame = parent.frame;
     }
 
-    private void initBuiltInConstants() {
-        // FIXME: use higher-precision string forms?
-        initConstant("e", new RealNode(Math.E));
+    // Returns a new scope for a single evaluation on a single thread.
+    Calculator newScope() {
+        return new Calculator(this);
+    }
 
-        final Node pi = new RealNode(Math.PI);
-        initConstant("pi", pi);
-        initConstant("\u03c0", pi);
+    // Returns a new scope for one part of a parallel evaluation, which must not itself go parallel.
+    Calculator newWorkerScope() {
+        final Calculator result = new Calculator(this);
+        result.parallelThreshold = Integer.MAX_VALUE;
+        return result;
+    }
 
-        initConstant("false", BooleanNode.FALSE);
-        initConstant("true", BooleanNode.TRUE);
+    public void setPlotter(CalculatorPlotter plotter) {
+        globals.plotter = plotter;
     }
 
-    private void initConstant(String name, Node value) {
-        final Variable constant = new Variable();
-        constant.name = name;
-        constant.value = value;
-        constant.isAssignable = false;
-        final String key = name.toLowerCase(Locale.US);
-        variables.put(key, constant);
+    public CalculatorPlotter getPlotter() {
+        return globals.plotter;
     }
 
-    private void initBuiltInFunctions() {
+    private static void initBuiltInFunctions() {
         // FIXME: acosh, asinh, atanh, chop, clip.
         addFunction(new CalculatorFunctions.Abs(),            "Abs");
         addFunction(new CalculatorFunctions.Acos(),           "Acos", "ArcCos");
@@ -121,6 +229,7 @@ public class Calculator {
         addFunction(new CalculatorFunctions.Cos(),            "Cos");
         addFunction(new CalculatorFunctions.Define(),         "Define");
         addFunction(new CalculatorFunctions.DigitCount(),     "DigitCount");
+        addFunction(new CalculatorFunctions.Det(),            "Det");
         addFunction(new CalculatorFunctions.Dimensions(),     "Dimensions");
         addFunction(new CalculatorFunctions.Divide(),         "Divide");
         addFunction(new CalculatorFunctions.Divisors(),       "Divisors");
@@ -134,16 +243,19 @@ public class Calculator {
         addFunction(new CalculatorFunctions.GCD(),            "GCD");
         addFunction(new CalculatorFunctions.GreaterEqual(),   "GreaterEqual");
         addFunction(new CalculatorFunctions.Greater(),        "Greater");
+        addFunction(new CalculatorFunctions.Histogram(),      "Histogram");
         addFunction(new CalculatorFunctions.Hypot(),          "Hypot");
         addFunction(new CalculatorFunctions.IdentityMatrix(), "IdentityMatrix");
         addFunction(new CalculatorFunctions.IntegerLength(),  "IntegerLength");
         addFunction(new CalculatorFunctions.IntegerPart(),    "IntegerPart");
+        addFunction(new CalculatorFunctions.Inverse(),        "Inverse");
         addFunction(new CalculatorFunctions.IsMatrix(),       "IsMatrix");
         addFunction(new CalculatorFunctions.IsPrime(),        "IsPrime");
         addFunction(new CalculatorFunctions.LCM(),            "LCM");
         addFunction(new CalculatorFunctions.Length(),         "Length");
         addFunction(new CalculatorFunctions.LessEqual(),      "LessEqual");
         addFunction(new CalculatorFunctions.Less(),           "Less");
+        addFunction(new CalculatorFunctions.LinearSolve(),    "LinearSolve");
         addFunction(new CalculatorFunctions.ListBuilder(),    "List");
         addFunction(new CalculatorFunctions.Log10(),          "Log10");
         addFunction(new CalculatorFunctions.Log2(),           "Log2");
@@ -151,16 +263,26 @@ public class Calculator {
         addFunction(new CalculatorFunctions.Log(),            "Log");
         addFunction(new CalculatorFunctions.Map(),            "Map");
         addFunction(new CalculatorFunctions.Max(),            "Max");
+        addFunction(new CalculatorFunctions.Mean(),           "Mean");
+        addFunction(new CalculatorFunctions.Median(),         "Median");
         addFunction(new CalculatorFunctions.Min(),            "Min");
         addFunction(new CalculatorFunctions.Mod(),            "Mod");
+        addFunction(new CalculatorFunctions.ModInverse(),     "ModInverse");
         addFunction(new CalculatorFunctions.nCr(),            "nCr");
+        addFunction(new CalculatorFunctions.NextPrime(),      "NextPrime");
         addFunction(new CalculatorFunctions.Not(),            "Not");
         addFunction(new CalculatorFunctions.nPr(),            "nPr");
         addFunction(new CalculatorFunctions.Or(),             "Or");
+        addFunction(new CalculatorFunctions.ParametricPlot(), "ParametricPlot");
         addFunction(new CalculatorFunctions.Plot(),           "Plot");
         addFunction(new CalculatorFunctions.Plus(),           "Plus");
+        addFunction(new CalculatorFunctions.PolarPlot(),      "PolarPlot");
         addFunction(new CalculatorFunctions.Power(),          "Power");
+        addFunction(new CalculatorFunctions.PowerMod(),       "PowerMod");
+        addFunction(new CalculatorFunctions.Prime(),          "Prime");
+        addFunction(new CalculatorFunctions.PrimePi(),        "PrimePi");
         addFunction(new CalculatorFunctions.Product(),        "Product", /* Unicode Greek capital letter pi */ "\u03a0", /* Unicode product sign */ "\u220f");
+        addFunction(new CalculatorFunctions.Quantile(),       "Quantile");
         addFunction(new CalculatorFunctions.Range(),          "Range");
         addFunction(new CalculatorFunctions.Random(),         "Random", "Rand");
         addFunction(new CalculatorFunctions.Reverse(),        "Reverse");
@@ -169,6 +291,7 @@ public class Calculator {
         addFunction(new CalculatorFunctions.Sinh(),           "Sinh");
         addFunction(new CalculatorFunctions.Sin(),            "Sin");
         addFunction(new CalculatorFunctions.Sqrt(),           "Sqrt");
+        addFunction(new CalculatorFunctions.StandardDeviation(), "StandardDeviation");
         addFunction(new CalculatorFunctions.Sum(),            "Sum", /* Unicode Greek capital letter sigma */ "\u03a3", /* Unicode summation sign */ "\u2211");
         addFunction(new CalculatorFunctions.Subtract(),       "Subtract");
         addFunction(new CalculatorFunctions.Tanh(),           "Tanh");
@@ -177,6 +300,7 @@ public class Calculator {
         addFunction(new CalculatorFunctions.Total(),          "Total");
         addFunction(new CalculatorFunctions.Transpose(),      "Transpose");
         addFunction(new CalculatorFunctions.Unequal(),        "Unequal");
+        addFunction(new CalculatorFunctions.Variance(),       "Variance");
 
         operators.put(CalculatorToken.B_AND, functions.get("BitAnd"));
         operators.put(CalculatorToken.B_NOT, functions.get("BitNot"));
@@ -200,14 +324,14 @@ public class Calculator {
     }
 
     public Iterable<String> getFunctionNames() {
-      return basicFunctionNames;
+      return Collections.unmodifiableSet(basicFunctionNames);
     }
 
     public Iterable<CalculatorToken> getOperators() {
-      return operators.keySet();
+      return Collections.unmodifiableSet(operators.keySet());
     }
 
-    private void addFunction(CalculatorFunction function, String... names) {
+    private static void addFunction(CalculatorFunction function, String... names) {
         for (String name : names) {
             addUniqueFunction(function, name);
             basicFunctionNames.add(name);
@@ -222,7 +346,7 @@ public class Calculator {
         }
     }
 
-    private void addUniqueFunction(CalculatorFunction function, String name) {
+    private static void addUniqueFunction(CalculatorFunction function, String name) {
         // The checks in addFunction ensure no duplication for a single function.
         // This check is to avoid accidental duplication between functions.
         if (functions.get(name) != null) {
@@ -231,9 +355,100 @@ public class Calculator {
         functions.put(name, function);
     }
 
-    private Node parse(String stringExpression) throws CalculatorError {
-        final CalculatorParser parser = new CalculatorParser(this, stringExpression);
-        return parser.parse();
+    private ParsedExpression parse(String stringExpression) throws CalculatorError {
+        synchronized (globals) {
+            final ParsedExpression result = globals.parseCache.get(stringExpression);
+            if (result != null) {
+                ++globals.parseCacheHitCount;
+                return result;
+            }
+            ++globals.parseCacheMissCount;
+        }
+        // We don't hold the lock while parsing; at worst two threads parse the same string at the same time.
+        final Node expression = new CalculatorParser(this, stringExpression).parse();
+        final Set<String> variableKeys = new HashSet<String>();
+        findVariables(expression, Collections.<String>emptySet(), variableKeys);
+        final ParsedExpression result = new ParsedExpression(expression, simplify(expression), variableKeys);
+        synchronized (globals) {
+            final ParsedExpression oldEntry = globals.parseCache.put(stringExpression, result);
+            if (oldEntry != null) {
+                globals.forgetDependencies(stringExpression, oldEntry);
+            }
+            for (String key : variableKeys) {
+                Set<String> dependents = globals.parseCacheDependents.get(key);
+                if (dependents == null) {
+                    dependents = new HashSet<String>();
+                    globals.parseCacheDependents.put(key, dependents);
+                }
+                dependents.add(stringExpression);
+            }
+        }
+        return result;
+    }
+
+    // Adds the keys of the variables 'node' refers to, ignoring those bound by functions like Sum.
+    private static void findVariables(Node node, Set<String> boundKeys, Set<String> variableKeys) {
+        if (node instanceof CalculatorVariableNode) {
+            final String key = ((CalculatorVariableNode) node).name().toLowerCase(Locale.US);
+            if (!boundKeys.contains(key)) {
+                variableKeys.add(key);
+            }
+        } else if (node instanceof CalculatorFunction) {
+            final CalculatorFunction function = (CalculatorFunction) node;
+            final List<Node> args = function.args;
+            if (args == null) {
+                return;
+            }
+            final int boundIndex = function.boundVariableIndex();
+            Set<String> innerBoundKeys = boundKeys;
+            if (boundIndex != -1 && args.get(boundIndex) instanceof CalculatorVariableNode) {
+                innerBoundKeys = new HashSet<String>(boundKeys);
+                innerBoundKeys.add(((CalculatorVariableNode) args.get(boundIndex)).name().toLowerCase(Locale.US));
+            }
+            for (int i = 0; i < args.size(); ++i) {
+                if (i != boundIndex) {
+                    findVariables(args.get(i), innerBoundKeys, variableKeys);
+                }
+            }
+        } else if (node instanceof ListNode) {
+            for (Node element : (ListNode) node) {
+                findVariables(element, boundKeys, variableKeys);
+            }
+        }
+    }
+
+    // Discards any cached expressions that depend on the variable with the given key.
+    private void invalidateParseCache(String key) {
+        synchronized (globals) {
+            final Set<String> dependents = globals.parseCacheDependents.get(key);
+            if (dependents == null) {
+                return;
+            }
+            for (String stringExpression : new ArrayList<String>(dependents)) {
+                final ParsedExpression parsedExpression = globals.parseCache.remove(stringExpression);
+                if (parsedExpression != null) {
+                    globals.forgetDependencies(stringExpression, parsedExpression);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of times evaluate or compile found its expression already parsed.
+     */
+    public long getParseCacheHitCount() {
+        synchronized (globals) {
+            return globals.parseCacheHitCount;
+        }
+    }
+
+    /**
+     * Returns the number of times evaluate or compile had to parse its expression.
+     */
+    public long getParseCacheMissCount() {
+        synchronized (globals) {
+            return globals.parseCacheMissCount;
+        }
     }
 
     private Node simplify(Node expression) {
@@ -241,18 +456,25 @@ public class Calculator {
     }
 
     public Node evaluate(String stringExpression) throws CalculatorError {
-        final Node expression = parse(stringExpression);
-        final Node simplifiedExpression = simplify(expression);
+        final ParsedExpression parsedExpression = parse(stringExpression);
+        final Node expression = parsedExpression.expression;
         if (false) {
             final String expressionString = expression.toInputString();
-            final String simplifiedString = simplifiedExpression.toInputString();
+            final String simplifiedString = parsedExpression.simplifiedExpression.toInputString();
             System.err.println(expressionString + (expressionString.equals(simplifiedString) ? "" : (" --- " + simplifiedString)));
         }
-        final Node result = expression.evaluate(this);
-        ans.value = result;
+        final Node result = expression.evaluate(newScope());
+        globals.ans.value = result;
         return result;
     }
 
+    /**
+     * Parses the given expression once so it can be evaluated repeatedly with different values for the named parameters.
+     */
+    public CompiledExpression compile(String stringExpression, String... parameterNames) throws CalculatorError {
+        return new CompiledExpression(this, parse(stringExpression).expression, parameterNames);
+    }
+
     public CalculatorFunction getFunction(String name) {
         return functions.get(name);
     }
@@ -262,18 +484,37 @@ public class Calculator {
     }
 
     public Node getVariable(String name) {
-        final Variable v = variables.get(name.toLowerCase(Locale.US));
-        return (v != null) ? v.value : null;
+        final Variable v = globals.variables.get(name.toLowerCase(Locale.US));
+        return (v != null) ? valueOf(v) : null;
     }
 
-    public void setVariable(String name, Node newValue) {
+    // Returns the given variable's value, computing constants to the current precision.
+    Node valueOf(Variable v) {
+        final MathContext mc = mathContext;
+        if (v.constant != null && mc != null) {
+            return new BigRealNode(v.constant.value(mc), mc);
+        }
+        return v.value;
+    }
+
+    // Returns the storage for the given variable, creating it (with no value) if necessary.
+    Variable variableFor(String name) {
         final String key = name.toLowerCase(Locale.US);
-        Variable v = variables.get(key);
+        Variable v = globals.variables.get(key);
         if (v == null) {
-            v = new Variable();
-            v.name = name;
-            variables.put(key, v);
-        } else  if (!v.isAssignable) {
+            final Variable newVariable = new Variable();
+            newVariable.name = name;
+            v = globals.variables.putIfAbsent(key, newVariable);
+            if (v == null) {
+                v = newVariable;
+            }
+        }
+        return v;
+    }
+
+    public void setVariable(String name, Node newValue) {
+        final Variable v = variableFor(name);
+        if (!v.isAssignable) {
             if (v.name.equals("Ans")) {
                 throw new CalculatorError("can't assign a new value to Ans");
             } else {
@@ -281,6 +522,7 @@ public class Calculator {
             }
         }
         v.value = newValue;
+        invalidateParseCache(name.toLowerCase(Locale.US));
     }
 
     /**
@@ -298,7 +540,15 @@ public class Calculator {
         return value;
     }
 
-    public RealNode angleResult(NumberNode n) {
+    // Converts an arbitrary-precision angle in this calculator's angle units to radians.
+    BigRealNode angleArgument(BigRealNode n) {
+        return degreesMode ? n.degreesToRadians() : n;
+    }
+
+    public NumberNode angleResult(NumberNode n) {
+        if (n instanceof BigRealNode && mathContext != null) {
+            return degreesMode ? ((BigRealNode) n).radiansToDegrees() : n;
+        }
         RealNode value = n.toReal();
         if (degreesMode) {
             value = new RealNode(Math.toDegrees(value.doubleValue()));
@@ -306,11 +556,151 @@ public class Calculator {
         return value;
     }
 
+    double angleArgument(double value) {
+        return degreesMode ? Math.toRadians(value) : value;
+    }
+
+    double angleResult(double value) {
+        return degreesMode ? Math.toDegrees(value) : value;
+    }
+
+    /**
+     * Sets the number of significant digits for approximate results, or 0 for machine (double) precision.
+     * At a precision other than machine precision, pi, e, division, powers, and the elementary functions
+     * give arbitrary-precision results.
+     */
+    public void setPrecision(int precision) {
+        if (precision < 0) {
+            throw new IllegalArgumentException("precision must be non-negative: " + precision);
+        }
+        this.mathContext = (precision == 0) ? null : new MathContext(precision, RoundingMode.HALF_EVEN);
+        this.precision = precision;
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Returns n as a number at the current precision, or null if we're using machine precision or n is already
+     * a machine-precision number (in which case there's no point pretending to more precision than n has).
+     */
+    BigRealNode toBigReal(NumberNode n) {
+        final MathContext mc = mathContext;
+        if (mc == null || n instanceof RealNode) {
+            return null;
+        } else if (n instanceof IntegerNode) {
+            return new BigRealNode(new BigDecimal(((IntegerNode) n).big(), mc), mc);
+        } else if (n instanceof RationalNode) {
+            final RationalNode rational = (RationalNode) n;
+            final BigDecimal p = new BigDecimal(rational.numerator().big());
+            final BigDecimal q = new BigDecimal(rational.denominator().big());
+            return new BigRealNode(p.divide(q, mc), mc);
+        }
+        return ((BigRealNode) n).withMathContext(mc);
+    }
+
+    /**
+     * How sums of machine-precision reals are accumulated.
+     */
+    public enum Summation {
+        /** Adds each term to the running total, rounding every time. Fastest, but the error grows with the number of terms. */
+        PLAIN,
+        /** Adds the terms in a balanced tree, so the error grows only with the logarithm of the number of terms. */
+        PAIRWISE,
+        /** Keeps track of what each addition rounded away, so the error doesn't grow with the number of terms. */
+        COMPENSATED
+    }
+
+    /**
+     * Sets how Sum, Total, Mean, and Variance add up machine-precision reals.
+     * Sums of integers and rationals are always exact, whatever this says.
+     */
+    public void setSummation(Summation summation) {
+        if (summation == null) {
+            throw new NullPointerException("summation == null");
+        }
+        this.summation = summation;
+    }
+
+    public Summation getSummation() {
+        return summation;
+    }
+
+    /**
+     * Sets the number of iterations at which Sum, Product, Map, and Filter start using multiple threads.
+     * Integer.MAX_VALUE means they never will.
+     */
+    public void setParallelThreshold(int parallelThreshold) {
+        if (parallelThreshold < 1) {
+            throw new IllegalArgumentException("parallel threshold must be positive: " + parallelThreshold);
+        }
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * Sets the base used by format for integers.
+     */
     public void setOutputBase(int outputBase) {
         this.outputBase = outputBase;
     }
 
-    public static int getOutputBase() {
+    public int getOutputBase() {
         return outputBase;
     }
+
+    /**
+     * Returns the string form of the given result, using this calculator's output base for integers,
+     * including those in lists, matrices, and unevaluated expressions.
+     */
+    public String format(Node value) {
+        if (value instanceof IntegerNode) {
+            return ((IntegerNode) value).toString(outputBase);
+        } else if (value instanceof RationalNode) {
+            final RationalNode rational = (RationalNode) value;
+            return "(" + rational.numerator().toString(outputBase) + "/" + rational.denominator().toString(outputBase) + ")";
+        } else if (outputBase != 10 && (value instanceof ListNode || value instanceof CalculatorFunction)) {
+            final StringBuilder result = new StringBuilder();
+            formatElement(result, value);
+            return result.toString();
+        }
+        return value.toString();
+    }
+
+    // Appends the input form of a value within a result, with integers in the output base.
+    private void formatElement(StringBuilder result, Node value) {
+        if (value instanceof IntegerNode) {
+            result.append(((IntegerNode) value).toInputString(outputBase));
+        } else if (value instanceof RationalNode) {
+            final RationalNode rational = (RationalNode) value;
+            result.append("(" + rational.numerator().toInputString(outputBase) + "/" + rational.denominator().toInputString(outputBase) + ")");
+        } else if (value instanceof ListNode) {
+            final ListNode list = (ListNode) value;
+            result.append("[");
+            for (int i = 0; i < list.size(); ++i) {
+                if (i > 0) {
+                    result.append(", ");
+                }
+                formatElement(result, list.get(i));
+            }
+            result.append("]");
+        } else if (value instanceof CalculatorFunction && ((CalculatorFunction) value).args != null && ((CalculatorFunction) value).args.size() > 0) {
+            final CalculatorFunction function = (CalculatorFunction) value;
+            result.append(function.name());
+            result.append("(");
+            for (int i = 0; i < function.args.size(); ++i) {
+                if (i > 0) {
+                    result.append(", ");
+                }
+                formatElement(result, function.args.get(i));
+            }
+            result.append(")");
+        } else {
+            result.append(value.toInputString());
+        }
+    }
 }
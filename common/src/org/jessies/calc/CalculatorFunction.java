@@ -94,6 +94,11 @@ public abstract class CalculatorFunction implements Cloneable, Node {
 
     public abstract Node apply(Calculator environment);
 
+    // Returns the index of the argument naming a variable this function binds while evaluating its other arguments, or -1.
+    int boundVariableIndex() {
+        return -1;
+    }
+
     public String name() {
         return name;
     }
@@ -42,9 +42,11 @@ public class CalculatorFunctions {
         return cmp(lhs, rhs);
     }
 
-    private static int cmp(NumberNode lhs, NumberNode rhs) {
+    static int cmp(NumberNode lhs, NumberNode rhs) {
         if (lhs instanceof IntegerNode && rhs instanceof IntegerNode) {
             return ((IntegerNode) lhs).compareTo((IntegerNode) rhs);
+        } else if (lhs instanceof BigRealNode && rhs instanceof BigRealNode) {
+            return ((BigRealNode) lhs).compareTo((BigRealNode) rhs);
         } else {
             // FIXME: what about an integer too large to be represented as a real, compared to a real?
             return lhs.toReal().compareTo(rhs.toReal());
@@ -77,6 +79,9 @@ public class CalculatorFunctions {
 
     // Returns [rowCount, columnCount], or null if 'node' is not a matrix.
     private static ListNode matrixDimensions(Node node) {
+        if (node instanceof MatrixNode) {
+            return ((MatrixNode) node).dimensions();
+        }
         // A node is a matrix if:
         // 1. it's a list..
         if (!(node instanceof ListNode)) {
@@ -104,7 +109,7 @@ public class CalculatorFunctions {
             }
         }
         int rowCount = list.size();
-        return new ListNode().add(IntegerNode.valueOf(rowCount)).add(IntegerNode.valueOf(columnCount));
+        return new ListNode.Builder().add(IntegerNode.valueOf(rowCount)).add(IntegerNode.valueOf(columnCount)).build();
     }
 
     // Returns the 'j'th element of row 'i' of 'm'.
@@ -115,7 +120,7 @@ public class CalculatorFunctions {
         return element;
     }
 
-    private enum MatrixOp {
+    enum MatrixOp {
         ADD("addition"),
         MUL("multiplication"),
         SUB("subtraction"),
@@ -126,14 +131,22 @@ public class CalculatorFunctions {
     }
 
     private static Node matrixMatrixOp(ListNode lhs, ListNode lhsDimensions, ListNode rhs, ListNode rhsDimensions, MatrixOp op) {
+        final MatrixNode lhsMatrix = MatrixNode.valueOf(lhs);
+        final MatrixNode rhsMatrix = MatrixNode.valueOf(rhs);
+        if (lhsMatrix != null && rhsMatrix != null) {
+            switch (op) {
+            case ADD: return lhsMatrix.plus(rhsMatrix);
+            case SUB: return lhsMatrix.subtract(rhsMatrix);
+            }
+        }
         if (equal(lhsDimensions, rhsDimensions) == BooleanNode.FALSE) {
             throw new CalculatorError("matrix " + op + " requires compatible matrices");
         }
         final IntegerNode rowCount = (IntegerNode) lhsDimensions.get(0);
         final IntegerNode columnCount = (IntegerNode) rhsDimensions.get(1);
-        final ListNode result = new ListNode();
+        final ListNode.Builder result = new ListNode.Builder();
         for (IntegerNode i = IntegerNode.ZERO; i.compareTo(rowCount) < 0; i = i.increment()) {
-            final ListNode newRow = new ListNode();
+            final ListNode.Builder newRow = new ListNode.Builder();
             for (IntegerNode j = IntegerNode.ZERO; j.compareTo(columnCount) < 0; j = j.increment()) {
                 Node lhsNode = matrixElementAt(lhs, i, j);
                 Node rhsNode = matrixElementAt(rhs, i, j);
@@ -148,15 +161,43 @@ public class CalculatorFunctions {
                 default: throw new CalculatorError("elementwise matrix multiplication/reverse-subtract not implemented");
                 }
             }
-            result.add(newRow);
+            result.add(newRow.build());
         }
-        return result;
+        return result.build();
+    }
+
+    // Returns lhs/rhs, as the Divide function would.
+    static NumberNode divide(Calculator environment, NumberNode lhs, NumberNode rhs) {
+        final NumberNode result = lhs.divide(rhs);
+        if (result instanceof IntegerNode || result instanceof RationalNode) {
+            return result;
+        }
+        // An inexact result from non-machine-precision arguments should be computed at the current precision.
+        final BigRealNode x = environment.toBigReal(lhs);
+        final BigRealNode y = environment.toBigReal(rhs);
+        return (x != null && y != null) ? x.divide(y) : result;
+    }
+
+    // Returns 'node' as a square numeric matrix, or throws an error on behalf of 'function'.
+    private static MatrixNode squareMatrix(String function, Node node) {
+        final MatrixNode m = (node instanceof ListNode) ? MatrixNode.valueOf((ListNode) node) : null;
+        if (m == null) {
+            throw CalculatorFunction.expected(function, "numeric matrix");
+        }
+        if (m.rowCount() != m.columnCount()) {
+            throw CalculatorFunction.expected(function, "square matrix");
+        }
+        return m;
     }
 
     private static Node matrixScalarOp(ListNode matrix, ListNode dimensions, NumberNode scalar, MatrixOp op) {
-        final ListNode result = new ListNode();
+        final MatrixNode numericMatrix = MatrixNode.valueOf(matrix);
+        if (numericMatrix != null) {
+            return numericMatrix.scalarOp(scalar, op);
+        }
+        final ListNode.Builder result = new ListNode.Builder();
         for (Node row : matrix) {
-            final ListNode newRow = new ListNode();
+            final ListNode.Builder newRow = new ListNode.Builder();
             for (Node value : (ListNode) row) {
                 if (!isNumber(value)) {
                     throw new CalculatorError(op + " of a matrix and a scalar requires numeric matrices");
@@ -169,12 +210,12 @@ public class CalculatorFunctions {
                 case SUB: newRow.add(element.subtract(scalar)); break;
                 }
             }
-            result.add(newRow);
+            result.add(newRow.build());
         }
-        return result;
+        return result.build();
     }
 
-    public static class Abs extends CalculatorFunctionN {
+    public static class Abs extends CalculatorFunctionN implements RealExpression.UnaryFunction {
         public Abs() {
             super("Abs");
         }
@@ -183,19 +224,31 @@ public class CalculatorFunctions {
             return n.abs();
         }
 
+        public double applyReal(Calculator environment, double x) {
+            return Math.abs(x);
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns the absolute value of its argument."; }
     }
 
-    public static class Acos extends CalculatorFunctionN {
+    public static class Acos extends CalculatorFunctionN implements RealExpression.UnaryFunction {
         public Acos() {
             super("acos");
         }
 
         public Node apply(Calculator environment, NumberNode n) {
+            final BigRealNode x = environment.toBigReal(n);
+            if (x != null) {
+                return environment.angleResult(x.acos());
+            }
             return environment.angleResult(n.toReal().acos());
         }
 
+        public double applyReal(Calculator environment, double x) {
+            return environment.angleResult(Math.acos(x));
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns the arc cosine (cos<sup>-1</sup>) of its argument."; }
     }
@@ -213,41 +266,66 @@ public class CalculatorFunctions {
         public String description() { return "Returns the logical and of its arguments."; }
     }
 
-    public static class Asin extends CalculatorFunctionN {
+    public static class Asin extends CalculatorFunctionN implements RealExpression.UnaryFunction {
         public Asin() {
             super("asin");
         }
 
         public Node apply(Calculator environment, NumberNode n) {
+            final BigRealNode x = environment.toBigReal(n);
+            if (x != null) {
+                return environment.angleResult(x.asin());
+            }
             return environment.angleResult(n.toReal().asin());
         }
 
+        public double applyReal(Calculator environment, double x) {
+            return environment.angleResult(Math.asin(x));
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns the arc sine (sin<sup>-1</sup>) of its argument."; }
     }
 
-    public static class Atan extends CalculatorFunctionN {
+    public static class Atan extends CalculatorFunctionN implements RealExpression.UnaryFunction {
         public Atan() {
             super("atan");
         }
 
         public Node apply(Calculator environment, NumberNode n) {
+            final BigRealNode x = environment.toBigReal(n);
+            if (x != null) {
+                return environment.angleResult(x.atan());
+            }
             return environment.angleResult(n.toReal().atan());
         }
 
+        public double applyReal(Calculator environment, double x) {
+            return environment.angleResult(Math.atan(x));
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns the arc tangent (tan<sup>-1</sup>) of its argument."; }
     }
 
-    public static class Atan2 extends CalculatorFunctionNN {
+    public static class Atan2 extends CalculatorFunctionNN implements RealExpression.BinaryFunction {
         public Atan2() {
             super("atan2");
         }
 
         public Node apply(Calculator environment, NumberNode arg1, NumberNode arg2) {
+            final BigRealNode y = environment.toBigReal(arg1);
+            final BigRealNode x = environment.toBigReal(arg2);
+            if (y != null && x != null) {
+                return environment.angleResult(y.atan2(x));
+            }
             return environment.angleResult(arg1.toReal().atan2(arg2.toReal()));
         }
 
+        public double applyReal(Calculator environment, double x, double y) {
+            return environment.angleResult(Math.atan2(x, y));
+        }
+
         public String syntax() { return "(y:Number, x:Number)"; }
         public String description() { return "Returns the principle value of <i>y/x</i>. That is, the angle when converting the cartesian coordinates (x,y) to polar form."; }
     }
@@ -396,20 +474,28 @@ public class CalculatorFunctions {
         public String description() { return "Returns 1 if the argument is true, 0 otherwise."; }
     }
 
-    public static class Cbrt extends CalculatorFunctionN {
+    public static class Cbrt extends CalculatorFunctionN implements RealExpression.UnaryFunction {
         public Cbrt() {
             super("cbrt");
         }
 
         public Node apply(Calculator environment, NumberNode n) {
+            final BigRealNode x = environment.toBigReal(n);
+            if (x != null) {
+                return x.cbrt();
+            }
             return n.toReal().cbrt();
         }
 
+        public double applyReal(Calculator environment, double x) {
+            return Math.cbrt(x);
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns the cube root of its argument."; }
     }
 
-    public static class Ceiling extends CalculatorFunctionN {
+    public static class Ceiling extends CalculatorFunctionN implements RealExpression.UnaryFunction {
         public Ceiling() {
             super("ceiling");
         }
@@ -418,32 +504,52 @@ public class CalculatorFunctions {
             return n.toReal().ceiling();
         }
 
+        public double applyReal(Calculator environment, double x) {
+            return Math.ceil(x);
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns the ceiling of its argument; the smallest integer value not less than the argument."; }
     }
 
-    public static class Cos extends CalculatorFunctionN {
+    public static class Cos extends CalculatorFunctionN implements RealExpression.UnaryFunction {
         public Cos() {
             super("cos");
         }
 
         public Node apply(Calculator environment, NumberNode n) {
+            final BigRealNode x = environment.toBigReal(n);
+            if (x != null) {
+                return environment.angleArgument(x).cos();
+            }
             return environment.angleArgument(n).cos();
         }
 
+        public double applyReal(Calculator environment, double x) {
+            return Math.cos(environment.angleArgument(x));
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns the cosine of its argument."; }
     }
 
-    public static class Cosh extends CalculatorFunctionN {
+    public static class Cosh extends CalculatorFunctionN implements RealExpression.UnaryFunction {
         public Cosh() {
             super("cosh");
         }
 
         public Node apply(Calculator environment, NumberNode n) {
+            final BigRealNode x = environment.toBigReal(n);
+            if (x != null) {
+                return x.cosh();
+            }
             return n.toReal().cosh();
         }
 
+        public double applyReal(Calculator environment, double x) {
+            return Math.cosh(x);
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns the hyperbolic cosine of its argument."; }
     }
@@ -492,14 +598,27 @@ public class CalculatorFunctions {
                 }
             }
 
-            final ListNode result = new ListNode();
+            final ListNode.Builder result = new ListNode.Builder();
             for (int count : counts) {
                 result.add(IntegerNode.valueOf(count));
             }
-            return result;
+            return result.build();
         }
     }
 
+    public static class Det extends CalculatorFunction {
+        public Det() {
+            super("Det", 1);
+        }
+
+        public Node apply(Calculator environment) {
+            return LinearAlgebra.determinant(environment, squareMatrix("Det", arg(environment, 0)));
+        }
+
+        public String syntax() { return "(Matrix)"; }
+        public String description() { return "Returns the determinant of the given square matrix."; }
+    }
+
     public static class Dimensions extends CalculatorFunction { // FIXME: CAS support.
         public Dimensions() {
             super("Dimensions", 1);
@@ -517,13 +636,17 @@ public class CalculatorFunctions {
         public String description() { return "Returns the dimensions of its argument."; }
     }
 
-    public static class Divide extends CalculatorFunctionNN {
+    public static class Divide extends CalculatorFunctionNN implements RealExpression.BinaryFunction {
         public Divide() {
             super("Divide");
         }
 
         public Node apply(Calculator environment, NumberNode lhs, NumberNode rhs) {
-            return lhs.divide(rhs);
+            return divide(environment, lhs, rhs);
+        }
+
+        public double applyReal(Calculator environment, double lhs, double rhs) {
+            return lhs / rhs;
         }
 
         public String syntax() { return "(Number, Number)"; }
@@ -556,15 +679,23 @@ public class CalculatorFunctions {
         public String description() { return "Returns true if its arguments are equal, false otherwise."; }
     }
 
-    public static class Exp extends CalculatorFunctionN {
+    public static class Exp extends CalculatorFunctionN implements RealExpression.UnaryFunction {
         public Exp() {
             super("exp");
         }
 
         public Node apply(Calculator environment, NumberNode n) {
+            final BigRealNode x = environment.toBigReal(n);
+            if (x != null) {
+                return x.exp();
+            }
             return n.toReal().exp();
         }
 
+        public double applyReal(Calculator environment, double x) {
+            return Math.exp(x);
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns <i>e<sup>n</sup></i>."; }
     }
@@ -605,7 +736,7 @@ public class CalculatorFunctions {
         public String description() { return "Returns a list containing those elements of the given list for which evaluating the given expression with the given variable bound the value returns true."; }
     }
 
-    public static class Floor extends CalculatorFunctionN {
+    public static class Floor extends CalculatorFunctionN implements RealExpression.UnaryFunction {
         public Floor() {
             super("floor");
         }
@@ -614,6 +745,10 @@ public class CalculatorFunctions {
             return n.toReal().floor();
         }
 
+        public double applyReal(Calculator environment, double x) {
+            return Math.floor(x);
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns the floor of its argument; the largest integer value not greater than the argument."; }
     }
@@ -670,15 +805,48 @@ public class CalculatorFunctions {
         public String description() { return "Returns true if <i>lhs &gt;= rhs</i>, false otherwise."; }
     }
 
-    public static class Hypot extends CalculatorFunctionNN {
+    public static class Histogram extends CalculatorFunction {
+        public Histogram() {
+            super("Histogram", 1, 2);
+        }
+
+        public Node apply(Calculator environment) {
+            final ListNode list = toList("Histogram", environment, args.get(0));
+            final int binCount;
+            if (args.size() == 2) {
+                final IntegerNode n = toInteger("Histogram", environment, args.get(1));
+                binCount = (n.compareTo(IntegerNode.valueOf(MAX_BIN_COUNT)) > 0) ? MAX_BIN_COUNT : n.intValue();
+            } else {
+                binCount = Statistics.defaultBinCount(list);
+            }
+            return Statistics.histogram("Histogram", list, binCount);
+        }
+
+        // More bins than this wouldn't be any use, and would just waste memory.
+        private static final int MAX_BIN_COUNT = 100000;
+
+        public String syntax() { return "(List, binCount:Integer = ceil(log2(n)) + 1)"; }
+        public String description() { return "Returns [lowerBound, count] for each of <i>binCount</i> bins of equal width, covering the given list."; }
+    }
+
+    public static class Hypot extends CalculatorFunctionNN implements RealExpression.BinaryFunction {
         public Hypot() {
             super("hypot");
         }
 
         public Node apply(Calculator environment, NumberNode arg1, NumberNode arg2) {
+            final BigRealNode x = environment.toBigReal(arg1);
+            final BigRealNode y = environment.toBigReal(arg2);
+            if (x != null && y != null) {
+                return x.hypot(y);
+            }
             return arg1.toReal().hypot(arg2.toReal());
         }
 
+        public double applyReal(Calculator environment, double x, double y) {
+            return Math.hypot(x, y);
+        }
+
         public String syntax() { return "(x:Number, y:Number)"; }
         public String description() { return "Returns <i>sqrt(x<sup>2</sup> + y<sup>2</sup>)</i>."; }
     }
@@ -689,15 +857,21 @@ public class CalculatorFunctions {
         }
 
         public Node apply(Calculator environment, IntegerNode dimension) {
-            final ListNode result = new ListNode();
+            if (dimension.compareTo(IntegerNode.ONE) >= 0) {
+                if (dimension.compareTo(IntegerNode.valueOf(Integer.MAX_VALUE)) > 0) {
+                    throw new CalculatorError("can't make a " + dimension + "x" + dimension + " matrix");
+                }
+                return MatrixNode.identity(dimension.intValue());
+            }
+            final ListNode.Builder result = new ListNode.Builder();
             for (IntegerNode i = IntegerNode.ONE; i.compareTo(dimension) <= 0; i = i.increment()) {
-                final ListNode row = new ListNode();
+                final ListNode.Builder row = new ListNode.Builder();
                 for (IntegerNode j = IntegerNode.ONE; j.compareTo(dimension) <= 0; j = j.increment()) {
                     row.add(j.compareTo(i) == 0 ? IntegerNode.ONE : IntegerNode.ZERO);
                 }
-                result.add(row);
+                result.add(row.build());
             }
-            return result;
+            return result.build();
         }
 
         public String syntax() { return "(dimension:Integer)"; }
@@ -737,6 +911,19 @@ public class CalculatorFunctions {
         public String description() { return "Returns the integer part of its argument."; }
     }
 
+    public static class Inverse extends CalculatorFunction {
+        public Inverse() {
+            super("Inverse", 1);
+        }
+
+        public Node apply(Calculator environment) {
+            return LinearAlgebra.inverse(environment, squareMatrix("Inverse", arg(environment, 0)));
+        }
+
+        public String syntax() { return "(Matrix)"; }
+        public String description() { return "Returns the inverse of the given square matrix."; }
+    }
+
     public static class IsMatrix extends CalculatorFunction { // FIXME: CAS support.
         public IsMatrix() {
             super("IsMatrix", 1);
@@ -819,6 +1006,41 @@ public class CalculatorFunctions {
         public String description() { return "Returns true if <i>lhs &lt;= rhs</i>, false otherwise."; }
     }
 
+    public static class LinearSolve extends CalculatorFunction {
+        public LinearSolve() {
+            super("LinearSolve", 2);
+        }
+
+        public Node apply(Calculator environment) {
+            final MatrixNode a = squareMatrix("LinearSolve", arg(environment, 0));
+            final Node rhs = arg(environment, 1);
+            if (!(rhs instanceof ListNode)) {
+                throw expected("LinearSolve", "vector or matrix");
+            }
+            final MatrixNode b = MatrixNode.valueOf((ListNode) rhs);
+            if (b != null) {
+                checkRowCount(a, b.rowCount());
+                return LinearAlgebra.solve(environment, a, b);
+            }
+            // A vector right-hand side is treated as a column, and gives a vector result.
+            final MatrixNode row = MatrixNode.valueOf(new ListNode.Builder().add(rhs).build());
+            if (row == null) {
+                throw expected("LinearSolve", "numeric vector or matrix");
+            }
+            checkRowCount(a, row.columnCount());
+            return LinearAlgebra.solve(environment, a, row.transpose()).transpose().get(0);
+        }
+
+        private static void checkRowCount(MatrixNode a, int rowCount) {
+            if (rowCount != a.rowCount()) {
+                throw new CalculatorError("'LinearSolve' requires a right-hand side with as many rows as the matrix");
+            }
+        }
+
+        public String syntax() { return "(Matrix, b:Vector or Matrix)"; }
+        public String description() { return "Returns the solution <i>x</i> of <i>Matrix</i>*<i>x</i> = <i>b</i>."; }
+    }
+
     // We call this ListBuilder because reusing the name List in Java is just too confusing.
     public static class ListBuilder extends CalculatorFunction {
         public ListBuilder() {
@@ -826,11 +1048,11 @@ public class CalculatorFunctions {
         }
 
         public Node apply(Calculator environment) {
-            final ListNode result = new ListNode();
+            final ListNode.Builder result = new ListNode.Builder();
             for (Node arg : args) {
                 result.add(arg.evaluate(environment));
             }
-            return result;
+            return result.build();
         }
 
         public String syntax() { return "(Expression...)"; }
@@ -838,54 +1060,87 @@ public class CalculatorFunctions {
     }
 
     // log(base, n).
-    public static class Log extends CalculatorFunctionNN {
+    public static class Log extends CalculatorFunctionNN implements RealExpression.BinaryFunction {
         public Log() {
             super("log");
         }
 
         public Node apply(Calculator environment, NumberNode base, NumberNode n) {
+            final BigRealNode x = environment.toBigReal(n);
+            final BigRealNode b = environment.toBigReal(base);
+            if (x != null && b != null) {
+                return x.log(b);
+            }
             return n.toReal().log(base.toReal());
         }
 
+        public double applyReal(Calculator environment, double base, double n) {
+            return Math.log(n) / Math.log(base);
+        }
+
         public String syntax() { return "(base:Number, n:Number)"; }
         public String description() { return "Returns <i>log<sub>base</sub>(n)</i>."; }
     }
 
-    public static class Log2 extends CalculatorFunctionN {
+    public static class Log2 extends CalculatorFunctionN implements RealExpression.UnaryFunction {
         public Log2() {
             super("log2");
         }
 
         public Node apply(Calculator environment, NumberNode n) {
+            final BigRealNode x = environment.toBigReal(n);
+            if (x != null) {
+                return x.log2();
+            }
             return n.toReal().log2();
         }
 
+        public double applyReal(Calculator environment, double x) {
+            return Math.log(x) / Math.log(2.0);
+        }
+
         public String syntax() { return "(n:Number)"; }
         public String description() { return "Returns <i>log<sub>2</sub>(n)</i>."; }
     }
 
-    public static class LogE extends CalculatorFunctionN {
+    public static class LogE extends CalculatorFunctionN implements RealExpression.UnaryFunction {
         public LogE() {
             super("logE");
         }
 
         public Node apply(Calculator environment, NumberNode n) {
+            final BigRealNode x = environment.toBigReal(n);
+            if (x != null) {
+                return x.logE();
+            }
             return n.toReal().logE();
         }
 
+        public double applyReal(Calculator environment, double x) {
+            return Math.log(x);
+        }
+
         public String syntax() { return "(n:Number)"; }
         public String description() { return "Returns <i>log<sub>e</sub>(n)</i>."; }
     }
 
-    public static class Log10 extends CalculatorFunctionN {
+    public static class Log10 extends CalculatorFunctionN implements RealExpression.UnaryFunction {
         public Log10() {
             super("log10");
         }
 
         public Node apply(Calculator environment, NumberNode n) {
+            final BigRealNode x = environment.toBigReal(n);
+            if (x != null) {
+                return x.log10();
+            }
             return n.toReal().log10();
         }
 
+        public double applyReal(Calculator environment, double x) {
+            return Math.log10(x);
+        }
+
         public String syntax() { return "(n:Number)"; }
         public String description() { return "Returns <i>log<sub>10</sub>(n)</i>."; }
     }
@@ -908,6 +1163,10 @@ public class CalculatorFunctions {
             this.isMap = isMap;
         }
 
+        @Override int boundVariableIndex() {
+            return 1;
+        }
+
         public Node apply(Calculator environment) {
             final Node expr = args.get(0);
             final CalculatorVariableNode var = toVariable(name(), args.get(1));
@@ -921,26 +1180,46 @@ public class CalculatorFunctions {
             }
 
             final ListNode list = (ListNode) maybeList;
-            final Node originalVarValue = environment.getVariable(var.name());
-            try {
-                final ListNode result = new ListNode();
-                for (int i = 0; i < list.size(); ++i) {
-                    environment.setVariable(var.name(), list.get(i));
-                    Node value = expr.evaluate(environment);
-                    if (isMap) {
-                        result.add(value);
-                    } else  if (value == BooleanNode.TRUE) {
-                        result.add(list.get(i));
-                    }
+            final CompiledExpression compiledExpr = new CompiledExpression(environment, expr, var.name());
+            if (!Parallel.shouldRunInParallel(environment, list.size())) {
+                return apply(environment, compiledExpr, list, 0, list.size());
+            }
+            final List<ListNode> parts = Parallel.run(environment, list.size(), new Parallel.Chunk<ListNode>() {
+                public ListNode run(Calculator scope, long start, long end) {
+                    return apply(scope, compiledExpr, list, (int) start, (int) end);
+                }
+            });
+            int resultSize = 0;
+            for (ListNode part : parts) {
+                resultSize += part.size();
+            }
+            final ListNode.Builder result = new ListNode.Builder(resultSize);
+            for (ListNode part : parts) {
+                for (Node value : part) {
+                    result.add(value);
                 }
-                return result;
-            } finally {
-                environment.setVariable(var.name(), originalVarValue);
             }
+            return result.build();
+        }
+
+        // Maps or filters the elements [start, end) of 'list' on the current thread.
+        private ListNode apply(Calculator environment, CompiledExpression compiledExpr, ListNode list, int start, int end) {
+            final Node[] values = new Node[1];
+            final ListNode.Builder result = isMap ? new ListNode.Builder(end - start) : new ListNode.Builder();
+            for (int i = start; i < end; ++i) {
+                values[0] = list.get(i);
+                Node value = compiledExpr.evaluate(environment, values);
+                if (isMap) {
+                    result.add(value);
+                } else  if (value == BooleanNode.TRUE) {
+                    result.add(list.get(i));
+                }
+            }
+            return result.build();
         }
     }
 
-    public static class Max extends CalculatorFunctionNN {
+    public static class Max extends CalculatorFunctionNN implements RealExpression.BinaryFunction {
         public Max() {
             super("Max");
         }
@@ -949,11 +1228,41 @@ public class CalculatorFunctions {
             return cmp(lhs, rhs) >= 0 ? lhs : rhs;
         }
 
+        public double applyReal(Calculator environment, double lhs, double rhs) {
+            return Double.compare(lhs, rhs) >= 0 ? lhs : rhs;
+        }
+
         public String syntax() { return "(Number, Number)"; }
         public String description() { return "Returns the greater of its arguments."; }
     }
 
-    public static class Min extends CalculatorFunctionNN {
+    public static class Mean extends CalculatorFunctionL {
+        public Mean() {
+            super("Mean");
+        }
+
+        public Node apply(Calculator environment, ListNode list) {
+            return Statistics.mean(environment, "Mean", list);
+        }
+
+        public String syntax() { return "(List)"; }
+        public String description() { return "Returns the arithmetic mean of the given list."; }
+    }
+
+    public static class Median extends CalculatorFunctionL {
+        public Median() {
+            super("Median");
+        }
+
+        public Node apply(Calculator environment, ListNode list) {
+            return Statistics.median(environment, "Median", list);
+        }
+
+        public String syntax() { return "(List)"; }
+        public String description() { return "Returns the median of the given list, or the mean of the middle two elements if the list has an even length."; }
+    }
+
+    public static class Min extends CalculatorFunctionNN implements RealExpression.BinaryFunction {
         public Min() {
             super("Min");
         }
@@ -962,6 +1271,10 @@ public class CalculatorFunctions {
             return cmp(lhs, rhs) < 0 ? lhs : rhs;
         }
 
+        public double applyReal(Calculator environment, double lhs, double rhs) {
+            return Double.compare(lhs, rhs) < 0 ? lhs : rhs;
+        }
+
         public String syntax() { return "(Number, Number)"; }
         public String description() { return "Returns the lesser of its arguments."; }
     }
@@ -971,6 +1284,22 @@ public class CalculatorFunctions {
             super("Mod");
         }
 
+        @Override public Node apply(Calculator environment) {
+            // Mod(a^b, m) reduces as it goes rather than computing a^b in full, which could exhaust memory.
+            if (args.get(0) instanceof Power) {
+                final List<Node> powerArgs = ((Power) args.get(0)).args;
+                final Node base = powerArgs.get(0).evaluate(environment);
+                final Node exponent = powerArgs.get(1).evaluate(environment);
+                final IntegerNode modulus = toInteger(name(), environment, args.get(1));
+                if (base instanceof IntegerNode && exponent instanceof IntegerNode && ((IntegerNode) exponent).compareTo(IntegerNode.ZERO) >= 0) {
+                    return ((IntegerNode) base).powerMod((IntegerNode) exponent, modulus);
+                }
+                final IntegerNode lhs = toInteger(name(), environment, ((Power) args.get(0)).bind(base, exponent));
+                return apply(environment, lhs, modulus);
+            }
+            return super.apply(environment);
+        }
+
         public Node apply(Calculator environment, IntegerNode lhs, IntegerNode rhs) {
             return lhs.mod(rhs);
         }
@@ -979,6 +1308,19 @@ public class CalculatorFunctions {
         public String description() { return "Returns <i>lhs % rhs</i>."; }
     }
 
+    public static class ModInverse extends CalculatorFunctionII {
+        public ModInverse() {
+            super("ModInverse");
+        }
+
+        public Node apply(Calculator environment, IntegerNode a, IntegerNode m) {
+            return a.modInverse(m);
+        }
+
+        public String syntax() { return "(a:Integer, m:Integer)"; }
+        public String description() { return "Returns the <i>x</i> between 0 and <i>m</i> for which <i>a*x % m</i> is 1."; }
+    }
+
     public static class nCr extends CalculatorFunctionII {
         public nCr() {
             super("nCr");
@@ -986,15 +1328,30 @@ public class CalculatorFunctions {
 
         public Node apply(Calculator environment, IntegerNode lhs, IntegerNode rhs) {
             // nCr(n,r) := n!/(r! * (n-r)!)
-            IntegerNode n = lhs;
-            IntegerNode r = rhs;
-            return n.factorial().divide(r.factorial().times(((IntegerNode) n.subtract(r)).factorial()));
+            checkCombinatoricsArgument(name(), lhs);
+            if (rhs.compareTo(IntegerNode.ZERO) < 0 || rhs.compareTo(lhs) > 0) {
+                return IntegerNode.ZERO;
+            }
+            return IntegerNode.valueOf(Combinatorics.binomial((int) lhs.fix(), (int) rhs.fix()));
         }
 
         public String syntax() { return "(n:Integer, r:Integer)"; }
         public String description() { return "Returns the number of combinations of n from r, <i>nCr(n, r)</i>, defined as <i>n!/(r! * (n-r)!)</i>."; }
     }
 
+    public static class NextPrime extends CalculatorFunctionI {
+        public NextPrime() {
+            super("NextPrime");
+        }
+
+        public Node apply(Calculator environment, IntegerNode n) {
+            return IntegerNode.valueOf(PrimeSieve.nextPrime(n.big()));
+        }
+
+        public String syntax() { return "(n:Integer)"; }
+        public String description() { return "Returns the smallest prime greater than <i>n</i>."; }
+    }
+
     public static class Not extends CalculatorFunctionZ {
         public Not() {
             super("Not");
@@ -1015,9 +1372,11 @@ public class CalculatorFunctions {
 
         public Node apply(Calculator environment, IntegerNode lhs, IntegerNode rhs) {
             // nPr(n,r) := n!/(n-r)!
-            IntegerNode n = lhs;
-            IntegerNode r = rhs;
-            return n.factorial().divide(((IntegerNode) n.subtract(r)).factorial());
+            checkCombinatoricsArgument(name(), lhs);
+            if (rhs.compareTo(IntegerNode.ZERO) < 0 || rhs.compareTo(lhs) > 0) {
+                return IntegerNode.ZERO;
+            }
+            return IntegerNode.valueOf(Combinatorics.permutations((int) lhs.fix(), (int) rhs.fix()));
         }
 
         public String syntax() { return "(n:Integer, r:Integer)"; }
@@ -1037,71 +1396,105 @@ public class CalculatorFunctions {
         public String description() { return "Returns the logical or of its arguments."; }
     }
 
+    public static class ParametricPlot extends CalculatorFunction {
+        public ParametricPlot() {
+            super("ParametricPlot", 4);
+        }
+
+        @Override int boundVariableIndex() {
+            return 1;
+        }
+
+        public String syntax() { return "([x, y] or List of [x, y], Variable, tMin:Number, tMax:Number)"; }
+        public String description() { return "Plots the curve through the points (x, y), or each of a list of curves, as the variable goes from tMin to tMax."; }
+
+        public Node apply(Calculator environment) {
+            // Example: ParametricPlot([cos(t), sin(t)], t, 0, 2*pi)
+            // Example: ParametricPlot([[cos(t), sin(t)], [2*cos(t), sin(t)]], t, 0, 2*pi)
+            List<Node> curves = plotCurves(args.get(0));
+            if (curves.size() == 0 || !(curves.get(0) instanceof ListNode)) {
+                curves = Collections.singletonList(args.get(0));
+            }
+            final ArrayList<Node> expressions = new ArrayList<Node>();
+            for (Node curve : curves) {
+                if (!(curve instanceof ListNode) || ((ListNode) curve).size() != 2) {
+                    throw expected("ParametricPlot", "[x, y]");
+                }
+                expressions.add(((ListNode) curve).get(0));
+                expressions.add(((ListNode) curve).get(1));
+            }
+            return plot("ParametricPlot", environment, args, expressions, true);
+        }
+    }
+
     public static class Plot extends CalculatorFunction {
         public Plot() {
             super("Plot", 4);
         }
 
-        public String syntax() { return "(Expression, Variable, xMin:Number, xMax:Number)"; }
-        public String description() { return "Plots the given expression."; }
+        @Override int boundVariableIndex() {
+            return 1;
+        }
 
-        public Node apply(Calculator environment) {
-            CalculatorPlotter plotter = environment.getPlotter();
-            if (plotter == null) {
-                throw new CalculatorError("this system is not capable of plotting");
-            }
+        public String syntax() { return "(Expression or List, Variable, xMin:Number, xMax:Number)"; }
+        public String description() { return "Plots the given expression, or each of a list of expressions."; }
 
-            // 0: expression
+        public Node apply(Calculator environment) {
+            // 0: expression, or list of expressions
             // 1: variable
             // 2: xMin
             // 3: xMax
             // Example: plot(sin(x), x, 0, 2*pi)
+            // Example: plot([sin(x), cos(x)], x, 0, 2*pi)
             // FIXME: automatic guesses? (trig => pi? differentiate to find minima? solve to find axis crossings?).
+            return plot("Plot", environment, args, plotCurves(args.get(0)), false);
+        }
+    }
 
-            final Node expression = args.get(0);
-            final CalculatorVariableNode variable = toVariable("Plot", args.get(1));
-            final RealNode xMin = toNumber("Plot", environment, args.get(2)).toReal();
-            final RealNode xMax = toNumber("Plot", environment, args.get(3)).toReal();
-
-            final int pixelWidth = 300;
-            CalculatorPlotData plotData = new CalculatorPlotData(pixelWidth, xMin, xMax);
-
-            try {
-                Node free = variable.evaluate(environment);
-                throw new CalculatorError("variable '" + variable.name() + "' is not free");
-            } catch (CalculatorError ex) {
-                // That's what we hoped...
-            }
-            final String variableName = variable.name();
-            try {
-                double x = plotData.xMin;
-                double xStep = plotData.xRange / pixelWidth;
-                for (int i = 0; i < pixelWidth; ++i) {
-                    try {
-                        environment.setVariable(variableName, new RealNode(x));
-                        double y = Double.parseDouble(expression.evaluate(environment).toString());
-                        if (Double.isInfinite(y)) {
-                            y = Double.NaN; // Infinity confuses the range calculations.
-                        }
-                        plotData.data[i] = y;
-                    } catch (Exception ex) {
-                        ex.printStackTrace();
-                        plotData.data[i] = Double.NaN;
-                    }
-                    x += xStep;
-                }
-            } finally {
-                environment.setVariable(variableName, null);
-            }
+    // Returns the curves to plot: the elements of a list, or just the one expression.
+    private static List<Node> plotCurves(Node node) {
+        if (!(node instanceof ListNode)) {
+            return Collections.singletonList(node);
+        }
+        final ArrayList<Node> result = new ArrayList<Node>();
+        for (Node element : (ListNode) node) {
+            result.add(element);
+        }
+        return result;
+    }
 
-            plotData.calculateRange();
-            plotter.showPlot(plotData);
+    // Samples the given expressions as functions of the variable args[1] from args[2] to args[3], and shows the plot.
+    // If isParametric is true, the expressions are pairs of x and y; otherwise, each is the y of a curve.
+    private static Node plot(String name, Calculator environment, List<Node> args, List<Node> expressions, boolean isParametric) {
+        CalculatorPlotter plotter = environment.getPlotter();
+        if (plotter == null) {
+            throw new CalculatorError("this system is not capable of plotting");
+        }
 
-            return BooleanNode.TRUE; // FIXME: "void"?
+        final CalculatorVariableNode variable = CalculatorFunction.toVariable(name, args.get(1));
+        final RealNode tMin = CalculatorFunction.toNumber(name, environment, args.get(2)).toReal();
+        final RealNode tMax = CalculatorFunction.toNumber(name, environment, args.get(3)).toReal();
+        if (expressions.size() == 0) {
+            throw CalculatorFunction.expected(name, "non-empty list");
+        }
+
+        try {
+            Node free = variable.evaluate(environment);
+            throw new CalculatorError("variable '" + variable.name() + "' is not free");
+        } catch (CalculatorError ex) {
+            // That's what we hoped...
         }
+        final CompiledExpression[] compiledExpressions = new CompiledExpression[expressions.size()];
+        for (int i = 0; i < compiledExpressions.length; ++i) {
+            compiledExpressions[i] = new CompiledExpression(environment, expressions.get(i), variable.name());
+        }
+        final PlotSampler sampler = new PlotSampler(environment, compiledExpressions, isParametric, tMin.doubleValue(), tMax.doubleValue());
+        plotter.showPlot(sampler.sample(tMin, tMax));
+
+        return BooleanNode.TRUE; // FIXME: "void"?
     }
 
-    public static class Plus extends CalculatorFunction { // FIXME: CAS support.
+    public static class Plus extends CalculatorFunction implements RealExpression.BinaryFunction { // FIXME: CAS support.
         public Plus() {
             super("Plus", 2);
         }
@@ -1151,34 +1544,140 @@ public class CalculatorFunctions {
             return bind(args);
         }
 
+        public double applyReal(Calculator environment, double lhs, double rhs) {
+            return lhs + rhs;
+        }
+
         public String syntax() { return "(Value, Value)"; }
         public String description() { return "Returns the sum of its arguments."; }
     }
 
-    public static class Power extends CalculatorFunctionNN {
+    public static class PolarPlot extends CalculatorFunction {
+        public PolarPlot() {
+            super("PolarPlot", 4);
+        }
+
+        @Override int boundVariableIndex() {
+            return 1;
+        }
+
+        public String syntax() { return "(Expression or List, Variable, min:Number, max:Number)"; }
+        public String description() { return "Plots the curve whose distance from the origin at each angle is given by the expression, or each of a list of curves."; }
+
+        public Node apply(Calculator environment) {
+            // Example: PolarPlot(1 + cos(t), t, 0, 2*pi)
+            // We plot (r cos t, r sin t), which evaluates r only once per t.
+            final Node angle = args.get(1);
+            final ArrayList<Node> expressions = new ArrayList<Node>();
+            for (Node r : plotCurves(args.get(0))) {
+                expressions.add(new Times().bind(r, new Cos().bind(angle)));
+                expressions.add(new Times().bind(r, new Sin().bind(angle)));
+            }
+            return plot("PolarPlot", environment, args, expressions, true);
+        }
+    }
+
+    public static class Power extends CalculatorFunctionNN implements RealExpression.BinaryFunction {
         public Power() {
             super("power");
         }
 
         public Node apply(Calculator environment, NumberNode lhs, NumberNode rhs) {
-            return lhs.power(rhs);
+            final NumberNode result = lhs.power(rhs);
+            if (result instanceof IntegerNode || result instanceof RationalNode) {
+                return result;
+            }
+            // An inexact result from non-machine-precision arguments should be computed at the current precision.
+            final BigRealNode x = environment.toBigReal(lhs);
+            final BigRealNode y = environment.toBigReal(rhs);
+            return (x != null && y != null) ? x.power(y) : result;
+        }
+
+        public double applyReal(Calculator environment, double lhs, double rhs) {
+            return Math.pow(lhs, rhs);
         }
 
         public String syntax() { return "(x:Number, y:Number)"; }
         public String description() { return "Returns <i>x<sup>y</sup></i>."; }
     }
 
+    public static class PowerMod extends CalculatorFunction {
+        public PowerMod() {
+            super("PowerMod", 3);
+        }
+
+        public Node apply(Calculator environment) {
+            final IntegerNode a = toInteger(name(), environment, arg(environment, 0));
+            final IntegerNode b = toInteger(name(), environment, arg(environment, 1));
+            final IntegerNode m = toInteger(name(), environment, arg(environment, 2));
+            return a.powerMod(b, m);
+        }
+
+        public String syntax() { return "(a:Integer, b:Integer, m:Integer)"; }
+        public String description() { return "Returns <i>a<sup>b</sup> % m</i> without computing <i>a<sup>b</sup></i> in full. A negative <i>b</i> uses the inverse of <i>a</i> modulo <i>m</i>."; }
+    }
+
+    public static class Prime extends CalculatorFunctionI {
+        public Prime() {
+            super("Prime");
+        }
+
+        public Node apply(Calculator environment, IntegerNode k) {
+            if (k.isBig()) {
+                throw new CalculatorError("'Prime' argument too large");
+            }
+            return IntegerNode.valueOf(PrimeSieve.prime(k.fix()));
+        }
+
+        public String syntax() { return "(k:Integer)"; }
+        public String description() { return "Returns the <i>k</i>th prime, where Prime(1) is 2."; }
+    }
+
+    public static class PrimePi extends CalculatorFunctionI {
+        public PrimePi() {
+            super("PrimePi");
+        }
+
+        public Node apply(Calculator environment, IntegerNode n) {
+            if (n.isBig()) {
+                throw new CalculatorError("'PrimePi' argument too large");
+            }
+            return IntegerNode.valueOf(PrimeSieve.primePi(n.fix()));
+        }
+
+        public String syntax() { return "(n:Integer)"; }
+        public String description() { return "Returns the number of primes less than or equal to <i>n</i>."; }
+    }
+
     public static class Product extends CalculatorFunction { // FIXME: CAS support.
         public Product() {
             super("product", 4);
         }
 
+        @Override int boundVariableIndex() {
+            return 1;
+        }
+
         public Node apply(Calculator environment) {
             return series(name(), environment, args, IntegerNode.ONE, false);
         }
 
-        public String syntax() { return "(Expression, Variable, min:Number, max:Number)"; }
-        public String description() { return "Returns the product of the results of evaluating the given expression with the given variable bound to each value from min to max."; }
+        public String syntax() { return "(Expression, Variable, min:Number, max:Number or Infinity)"; }
+        public String description() { return "Returns the product of the results of evaluating the given expression with the given variable bound to each value from min to max. Infinite products are accelerated, and computed in machine precision."; }
+    }
+
+    public static class Quantile extends CalculatorFunction {
+        public Quantile() {
+            super("Quantile", 2);
+        }
+
+        public Node apply(Calculator environment) {
+            final ListNode list = toList("Quantile", environment, args.get(0));
+            return Statistics.quantile("Quantile", list, arg(environment, 1));
+        }
+
+        public String syntax() { return "(List, q:Number or List)"; }
+        public String description() { return "Returns the element <i>q</i> of the way through the sorted list (or a list of such elements, given a list of <i>q</i>s)."; }
     }
 
     public static class Random extends CalculatorFunction {
@@ -1232,7 +1731,14 @@ public class CalculatorFunctions {
                 throw new CalculatorError("need a non-zero step size");
             }
 
-            final ListNode result = new ListNode();
+            if (start instanceof IntegerNode && step instanceof IntegerNode) {
+                final RangeNode range = RangeNode.valueOf((IntegerNode) start, end, (IntegerNode) step);
+                if (range != null) {
+                    return range;
+                }
+            }
+
+            final ListNode.Builder result = new ListNode.Builder();
             if (cmp(stepSign, IntegerNode.ZERO) > 0) {
                 for (NumberNode i = start; cmp(i, end) <= 0; i = i.plus(step)) {
                     result.add(i);
@@ -1242,7 +1748,7 @@ public class CalculatorFunctions {
                     result.add(i);
                 }
             }
-            return result;
+            return result.build();
         }
     }
 
@@ -1259,7 +1765,7 @@ public class CalculatorFunctions {
         public String description() { return "Returns a list containing all the elements of the given list, but in reverse order."; }
     }
 
-    public static class Round extends CalculatorFunctionN {
+    public static class Round extends CalculatorFunctionN implements RealExpression.UnaryFunction {
         public Round() {
             super("round");
         }
@@ -1268,16 +1774,34 @@ public class CalculatorFunctions {
             return n.toReal().round();
         }
 
+        public double applyReal(Calculator environment, double x) {
+            return Math.round(x);
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns its argument rounded to the nearest integer, away from zero."; }
     }
 
+    // Checks the n of nCr or nPr. Any r outside [0, n] simply gives 0.
+    private static void checkCombinatoricsArgument(String name, IntegerNode n) {
+        if (n.compareTo(IntegerNode.ZERO) < 0) {
+            throw new CalculatorError("'" + name + "' requires a non-negative n");
+        } else if (n.isBig() || n.fix() > Combinatorics.MAX_ARGUMENT) {
+            throw new CalculatorError("'" + name + "' argument " + n + " too large");
+        }
+    }
+
     private static NumberNode series(String name, Calculator environment, List<Node> args, IntegerNode initial, boolean isSum) {
         final Node expr = args.get(0);
         final CalculatorVariableNode var = CalculatorFunction.toVariable(name, args.get(1));
         NumberNode iMin = CalculatorFunction.toNumber(name, environment, args.get(2));
         NumberNode iMax = CalculatorFunction.toNumber(name, environment, args.get(3));
 
+        if (iMax instanceof RealNode && ((RealNode) iMax).doubleValue() == Double.POSITIVE_INFINITY) {
+            final CompiledExpression compiledExpr = new CompiledExpression(environment, expr, var.name());
+            return InfiniteSeries.evaluate(name, environment, compiledExpr, iMin, isSum);
+        }
+
         // Ensure we have two integers or two reals.
         if (iMin instanceof RealNode || iMax instanceof RealNode) {
             iMin = iMin.toReal();
@@ -1288,29 +1812,73 @@ public class CalculatorFunctions {
             throw new CalculatorError("minimum (" + iMin + ") greater than maximum (" + iMax + ")");
         }
 
-        // FIXME: support infinite sums/products, adding convergence testing.
+        final CompiledExpression compiledExpr = new CompiledExpression(environment, expr, var.name());
+        final IntegerNode span = iMax.subtract(iMin).integerPart();
+        if (!span.isBig() && span.fix() < Long.MAX_VALUE && Parallel.shouldRunInParallel(environment, span.fix() + 1)) {
+            return parallelSeries(environment, compiledExpr, initial, iMin, span.fix() + 1, isSum);
+        }
+        return series(environment, compiledExpr, initial, iMin, iMax, isSum);
+    }
 
-        // FIXME: let the user specify the sum variable.
-        final Node originalVarValue = environment.getVariable(var.name());
-        try {
-            NumberNode result = initial;
-            for (NumberNode i = iMin; cmp(i, iMax) <= 0; i = i.increment()) {
-                environment.setVariable(var.name(), i);
-                // FIXME: handle undefined and non-numeric terms.
-                final NumberNode term = (NumberNode) expr.evaluate(environment);
-                if (isSum) {
-                    result = result.plus(term);
-                } else {
-                    result = result.times(term);
-                }
+    private static NumberNode parallelSeries(Calculator environment, final CompiledExpression compiledExpr, final IntegerNode initial, final NumberNode iMin, long count, final boolean isSum) {
+        final List<NumberNode> parts = Parallel.run(environment, count, new Parallel.Chunk<NumberNode>() {
+            public NumberNode run(Calculator scope, long start, long end) {
+                final NumberNode first = iMin.plus(IntegerNode.valueOf(start));
+                final NumberNode last = iMin.plus(IntegerNode.valueOf(end - 1));
+                return series(scope, compiledExpr, initial, first, last, isSum);
+            }
+        });
+        return Parallel.reduce(parts, isSum);
+    }
+
+    // Sums or multiplies the terms for iMin, iMin+1, ... iMax on the current thread.
+    private static NumberNode series(Calculator environment, CompiledExpression compiledExpr, NumberNode initial, NumberNode iMin, NumberNode iMax, boolean isSum) {
+        final Node[] values = new Node[1];
+        NumberNode result = initial;
+        NumberNode i = iMin;
+        for (; cmp(i, iMax) <= 0; i = i.increment()) {
+            if (result instanceof RealNode && compiledExpr.isReal() && isExactDouble(i) && isExactDouble(iMax)) {
+                // Once the result is inexact, it can't become exact again, so we may as well switch to doubles.
+                return realSeries(environment, compiledExpr, ((RealNode) result).doubleValue(), i, iMax, isSum);
+            }
+            // FIXME: handle undefined and non-numeric terms.
+            values[0] = i;
+            final NumberNode term = (NumberNode) compiledExpr.evaluate(environment, values);
+            if (isSum) {
+                result = result.plus(term);
+            } else {
+                result = result.times(term);
             }
-            return result;
-        } finally {
-            environment.setVariable(var.name(), originalVarValue);
         }
+        return result;
+    }
+
+    // Tests whether counting up in steps of 1 from 'n' is exact in double arithmetic.
+    private static boolean isExactDouble(NumberNode n) {
+        return cmp(n, IntegerNode.valueOf(1L << 53)) < 0 && cmp(n, IntegerNode.valueOf(-(1L << 53))) > 0;
+    }
+
+    private static NumberNode realSeries(Calculator environment, CompiledExpression expr, double result, NumberNode iMin, NumberNode iMax, boolean isSum) {
+        final double first = iMin.toReal().doubleValue();
+        final double last = iMax.toReal().doubleValue();
+        final double[] values = new double[1];
+        if (isSum) {
+            final RealSum sum = new RealSum(environment.getSummation());
+            sum.add(result);
+            for (double i = first; i <= last; i += 1.0) {
+                values[0] = i;
+                sum.add(expr.evaluateReal(environment, values));
+            }
+            return new RealNode(sum.doubleValue());
+        }
+        for (double i = first; i <= last; i += 1.0) {
+            values[0] = i;
+            result *= expr.evaluateReal(environment, values);
+        }
+        return new RealNode(result);
     }
 
-    public static class Sign extends CalculatorFunctionN {
+    public static class Sign extends CalculatorFunctionN implements RealExpression.UnaryFunction {
         public Sign() {
             super("Sign");
         }
@@ -1319,50 +1887,91 @@ public class CalculatorFunctions {
             return n.sign();
         }
 
+        public double applyReal(Calculator environment, double x) {
+            return (long) Math.signum(x);
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns 0 if the argument is zero, 1 if the argument is greater than 0, or -1 if the argument is less than 0."; }
     }
 
-    public static class Sin extends CalculatorFunctionN {
+    public static class Sin extends CalculatorFunctionN implements RealExpression.UnaryFunction {
         public Sin() {
             super("sin");
         }
 
         public Node apply(Calculator environment, NumberNode n) {
+            final BigRealNode x = environment.toBigReal(n);
+            if (x != null) {
+                return environment.angleArgument(x).sin();
+            }
             return environment.angleArgument(n).sin();
         }
 
+        public double applyReal(Calculator environment, double x) {
+            return Math.sin(environment.angleArgument(x));
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns the sine of its argument."; }
     }
 
-    public static class Sinh extends CalculatorFunctionN {
+    public static class Sinh extends CalculatorFunctionN implements RealExpression.UnaryFunction {
         public Sinh() {
             super("sinh");
         }
 
         public Node apply(Calculator environment, NumberNode n) {
+            final BigRealNode x = environment.toBigReal(n);
+            if (x != null) {
+                return x.sinh();
+            }
             return n.toReal().sinh();
         }
 
+        public double applyReal(Calculator environment, double x) {
+            return Math.sinh(x);
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns the hyperbolic sine of its argument."; }
     }
 
-    public static class Sqrt extends CalculatorFunctionN {
+    public static class Sqrt extends CalculatorFunctionN implements RealExpression.UnaryFunction {
         public Sqrt() {
             super("sqrt");
         }
 
         public Node apply(Calculator environment, NumberNode n) {
+            final BigRealNode x = environment.toBigReal(n);
+            if (x != null) {
+                return x.sqrt();
+            }
             return n.toReal().sqrt();
         }
 
+        public double applyReal(Calculator environment, double x) {
+            return Math.sqrt(x);
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns the square root of its argument."; }
     }
 
-    public static class Subtract extends CalculatorFunction { // FIXME: CAS support.
+    public static class StandardDeviation extends CalculatorFunctionL {
+        public StandardDeviation() {
+            super("StandardDeviation");
+        }
+
+        public Node apply(Calculator environment, ListNode list) {
+            return new Sqrt().apply(environment, Statistics.variance(environment, "StandardDeviation", list));
+        }
+
+        public String syntax() { return "(List)"; }
+        public String description() { return "Returns the sample standard deviation of the given list."; }
+    }
+
+    public static class Subtract extends CalculatorFunction implements RealExpression.BinaryFunction { // FIXME: CAS support.
         public Subtract() {
             super("Subtract", 2);
         }
@@ -1390,6 +1999,10 @@ public class CalculatorFunctions {
             }
         }
 
+        public double applyReal(Calculator environment, double lhs, double rhs) {
+            return lhs - rhs;
+        }
+
         public String syntax() { return "(Number, Number)"; }
         public String description() { return "Returns the difference of its arguments."; }
     }
@@ -1399,41 +2012,61 @@ public class CalculatorFunctions {
             super("sum", 4);
         }
 
+        @Override int boundVariableIndex() {
+            return 1;
+        }
+
         public Node apply(Calculator environment) {
             return series(name(), environment, args, IntegerNode.ZERO, true);
         }
 
-        public String syntax() { return "(Expression, Variable, min:Number, max:Number)"; }
-        public String description() { return "Returns the sum of the results of evaluating the given expression with the given variable bound to each value from min to max."; }
+        public String syntax() { return "(Expression, Variable, min:Number, max:Number or Infinity)"; }
+        public String description() { return "Returns the sum of the results of evaluating the given expression with the given variable bound to each value from min to max. Infinite sums are accelerated, and computed in machine precision."; }
     }
 
-    public static class Tan extends CalculatorFunctionN {
+    public static class Tan extends CalculatorFunctionN implements RealExpression.UnaryFunction {
         public Tan() {
             super("tan");
         }
 
         public Node apply(Calculator environment, NumberNode n) {
+            final BigRealNode x = environment.toBigReal(n);
+            if (x != null) {
+                return environment.angleArgument(x).tan();
+            }
             return environment.angleArgument(n).tan();
         }
 
+        public double applyReal(Calculator environment, double x) {
+            return Math.tan(environment.angleArgument(x));
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns the tangent of its argument."; }
     }
 
-    public static class Tanh extends CalculatorFunctionN {
+    public static class Tanh extends CalculatorFunctionN implements RealExpression.UnaryFunction {
         public Tanh() {
             super("tanh");
         }
 
         public Node apply(Calculator environment, NumberNode n) {
+            final BigRealNode x = environment.toBigReal(n);
+            if (x != null) {
+                return x.tanh();
+            }
             return n.toReal().tanh();
         }
 
+        public double applyReal(Calculator environment, double x) {
+            return Math.tanh(x);
+        }
+
         public String syntax() { return "(Number)"; }
         public String description() { return "Returns the hyperbolic tangent of its argument."; }
     }
 
-    public static class Times extends CalculatorFunction { // FIXME: CAS support.
+    public static class Times extends CalculatorFunction implements RealExpression.BinaryFunction { // FIXME: CAS support.
         public Times() {
             super("Times", 2);
         }
@@ -1449,7 +2082,7 @@ public class CalculatorFunctions {
             final ListNode rhsDimensions = matrixDimensions(rhs);
             if (lhsDimensions != null && rhsDimensions != null) {
                 // matrix * matrix
-                return matrixTimes((ListNode) lhs, lhsDimensions, (ListNode) rhs, rhsDimensions);
+                return matrixTimes(environment, (ListNode) lhs, lhsDimensions, (ListNode) rhs, rhsDimensions);
             } else if (isNumber(lhs) && rhsDimensions != null) {
                 // scalar * matrix
                 return matrixScalarOp((ListNode) rhs, rhsDimensions, (NumberNode) lhs, MatrixOp.MUL);
@@ -1463,22 +2096,27 @@ public class CalculatorFunctions {
 
         // Multiply an m*n matrix by an n*p matrix.
         // http://en.wikipedia.org/wiki/Matrix_multiplication
-        private static Node matrixTimes(ListNode lhs, ListNode lhsDimensions, ListNode rhs, ListNode rhsDimensions) {
+        private static Node matrixTimes(Calculator environment, ListNode lhs, ListNode lhsDimensions, ListNode rhs, ListNode rhsDimensions) {
+            final MatrixNode lhsMatrix = MatrixNode.valueOf(lhs);
+            final MatrixNode rhsMatrix = MatrixNode.valueOf(rhs);
+            if (lhsMatrix != null && rhsMatrix != null) {
+                return lhsMatrix.times(rhsMatrix, environment);
+            }
             final IntegerNode n = (IntegerNode) lhsDimensions.get(1);
             if (!n.equals((IntegerNode) rhsDimensions.get(0))) {
                 throw new CalculatorError("matrix multiplication requires compatible matrices");
             }
             final IntegerNode rowCount = (IntegerNode) lhsDimensions.get(0);
             final IntegerNode columnCount = (IntegerNode) rhsDimensions.get(1);
-            final ListNode result = new ListNode();
+            final ListNode.Builder result = new ListNode.Builder();
             for (IntegerNode i = IntegerNode.ZERO; i.compareTo(rowCount) < 0; i = i.increment()) {
-                final ListNode newRow = new ListNode();
+                final ListNode.Builder newRow = new ListNode.Builder();
                 for (IntegerNode j = IntegerNode.ZERO; j.compareTo(columnCount) < 0; j = j.increment()) {
                     newRow.add(dotProduct(lhs, rhs, i, j, n));
                 }
-                result.add(newRow);
+                result.add(newRow.build());
             }
-            return result;
+            return result.build();
         }
 
         // Returns the sum from r=0..n-1 of A(i,r)*B(r,j).
@@ -1519,6 +2157,10 @@ public class CalculatorFunctions {
             return bind(args);
         }
 
+        public double applyReal(Calculator environment, double lhs, double rhs) {
+            return lhs * rhs;
+        }
+
         public String syntax() { return "(Number, Number)"; }
         public String description() { return "Returns the product of its arguments."; }
     }
@@ -1529,10 +2171,34 @@ public class CalculatorFunctions {
         }
 
         public Node apply(Calculator environment, ListNode list) {
+            if (list instanceof RangeNode) {
+                return ((RangeNode) list).total();
+            }
+            final RealSum realSum = new RealSum(environment.getSummation());
+            final double[] doubles = list.packedDoubles();
+            if (doubles != null) {
+                for (int i = 0; i < list.size(); ++i) {
+                    realSum.add(doubles[i]);
+                }
+                return new RealNode(realSum.doubleValue());
+            }
+            // Reals go in 'realSum', so they're added using the chosen algorithm; everything else is added exactly.
             final CalculatorFunction plus = environment.getFunction("Plus");
             Node result = IntegerNode.ZERO;
+            boolean sawReal = false;
             for (Node element : list) {
-                result = plus.bind(result, element);
+                if (element instanceof RealNode) {
+                    realSum.add(((RealNode) element).doubleValue());
+                    sawReal = true;
+                } else if (result instanceof NumberNode && element instanceof NumberNode) {
+                    // Adding numbers as we go saves building a Plus expression as deep as the list is long.
+                    result = ((NumberNode) result).plus((NumberNode) element);
+                } else {
+                    result = plus.bind(result, element);
+                }
+            }
+            if (sawReal) {
+                result = plus.bind(result, new RealNode(realSum.doubleValue()));
             }
             return result.evaluate(environment);
         }
@@ -1553,17 +2219,21 @@ public class CalculatorFunctions {
                 throw expected("Dimensions", "matrix");
             }
             final ListNode m = (ListNode) node;
+            final MatrixNode numericMatrix = MatrixNode.valueOf(m);
+            if (numericMatrix != null) {
+                return numericMatrix.transpose();
+            }
             final IntegerNode rowCount = (IntegerNode) dimensions.get(1); // new row count == old column count.
             final IntegerNode columnCount = (IntegerNode) dimensions.get(0); // new column count == old row count.
-            final ListNode result = new ListNode();
+            final ListNode.Builder result = new ListNode.Builder();
             for (IntegerNode i = IntegerNode.ZERO; i.compareTo(rowCount) < 0; i = i.increment()) {
-                final ListNode newRow = new ListNode();
+                final ListNode.Builder newRow = new ListNode.Builder();
                 for (IntegerNode j = IntegerNode.ZERO; j.compareTo(columnCount) < 0; j = j.increment()) {
                     newRow.add(matrixElementAt(m, j, i));
                 }
-                result.add(newRow);
+                result.add(newRow.build());
             }
-            return result;
+            return result.build();
         }
 
         public String syntax() { return "(Matrix)"; }
@@ -1582,4 +2252,17 @@ public class CalculatorFunctions {
         public String syntax() { return "(Value, Value)"; }
         public String description() { return "Returns true if its arguments are <b>not</b> equal, false otherwise."; }
     }
+
+    public static class Variance extends CalculatorFunctionL {
+        public Variance() {
+            super("Variance");
+        }
+
+        public Node apply(Calculator environment, ListNode list) {
+            return Statistics.variance(environment, "Variance", list);
+        }
+
+        public String syntax() { return "(List)"; }
+        public String description() { return "Returns the sample variance of the given list."; }
+    }
 }
@@ -102,6 +102,10 @@ public class CalculatorLexer {
 
         case '\u221a': return CalculatorToken.SQRT;
 
+        case '\u221e': // Unicode infinity sign; a symbol rather than a letter, but it names a constant.
+            identifier = "\u221e";
+            return CalculatorToken.IDENTIFIER;
+
         case '<':
             {
                 int ch2 = reader.read();
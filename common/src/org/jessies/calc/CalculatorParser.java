@@ -231,7 +231,7 @@ public class CalculatorParser {
     
     // '[' [ expr [ ',' expr ] ] ']'
     private ListNode parseList() {
-        final ListNode result = new ListNode();
+        final ListNode.Builder result = new ListNode.Builder();
         expect(CalculatorToken.OPEN_SQUARE);
         while (lexer.token() != CalculatorToken.CLOSE_SQUARE) {
             result.add(parseExpr());
@@ -241,7 +241,7 @@ public class CalculatorParser {
             }
         }
         expect(CalculatorToken.CLOSE_SQUARE);
-        return result;
+        return result.build();
     }
     
     private void expect(CalculatorToken what) {
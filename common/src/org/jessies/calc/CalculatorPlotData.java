@@ -18,8 +18,29 @@ package org.jessies.calc;
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import java.nio.*;
+
+/**
+ * The result of Plot, ParametricPlot, or PolarPlot: one or more curves, sampled at the same values of the plot's
+ * variable (tValues[i]). The data is stored by column, so curve c's i'th point is (xColumns[c][i], yColumns[c][i]).
+ * For Plot, every curve's x column is tValues itself. The samples aren't evenly spaced: there are more where a curve
+ * bends sharply. A NaN means there's nothing to draw there, either because the curve is undefined or because it
+ * jumps, as at a pole.
+ */
 public class CalculatorPlotData {
-    public double[] data;
+    // The start of the binary form ("PLOT" when read as bytes), and its version.
+    private static final int BINARY_MAGIC = 0x544f4c50;
+    private static final int BINARY_VERSION = 1;
+    
+    // Flags in the binary form.
+    private static final int BINARY_PARAMETRIC = 1;
+    
+    public double[] tValues;
+    public double[][] xColumns;
+    public double[][] yColumns;
+    
+    // True if the x coordinates were computed rather than being the values of the variable.
+    public boolean isParametric;
     
     public float xMin;
     public float xMax;
@@ -29,41 +50,137 @@ public class CalculatorPlotData {
     public double yMax;
     public float yRange;
     
-    public CalculatorPlotData(int pixelWidth, RealNode xMin, RealNode xMax) {
-        this.data = new double[pixelWidth];
+    /**
+     * Creates room for the given number of samples of each of the curves of a Plot from xMin to xMax.
+     */
+    public CalculatorPlotData(RealNode xMin, RealNode xMax, int curveCount, int sampleCount) {
+        allocate(false, curveCount, sampleCount);
         this.xMin = (float) xMin.doubleValue();
         this.xMax = (float) xMax.doubleValue();
         
         this.xRange = this.xMax - this.xMin;
     }
     
+    /**
+     * Creates room for the given number of samples of each of the curves of a ParametricPlot or PolarPlot.
+     * The x range is set by calculateRange.
+     */
+    public CalculatorPlotData(int curveCount, int sampleCount) {
+        allocate(true, curveCount, sampleCount);
+    }
+    
     private CalculatorPlotData() {
     }
     
+    private void allocate(boolean isParametric, int curveCount, int sampleCount) {
+        this.isParametric = isParametric;
+        this.tValues = new double[sampleCount];
+        this.xColumns = new double[curveCount][];
+        this.yColumns = new double[curveCount][];
+        for (int c = 0; c < curveCount; ++c) {
+            xColumns[c] = isParametric ? new double[sampleCount] : tValues;
+            yColumns[c] = new double[sampleCount];
+        }
+    }
+    
+    public int curveCount() {
+        return yColumns.length;
+    }
+    
+    public int sampleCount() {
+        return tValues.length;
+    }
+    
+    /**
+     * Sets yMin, yMax, and yRange (and, for a parametric plot, xMin, xMax, and xRange) to cover the curves. Samples
+     * within 1% of the range of the variable from a break (a lone NaN, as at a pole) are only used if there's nothing
+     * else, so that poles like the one in (x+1)^2/(x-1) near x==1 don't squash the rest.
+     */
     public void calculateRange() {
-        yMin = Float.POSITIVE_INFINITY;
-        yMax = Float.NEGATIVE_INFINITY;
-        for (int i = 0; i < data.length; ++i) {
-            double value = data[i];
-            //System.err.println(value);
-            if (value < yMin) {
-                yMin = value;
-            }
-            if (value > yMax) {
-                yMax = value;
-            }
+        double[] yLimits = calculateRange(yColumns, true);
+        if (yLimits[0] > yLimits[1]) {
+            yLimits = calculateRange(yColumns, false);
         }
+        yMin = yLimits[0];
+        yMax = yLimits[1];
         // FIXME: scale to nice round numbers.
-        // FIXME: clip really large (positive or negative) values; (x+1)^2/(x-1) near x==1, for instance.
         yRange = (float)(yMax - yMin);
+        if (isParametric) {
+            double[] xLimits = calculateRange(xColumns, true);
+            if (xLimits[0] > xLimits[1]) {
+                xLimits = calculateRange(xColumns, false);
+            }
+            xMin = (float) xLimits[0];
+            xMax = (float) xLimits[1];
+            xRange = xMax - xMin;
+        }
+    }
+    
+    // Returns the smallest and largest values in the given columns.
+    private double[] calculateRange(double[][] columns, boolean avoidBreaks) {
+        double min = Float.POSITIVE_INFINITY;
+        double max = Float.NEGATIVE_INFINITY;
+        final int length = tValues.length;
+        final double margin = (length > 0) ? (tValues[length - 1] - tValues[0]) / 100 : 0;
+        for (int c = 0; c < columns.length; ++c) {
+            final double[] values = columns[c];
+            final double[] ys = yColumns[c];
+            double lastBreak = Double.NEGATIVE_INFINITY;
+            int nextBreak = nextBreak(ys, 0);
+            for (int i = 0; i < length; ++i) {
+                if (i == nextBreak) {
+                    lastBreak = tValues[i];
+                    nextBreak = nextBreak(ys, i + 1);
+                }
+                double value = values[i];
+                if (Double.isNaN(value) || Double.isNaN(ys[i])) {
+                    continue;
+                }
+                if (avoidBreaks && (tValues[i] - lastBreak < margin || (nextBreak < length && tValues[nextBreak] - tValues[i] < margin))) {
+                    continue;
+                }
+                if (value < min) {
+                    min = value;
+                }
+                if (value > max) {
+                    max = value;
+                }
+            }
+        }
+        return new double[] { min, max };
+    }
+    
+    // Returns the index of the first break in 'ys' at or after i, or ys.length if there isn't one.
+    private static int nextBreak(double[] ys, int i) {
+        for (; i < ys.length; ++i) {
+            if (Double.isNaN(ys[i]) && i > 0 && i + 1 < ys.length && !Double.isNaN(ys[i - 1]) && !Double.isNaN(ys[i + 1])) {
+                return i;
+            }
+        }
+        return ys.length;
     }
     
     public String toString() {
         StringBuilder result = new StringBuilder();
-        result.append(data.length);
+        // Older versions had a single curve, and started with just the length.
+        result.append("plot ");
+        result.append(curveCount());
+        result.append(' ');
+        result.append(sampleCount());
+        if (isParametric) {
+            result.append(" parametric");
+        }
         result.append('\n');
-        for (int i = 0; i < data.length; ++i) {
-            result.append(data[i]);
+        for (int i = 0; i < tValues.length; ++i) {
+            result.append(tValues[i]);
+            for (int c = 0; c < yColumns.length; ++c) {
+                if (isParametric) {
+                    result.append(' ');
+                    result.append(xColumns[c][i]);
+                }
+                result.append(' ');
+                result.append(yColumns[c][i]);
+            }
             result.append('\n');
         }
         result.append(xMin);
@@ -85,10 +202,34 @@ public class CalculatorPlotData {
         CalculatorPlotData result = new CalculatorPlotData();
         String[] fields = s.split("\n");
         int field = 0;
-        final int length = Integer.parseInt(fields[field++]);
-        result.data = new double[length];
+        final String[] header = fields[field++].split(" ");
+        int curveCount = 1;
+        boolean isParametric = false;
+        final int length;
+        if (header[0].equals("plot")) {
+            curveCount = Integer.parseInt(header[1]);
+            length = Integer.parseInt(header[2]);
+            isParametric = header.length > 3 && header[3].equals("parametric");
+        } else {
+            // Just the length, followed by the y values.
+            length = Integer.parseInt(header[0]);
+        }
+        final boolean isPlotHeader = header[0].equals("plot");
+        result.allocate(isParametric, curveCount, length);
         for (int i = 0; i < length; ++i) {
-            result.data[i] = Double.parseDouble(fields[field++]);
+            if (isPlotHeader) {
+                final String[] row = fields[field++].split(" ");
+                int column = 0;
+                result.tValues[i] = Double.parseDouble(row[column++]);
+                for (int c = 0; c < curveCount; ++c) {
+                    if (result.isParametric) {
+                        result.xColumns[c][i] = Double.parseDouble(row[column++]);
+                    }
+                    result.yColumns[c][i] = Double.parseDouble(row[column++]);
+                }
+            } else {
+                result.yColumns[0][i] = Double.parseDouble(fields[field++]);
+            }
         }
         result.xMin = Float.parseFloat(fields[field++]);
         result.xMax = Float.parseFloat(fields[field++]);
@@ -96,6 +237,77 @@ public class CalculatorPlotData {
         result.yMin = Double.parseDouble(fields[field++]);
         result.yMax = Double.parseDouble(fields[field++]);
         result.yRange = Float.parseFloat(fields[field++]);
+        if (!isPlotHeader) {
+            // The samples were evenly spaced.
+            for (int i = 0; i < length; ++i) {
+                result.tValues[i] = result.xMin + (double) result.xRange * i / length;
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the plot in a compact binary form that, unlike toString, restores every value exactly: a header, the
+     * ranges, and then each column in turn as raw little-endian doubles.
+     */
+    public byte[] toByteArray() {
+        final int columnCount = 1 + (isParametric ? 2 : 1) * curveCount();
+        final ByteBuffer buffer = ByteBuffer.allocate(5 * 4 + 4 * 4 + 2 * 8 + 8 * columnCount * sampleCount());
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(BINARY_MAGIC);
+        buffer.putInt(BINARY_VERSION);
+        buffer.putInt(isParametric ? BINARY_PARAMETRIC : 0);
+        buffer.putInt(curveCount());
+        buffer.putInt(sampleCount());
+        buffer.putFloat(xMin);
+        buffer.putFloat(xMax);
+        buffer.putFloat(xRange);
+        buffer.putDouble(yMin);
+        buffer.putDouble(yMax);
+        buffer.putFloat(yRange);
+        final DoubleBuffer doubles = buffer.asDoubleBuffer();
+        doubles.put(tValues);
+        for (int c = 0; c < curveCount(); ++c) {
+            if (isParametric) {
+                doubles.put(xColumns[c]);
+            }
+            doubles.put(yColumns[c]);
+        }
+        return buffer.array();
+    }
+    
+    /**
+     * Returns the plot written by toByteArray.
+     */
+    public static CalculatorPlotData fromByteArray(byte[] bytes) {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt() != BINARY_MAGIC) {
+            throw new IllegalArgumentException("not plot data");
+        }
+        final int version = buffer.getInt();
+        if (version != BINARY_VERSION) {
+            throw new IllegalArgumentException("unknown plot data version " + version);
+        }
+        final int flags = buffer.getInt();
+        final int curveCount = buffer.getInt();
+        final int sampleCount = buffer.getInt();
+        CalculatorPlotData result = new CalculatorPlotData();
+        result.allocate((flags & BINARY_PARAMETRIC) != 0, curveCount, sampleCount);
+        result.xMin = buffer.getFloat();
+        result.xMax = buffer.getFloat();
+        result.xRange = buffer.getFloat();
+        result.yMin = buffer.getDouble();
+        result.yMax = buffer.getDouble();
+        result.yRange = buffer.getFloat();
+        final DoubleBuffer doubles = buffer.asDoubleBuffer();
+        doubles.get(result.tValues);
+        for (int c = 0; c < curveCount; ++c) {
+            if (result.isParametric) {
+                doubles.get(result.xColumns[c]);
+            }
+            doubles.get(result.yColumns[c]);
+        }
         return result;
     }
 }
@@ -18,6 +18,8 @@ package org.jessies.calc;
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import java.math.*;
+import java.util.*;
 import junit.framework.*;
 
 public class CalculatorTest extends TestCase {
@@ -112,6 +114,11 @@ public class CalculatorTest extends TestCase {
     RationalNode r = (RationalNode) makeRational(6, 8);
     assertEquals(IntegerNode.valueOf(3), r.numerator());
     assertEquals(IntegerNode.valueOf(4), r.denominator());
+    // Reducing by a tiny gcd shouldn't take forever.
+    r = (RationalNode) makeRational(1000000000000000001L, 1000000000000000000L);
+    assertEquals(IntegerNode.valueOf(1000000000000000000L), r.denominator());
+    r = (RationalNode) makeRational(Long.MIN_VALUE, 3);
+    assertEquals(IntegerNode.valueOf(Long.MIN_VALUE), r.numerator());
   }
 
   private static NumberNode makeRational(long numerator, long denominator) {
@@ -240,6 +247,18 @@ public class CalculatorTest extends TestCase {
     check("100", "(-10)^2");
     check("0.01", "10^-2");
     check("0.01", "10^(-2)");
+
+    // Fixnum powers, and their switches to bignums.
+    check("1", "0^0");
+    check("0", "0^10");
+    check("1024", "2^10");
+    check("-9223372036854775808", "(-2)^63");
+    check("9223372036854775808", "2^63");
+    check("true", "3^39 == 4052555153018976267");
+    check("true", "3^40 == 3 * 4052555153018976267");
+    check("1", "(-1)^(10^30)");
+    check("-1", "(-1)^(10^30 + 1)");
+    check("1", "1^(10^30)");
   }
 
   public void testConstants() {
@@ -270,6 +289,14 @@ public class CalculatorTest extends TestCase {
     check("true", "-(-(0x8000000000000000)) == 0x8000000000000000");
     check("true", "-1 * -1 * 0x8000000000000000 == 0x8000000000000000");
     check("true", "0x8000000000000000/-1 == -0x8000000000000000");
+    check("true", "-0x8000000000000000/-1 == 0x8000000000000000");
+    check("true", "0x100000000 * 0x100000000 == 0x10000000000000000");
+    check("true", "-0x80000000 * 0x100000000 == -0x8000000000000000");
+    check("true", "0xffffffff * 0xffffffff == 18446744065119617025");
+    check("true", "3037000500 * -3037000500 < -0x7fffffffffffffff");
+    check("true", "2^64 > 0x7fffffffffffffff");
+    check("true", "-(2^64) < -0x8000000000000000");
+    check("true", "0x7fffffffffffffff < 2^64");
   }
 
   public void testAbs() {
@@ -334,6 +361,17 @@ public class CalculatorTest extends TestCase {
     check("true", "IsPrime(5)");
     check("false", "IsPrime(-4)");
     check("true", "IsPrime(-5)");
+    // Strong pseudoprimes to small bases.
+    check("false", "IsPrime(3215031751)");
+    check("false", "IsPrime(3825123056546413051)");
+    check("true", "IsPrime(2^31-1)");
+    check("true", "IsPrime(2^61-1)");
+    check("false", "IsPrime(2^63-1)");
+    check("true", "IsPrime(2^63-25)");
+    // Bignums.
+    check("true", "IsPrime(2^127-1)");
+    check("false", "IsPrime((2^61-1)*(2^89-1))");
+    check("false", "IsPrime((2^89-1)^2)");
   }
 
   public void testLog() {
@@ -449,6 +487,9 @@ public class CalculatorTest extends TestCase {
     check("[1, 17]", "Divisors(17)");
     check("[1]", "Divisors(1)");
     check("[]", "Divisors(0)");
+    check("[1, 1000000007, 1000000009, 1000000016000000063]", "Divisors(1000000016000000063)");
+    check("[1, 274177, 67280421310721, 18446744073709551617]", "Divisors(2^64 + 1)");
+    check("384", "Length(Divisors(10^20 - 1))");
   }
 
   public void testFactorial() {
@@ -462,6 +503,9 @@ public class CalculatorTest extends TestCase {
     check("7257415615307998967396728211129263114716991681296451376543577798900561843401706157852350749242617459511490991237838520776666022565442753025328900773207510902400430280058295603966612599658257104398558294257568966313439612262571094946806711205568880457193340212661452800000000000000000000000000000000000000000", "Factorial(170)");
 
     check("true", "Factorial(5) == 5!");
+    check("true", "Factorial(1000) == Product(k, k, 1, 1000)");
+    check("true", "Factorial(2001) == 2001 * Factorial(2000)");
+    check("456574", "IntegerLength(Factorial(100000))");
 
     check("6", "3!");
     check("720", "3!!");
@@ -474,6 +518,23 @@ public class CalculatorTest extends TestCase {
     check("[17]", "Factors(17)");
     check("[]", "Factors(1)");
     check("[]", "Factors(0)");
+    check("[-1]", "Factors(-1)");
+    check("[2147483647]", "Factors(2^31 - 1)");
+    check("[1000000007, 1000000009]", "Factors(1000000016000000063)");
+    check("[274177, 67280421310721]", "Factors(2^64 + 1)");
+    check("[3, 3, 11, 41, 101, 271, 3541, 9091, 27961]", "Factors(10^20 - 1)");
+    check("[2147483647, 2147483647, 2305843009213693951]", "Factors((2^31 - 1)^2 * (2^61 - 1))");
+    check("[1000000000039, 2305843009213693951]", "Factors((10^12 + 39) * (2^61 - 1))");
+
+    // A product of two large primes is hopeless, and we should say so quickly.
+    final long t0 = System.nanoTime();
+    try {
+      new Calculator().evaluate("Factors(NextPrime(10^25) * NextPrime(10^26))");
+      fail();
+    } catch (CalculatorError ex) {
+      assertTrue(ex.getMessage(), ex.getMessage().endsWith(" in a reasonable time"));
+    }
+    assertTrue(System.nanoTime() - t0 < 10L * 1000 * 1000 * 1000);
   }
 
   public void testFilter() {
@@ -494,6 +555,47 @@ public class CalculatorTest extends TestCase {
     check("2", "GCD(-4, -14)");
     check("1", "GCD(9, 28)");
     check("3", "GCD(6E100000, 21E100000)/1E100000");
+    check("1", "GCD(1, 10^18)");
+    check("9223372036854775808", "GCD(-0x8000000000000000, 0)");
+    check("4611686018427387904", "GCD(-0x8000000000000000, 3 * 2^62)");
+  }
+
+  public void testPowerMod() {
+    check("4", "PowerMod(2, 10, 10)");
+    check("1", "PowerMod(3, 0, 7)");
+    check("0", "PowerMod(3, 5, 1)");
+    check("-3", "PowerMod(-3, 3, 4)");
+    check("1", "PowerMod(-3, 2, 4)");
+    check("5", "PowerMod(3, -1, 7)");
+    check("true", "PowerMod(2, 2^64 + 1, 2^61 - 1) == PowerMod(2, Mod(2^64 + 1, 61), 2^61 - 1)");
+    // Fermat: a^(p-1) is 1 mod any prime p not dividing a.
+    check("1", "PowerMod(3, 2^127 - 2, 2^127 - 1)");
+    check("1", "PowerMod(3, 1000000006, 1000000007)");
+    check("1", "PowerMod(3, 2^62 - 58, 2^62 - 57)");
+    check("true", "PowerMod(12345, 6789, 2^62 - 57) == Mod(12345^6789, 2^62 - 57)");
+
+    // Mod of a power never computes the power in full.
+    check("1", "Mod(3^(2^127 - 2), 2^127 - 1)");
+    check("1", "3^(2^127 - 2) % (2^127 - 1)");
+    check("-3", "Mod((-3)^3, 4)");
+    check("true", "Mod(7^123, 1000) == Mod(7^123 * 1, 1000)");
+    check("true", "Mod((-7)^123, 1000) == Mod((-7)^123 * 1, 1000)");
+
+    check("5", "ModInverse(3, 7)");
+    check("0", "ModInverse(5, 1)");
+    check("2", "ModInverse(-3, 7)");
+    try {
+      new Calculator().evaluate("ModInverse(2, 4)");
+      fail();
+    } catch (CalculatorError ex) {
+      assertEquals("2 has no inverse modulo 4", ex.getMessage());
+    }
+    try {
+      new Calculator().evaluate("PowerMod(2, 3, 0)");
+      fail();
+    } catch (CalculatorError ex) {
+      assertEquals("division by zero", ex.getMessage());
+    }
   }
 
   public void testIntegerLength() {
@@ -560,9 +662,43 @@ public class CalculatorTest extends TestCase {
     check("55", "Sum(x, x, 0, 10.2)");
     check("385", "Sum(i^2, i, 0, 10)");
     check(0.0, "Sum(1/i!, i, 0, 30)-e", 0.000001);
+    check(4.146264, "Sum(sqrt(k), k, 1, 3)", 0.000001);
     // FIXME: failure test for min > max.
   }
 
+  public void testParallel() {
+    final Calculator sequential = new Calculator();
+    sequential.setParallelThreshold(Integer.MAX_VALUE);
+    final Calculator parallel = new Calculator();
+    parallel.setParallelThreshold(10);
+    final String[] expressions = {
+      "Sum(k, k, 1, 1000)",
+      "Sum(k, k, 0.5, 100)",
+      "Product(k, k, 1, 100)",
+      "Map(x^2, x, Range(1, 100))",
+      "Filter(IsPrime(x), x, Range(0, 100))",
+      "Sum(Sum(j*k, j, 1, 20), k, 1, 20)",
+      "Map(Map(Sqrt(i + j), j, Range(1, 20)), i, Range(1, 20))*Map(Map(i - j, j, Range(1, 20)), i, Range(1, 20))",
+      "Map(Map(i*j - 3, j, Range(1, 20)), i, Range(1, 20))*Map(Map(i - j, j, Range(1, 20)), i, Range(1, 20))",
+    };
+    for (String expression : expressions) {
+      check(parallel, sequential.evaluate(expression).toInputString(), expression);
+    }
+    // Inexact results may be rounded differently from a sequential evaluation, but shouldn't depend on timing.
+    final String inexact = parallel.evaluate("Sum(1/k^2, k, 1, 1000)").toInputString();
+    assertEquals(((RealNode) sequential.evaluate("Sum(1/k^2, k, 1, 1000)")).doubleValue(), Double.parseDouble(inexact), 1e-12);
+    for (int i = 0; i < 10; ++i) {
+      check(parallel, inexact, "Sum(1/k^2, k, 1, 1000)");
+    }
+    check(parallel, "500500", "Sum(k, k, 1, 1000)");
+    try {
+      parallel.evaluate("Sum(Length(k), k, 1, 1000)");
+      fail();
+    } catch (CalculatorError ex) {
+      assertEquals("'Length' expected list argument", ex.getMessage());
+    }
+  }
+
   public void testPermutations() {
     check("1", "nCr(5, 5)");
     check("120", "nPr(5, 5)");
@@ -570,6 +706,48 @@ public class CalculatorTest extends TestCase {
     check("5040", "nPr(10, 4)");
     check("22100", "nCr(52, 3)");
     check("132600", "nPr(52, 3)");
+    check("0", "nCr(5, 6)");
+    check("0", "nCr(5, -1)");
+    check("0", "nPr(5, 6)");
+    check("100891344545564193334812497256", "nCr(100, 50)");
+    check("true", "nCr(1000, 300) == 1000!/(300! * 700!)");
+    check("true", "nPr(1000, 300) == 1000!/700!");
+    check("true", "nCr(10^6, 5*10^5) == nCr(10^6 - 1, 5*10^5 - 1) + nCr(10^6 - 1, 5*10^5)");
+  }
+
+  public void testPrimes() {
+    check("0", "PrimePi(-7)");
+    check("0", "PrimePi(1)");
+    check("1", "PrimePi(2)");
+    check("4", "PrimePi(10)");
+    check("25", "PrimePi(100)");
+    check("78498", "PrimePi(10^6)");
+    check("5761455", "PrimePi(10^8)");
+
+    check("2", "Prime(1)");
+    check("29", "Prime(10)");
+    check("7919", "Prime(1000)");
+    check("15485863", "Prime(10^6)");
+    check("99999989", "Prime(5761455)");
+    try {
+      new Calculator().evaluate("Prime(0)");
+      fail();
+    } catch (CalculatorError ex) {
+      assertEquals("'Prime' requires a positive argument", ex.getMessage());
+    }
+    // Anything that would take more than a few seconds is refused.
+    try {
+      new Calculator().evaluate("PrimePi(10^9)");
+      fail();
+    } catch (CalculatorError ex) {
+      assertEquals("can't sieve primes beyond 268435456", ex.getMessage());
+    }
+
+    check("2", "NextPrime(-5)");
+    check("3", "NextPrime(2)");
+    check("7927", "NextPrime(7919)");
+    check("1000000000039", "NextPrime(10^12)");
+    check("18446744073709551629", "NextPrime(2^64)");
   }
 
   public void testProduct() {
@@ -579,6 +757,228 @@ public class CalculatorTest extends TestCase {
     // FIXME: failure test for min > max.
   }
 
+  public void testInfiniteSeries() {
+    check("Infinity", "Infinity");
+    check("Infinity", "\u221e");
+    check(Math.PI * Math.PI / 6, "Sum(1/k^2, k, 1, Infinity)", 1e-14);
+    check(1.2020569031595942, "Sum(1/k^3, k, 1, \u221e)", 1e-14);
+    check(Math.log(2), "Sum((-1)^(k+1)/k, k, 1, Infinity)", 1e-14);
+    check(Math.E, "Sum(1/k!, k, 0, Infinity)", 1e-14);
+    check(2.0, "Sum(1/2^k, k, 0, Infinity)", 1e-14);
+    check((1 + Math.PI / Math.tanh(Math.PI)) / 2, "Sum(1/(k^2+1), k, 0, Infinity)", 1e-13);
+    check(2 / Math.PI, "Product(1 - 1/(4*k^2), k, 1, Infinity)", 1e-14);
+    // Levin's transform can only get about 8 digits of this in machine precision, so that's all we return.
+    check("2.6123754", "Sum(1/k^1.5, k, 1, Infinity)");
+    // None of our methods suit this, but the partial sums converge quickly enough.
+    check(1.0139591323607685, "Sum(Sin(k)/k^2, k, 1, Infinity)", 1e-9);
+    String[] divergent = new String[] { "Sum(1/k, k, 1, Infinity)", "Sum(1/Sqrt(k), k, 1, Infinity)", "Sum((-1)^k, k, 0, Infinity)", "Sum(2^k, k, 0, Infinity)" };
+    for (String input : divergent) {
+      try {
+        new Calculator().evaluate(input);
+        fail("no exception was thrown for " + input + "!");
+      } catch (CalculatorError ex) {
+        assertEquals("'sum' doesn't converge", ex.getMessage());
+      }
+    }
+  }
+
+  private static CalculatorPlotData plot(String input) {
+    return plot(new Calculator(), input);
+  }
+
+  private static CalculatorPlotData plot(Calculator c, String input) {
+    final CalculatorPlotData[] result = new CalculatorPlotData[1];
+    c.setPlotter(new CalculatorPlotter() {
+      public void showPlot(CalculatorPlotData plotData) {
+        result[0] = plotData;
+      }
+    });
+    c.evaluate(input);
+    return result[0];
+  }
+
+  private static int countNaNs(double[] column) {
+    int result = 0;
+    for (double y : column) {
+      if (Double.isNaN(y)) {
+        ++result;
+      }
+    }
+    return result;
+  }
+
+  public void testPlot() {
+    // Smooth functions need fewer samples than there are pixels.
+    CalculatorPlotData plotData = plot("Plot(Sin(x), x, 0, 2*pi)");
+    assertEquals(1, plotData.curveCount());
+    assertTrue(plotData.sampleCount() < 300);
+    assertEquals(0.0, plotData.tValues[0]);
+    assertEquals(2 * Math.PI, plotData.tValues[plotData.tValues.length - 1], 1e-15);
+    for (int i = 1; i < plotData.tValues.length; ++i) {
+      assertTrue(plotData.tValues[i - 1] < plotData.tValues[i]);
+    }
+    assertEquals(0, countNaNs(plotData.yColumns[0]));
+    assertEquals(-1.0, plotData.yMin, 1e-3);
+    assertEquals(1.0, plotData.yMax, 1e-3);
+
+    // A pole gets a break, and doesn't swamp the range.
+    plotData = plot("Plot((x+1)^2/(x-1), x, -5, 5)");
+    assertEquals(1, countNaNs(plotData.yColumns[0]));
+    for (int i = 0; i < plotData.sampleCount(); ++i) {
+      if (Double.isNaN(plotData.yColumns[0][i])) {
+        assertEquals(1.0, plotData.tValues[i], 1e-6);
+      }
+    }
+    assertTrue(plotData.yMin > -100 && plotData.yMax < 100);
+
+    // Where a function becomes undefined is found to well within a pixel.
+    plotData = plot("Plot(Sqrt(x), x, -1, 1)");
+    int firstDefined = 0;
+    while (Double.isNaN(plotData.yColumns[0][firstDefined])) {
+      ++firstDefined;
+    }
+    assertEquals(0.0, plotData.tValues[firstDefined], 1e-6);
+    assertEquals(0.0, plotData.yMin, 1e-3);
+
+    // Plots survive being saved and restored.
+    final CalculatorPlotData restored = CalculatorPlotData.fromString(plotData.toString());
+    assertTrue(Arrays.equals(plotData.tValues, restored.tValues));
+    assertTrue(Arrays.equals(plotData.yColumns[0], restored.yColumns[0]));
+
+    // The binary form is exact, and smaller.
+    final byte[] bytes = plotData.toByteArray();
+    assertTrue(bytes.length < plotData.toString().length());
+    final CalculatorPlotData unpacked = CalculatorPlotData.fromByteArray(bytes);
+    assertTrue(Arrays.equals(plotData.tValues, unpacked.tValues));
+    assertTrue(Arrays.equals(plotData.yColumns[0], unpacked.yColumns[0]));
+    assertEquals(plotData.toString(), unpacked.toString());
+  }
+
+  public void testParallelPlot() {
+    final Calculator sequential = new Calculator();
+    sequential.setParallelThreshold(Integer.MAX_VALUE);
+    final Calculator parallel = new Calculator();
+    parallel.setParallelThreshold(1);
+    final String[] expressions = {
+      "Plot(Sum(Sin(k*x)/k, k, 1, 20), x, 0, 2*pi)",
+      "Plot((x+1)^2/(x-1), x, -5, 5)",
+      "Plot(Tan(x), x, -5, 5)",
+      "Plot(Sqrt(x), x, -1, 1)",
+      "Plot([Tan(x), Sqrt(x)], x, -5, 5)",
+      "ParametricPlot([Cos(t), Tan(t)], t, 0, 2*pi)",
+    };
+    for (String expression : expressions) {
+      final CalculatorPlotData expected = plot(sequential, expression);
+      final CalculatorPlotData actual = plot(parallel, expression);
+      assertEquals(expression, expected.toString(), actual.toString());
+    }
+  }
+
+  public void testMultiplePlots() {
+    // All the curves are sampled at the same points, and share the x column.
+    CalculatorPlotData plotData = plot("Plot([Sin(x), 2*Cos(x)], x, 0, 2*pi)");
+    assertEquals(2, plotData.curveCount());
+    assertSame(plotData.tValues, plotData.xColumns[0]);
+    assertSame(plotData.tValues, plotData.xColumns[1]);
+    for (int i = 0; i < plotData.sampleCount(); ++i) {
+      assertEquals(Math.sin(plotData.tValues[i]), plotData.yColumns[0][i], 1e-15);
+      assertEquals(2 * Math.cos(plotData.tValues[i]), plotData.yColumns[1][i], 1e-15);
+    }
+    assertEquals(-2.0, plotData.yMin, 1e-3);
+    assertEquals(2.0, plotData.yMax, 1e-3);
+
+    // A break in one curve doesn't break the others.
+    plotData = plot("Plot([1/(x-1), x], x, -5, 5)");
+    assertEquals(1, countNaNs(plotData.yColumns[0]));
+    assertEquals(0, countNaNs(plotData.yColumns[1]));
+    for (int i = 0; i < plotData.sampleCount(); ++i) {
+      assertEquals(plotData.tValues[i], plotData.yColumns[1][i]);
+    }
+
+    // Plots survive being saved and restored.
+    final CalculatorPlotData restored = CalculatorPlotData.fromString(plotData.toString());
+    assertEquals(plotData.toString(), restored.toString());
+    assertSame(restored.tValues, restored.xColumns[1]);
+
+    // Old single-curve plots can still be restored.
+    final CalculatorPlotData old = CalculatorPlotData.fromString("2\n1.0\nNaN\n0.0\n1.0\n1.0\n1.0\n1.0\n0.0\n");
+    assertEquals(1, old.curveCount());
+    assertEquals(0.5, old.tValues[1]);
+    assertTrue(Double.isNaN(old.yColumns[0][1]));
+
+    try {
+      plot("Plot([], x, 0, 1)");
+      fail();
+    } catch (CalculatorError ex) {
+      assertEquals("'Plot' expected non-empty list argument", ex.getMessage());
+    }
+  }
+
+  public void testParametricPlot() {
+    CalculatorPlotData plotData = plot("ParametricPlot([Cos(t), Sin(t)], t, 0, 2*pi)");
+    assertEquals(1, plotData.curveCount());
+    assertTrue(plotData.isParametric);
+    for (int i = 0; i < plotData.sampleCount(); ++i) {
+      assertEquals(Math.cos(plotData.tValues[i]), plotData.xColumns[0][i], 1e-15);
+      assertEquals(Math.sin(plotData.tValues[i]), plotData.yColumns[0][i], 1e-15);
+    }
+    assertEquals(-1.0, plotData.xMin, 1e-3);
+    assertEquals(1.0, plotData.xMax, 1e-3);
+    assertEquals(-1.0, plotData.yMin, 1e-3);
+    assertEquals(1.0, plotData.yMax, 1e-3);
+
+    // A straight line needs no refinement, however unevenly it's traced.
+    plotData = plot("ParametricPlot([t^3, 2*t^3], t, -1, 1)");
+    assertEquals(65, plotData.sampleCount());
+
+    plotData = plot("ParametricPlot([[Cos(t), Sin(t)], [2*Cos(t), Sin(t)]], t, 0, 2*pi)");
+    assertEquals(2, plotData.curveCount());
+    assertEquals(-2.0, plotData.xMin, 1e-3);
+    assertEquals(2.0, plotData.xMax, 1e-3);
+    final CalculatorPlotData restored = CalculatorPlotData.fromString(plotData.toString());
+    assertTrue(restored.isParametric);
+    assertEquals(plotData.toString(), restored.toString());
+    final CalculatorPlotData unpacked = CalculatorPlotData.fromByteArray(plotData.toByteArray());
+    assertTrue(unpacked.isParametric);
+    assertTrue(Arrays.equals(plotData.xColumns[1], unpacked.xColumns[1]));
+    assertEquals(plotData.toString(), unpacked.toString());
+
+    try {
+      plot("ParametricPlot([Cos(t), Sin(t), t], t, 0, 1)");
+      fail();
+    } catch (CalculatorError ex) {
+      assertEquals("'ParametricPlot' expected [x, y] argument", ex.getMessage());
+    }
+  }
+
+  public void testPolarPlot() {
+    final CalculatorPlotData plotData = plot("PolarPlot(1 + Cos(t), t, 0, 2*pi)");
+    assertTrue(plotData.isParametric);
+    for (int i = 0; i < plotData.sampleCount(); ++i) {
+      final double t = plotData.tValues[i];
+      assertEquals((1 + Math.cos(t)) * Math.cos(t), plotData.xColumns[0][i], 1e-15);
+      assertEquals((1 + Math.cos(t)) * Math.sin(t), plotData.yColumns[0][i], 1e-15);
+    }
+    assertEquals(2.0, plotData.xMax, 1e-3);
+    assertEquals(2, plot("PolarPlot([1, 2], t, 0, 2*pi)").curveCount());
+  }
+
+  public void testRealProgram() {
+    // Common subexpressions are only evaluated once.
+    final Calculator calculator = new Calculator();
+    final CompiledExpression a = calculator.compile("Sin(x)^2 + 1", "x");
+    final CompiledExpression b = calculator.compile("Cos(x)*Sin(x)", "x");
+    final RealExpression.Program program = CompiledExpression.realProgram(a, b);
+    // x, Sin(x), Sin(x)^2, Sin(x)^2 + 1, Cos(x), and Cos(x)*Sin(x).
+    assertEquals(6, program.valueCount());
+    final double[] values = new double[program.valueCount()];
+    values[0] = 0.5;
+    program.evaluate(calculator, values);
+    assertEquals(a.evaluateReal(0.5), program.output(calculator, values, 0));
+    assertEquals(b.evaluateReal(0.5), program.output(calculator, values, 1));
+    assertNull(CompiledExpression.realProgram(a, calculator.compile("Length([x])", "x")));
+  }
+
   public void testAns() {
     final Calculator c = new Calculator();
     check(c, "0", "0");
@@ -601,6 +1001,209 @@ public class CalculatorTest extends TestCase {
     check(c, "4", "2*a");
   }
 
+  public void testCompile() {
+    final Calculator c = new Calculator();
+    final CompiledExpression f = c.compile("x^2 + a*x", "x");
+    c.evaluate("a = 3");
+    assertEquals(IntegerNode.valueOf(10), f.evaluate(IntegerNode.valueOf(2)));
+    // Non-parameter variables see later assignments...
+    c.evaluate("a = 4");
+    assertEquals(IntegerNode.valueOf(12), f.evaluate(IntegerNode.valueOf(2)));
+    // ...but parameters aren't affected by variables of the same name.
+    c.evaluate("x = 100");
+    assertEquals(IntegerNode.valueOf(21), f.evaluate(IntegerNode.valueOf(3)));
+    // Variables bound by functions like Sum are still bound by name, even if they're parameters.
+    assertEquals(IntegerNode.valueOf(12), c.compile("Sum(k*n, k, 1, 3)", "n").evaluate(IntegerNode.valueOf(2)));
+    assertEquals(IntegerNode.valueOf(16), c.compile("Sum(k, k, 1, 3) + k", "k").evaluate(IntegerNode.valueOf(10)));
+    // Evaluating a compiled expression doesn't change Ans.
+    check(c, "7", "7");
+    f.evaluate(IntegerNode.valueOf(1));
+    check(c, "7", "Ans");
+    try {
+      f.evaluate();
+      fail();
+    } catch (CalculatorError ex) {
+      assertEquals("wrong number of values for compiled expression; need exactly 1 but got 0", ex.getMessage());
+    }
+  }
+
+  public void testCompileReal() {
+    final Calculator c = new Calculator();
+    final CompiledExpression f = c.compile("2*sin(x)^2 + Max(x, a)/4 - e", "x");
+    assertFalse(f.isReal());
+    c.evaluate("a = 0.5");
+    final CompiledExpression g = c.compile("2*sin(x)^2 + Max(x, a)/4 - e", "x");
+    assertTrue(g.isReal());
+    assertEquals(2*Math.pow(Math.sin(1), 2) + 1.0/4 - Math.E, g.evaluateReal(1.0), 0.0);
+    c.evaluate("a = 8");
+    assertEquals(2*Math.pow(Math.sin(1), 2) + 8.0/4 - Math.E, g.evaluateReal(1.0), 0.0);
+    c.setDegreesMode(true);
+    assertEquals(2.0, c.compile("2*sin(x)", "x").evaluateReal(90.0), 1e-15);
+    assertFalse(c.compile("Length([x])", "x").isReal());
+
+    // Ans changes with every evaluation, so it can't be folded in as a constant.
+    c.evaluate("2");
+    final CompiledExpression h = c.compile("Ans*x", "x");
+    assertTrue(h.isReal());
+    c.evaluate("5");
+    assertEquals(5.0, h.evaluateReal(1.0));
+    assertEquals("5.0", h.evaluate(new RealNode(1)).toString());
+  }
+
+  public void testParseCache() {
+    final Calculator c = new Calculator();
+    check(c, "3", "1+2");
+    check(c, "3", "1+2");
+    assertEquals(1, c.getParseCacheMissCount());
+    assertEquals(1, c.getParseCacheHitCount());
+    // Assigning to a variable invalidates cached expressions that refer to it...
+    check(c, "5", "a = 5");
+    check(c, "6", "a+1");
+    check(c, "6", "a+1");
+    assertEquals(3, c.getParseCacheMissCount());
+    assertEquals(2, c.getParseCacheHitCount());
+    check(c, "6", "a = 6");
+    check(c, "7", "a+1");
+    assertEquals(5, c.getParseCacheMissCount());
+    // ...but not those that only use the name as the variable of something like Sum.
+    check(c, "6", "Sum(a, a, 1, 3)");
+    check(c, "7", "a = 7");
+    check(c, "6", "Sum(a, a, 1, 3)");
+    assertEquals(3, c.getParseCacheHitCount());
+  }
+
+  public void testOutputBase() {
+    final Calculator c = new Calculator();
+    c.setOutputBase(16);
+    assertEquals("0xff", c.format(c.evaluate("255")));
+    assertEquals("(0x1/0x10)", c.format(makeRational(1, 16)));
+    assertEquals("0.5", c.format(c.evaluate("0.5")));
+    // Integers within lists and matrices are in the output base too.
+    assertEquals("[0xff, 0x10]", c.format(c.evaluate("[255, 16]")));
+    assertEquals("[[0x1, 0x2], [0x3, 0xa]]", c.format(c.evaluate("[[1, 2], [3, 10]]")));
+    assertEquals("[0xff, 0.5, [(0x1/0x2)]]", c.format(new ListNode.Builder().add(IntegerNode.valueOf(255)).add(new RealNode(0.5)).add(new ListNode.Builder().add(makeRational(1, 2)).build()).build()));
+    assertEquals("[255, 16]", new Calculator().format(new Calculator().evaluate("[255, 16]")));
+    // The output base doesn't affect other calculators, or toString.
+    assertEquals("255", new Calculator().format(IntegerNode.valueOf(255)));
+    assertEquals("1,000", c.evaluate("1000").toString());
+  }
+
+  public void testPrecision() {
+    final Calculator c = new Calculator();
+    c.setPrecision(50);
+    check(c, "3.1415926535897932384626433832795028841971693993751", "pi");
+    check(c, "3.1415926535897932384626433832795028841971693993751", "Atan(1)*4");
+    check(c, "3.1415926535897932384626433832795028841971693993751", "Acos(-1)");
+    c.setPrecision(30);
+    check(c, "2.71828182845904523536028747135", "e");
+    check(c, "0", "Exp(1) - e");
+    check(c, "1.41421356237309504880168872421", "Sqrt(2)");
+    check(c, "1.41421356237309504880168872421", "2^0.5");
+    check(c, "2", "Sqrt(4)");
+    check(c, "0.333333333333333333333333333333", "1/3");
+    check(c, "0.25", "2^-2");
+    check(c, "1", "Sin(1)^2 + Cos(1)^2");
+    check(c, "0.5", "Sin(pi/6)");
+    check(c, "10", "Log(2, 1024)");
+    check(c, "2.30258509299404568401799145468", "LogE(10)");
+    check(c, "5.18737751763962026080511767566", "Sum(1/k, k, 1, 100)");
+    check(c, "8.80681822566292158726149600764E+4342", "Exp(10000)");
+    // Exact arithmetic stays exact.
+    check(c, "6", "2*3");
+    check(c, "1.21", "1.1*1.1");
+    check(c, "0.5", "Sqrt(0.25)");
+    // Out-of-domain arguments give the same answers as at machine precision.
+    check(c, "NaN", "Sqrt(-1)");
+    check(c, "NaN", "Asin(2)");
+    c.setDegreesMode(true);
+    check(c, "0.5", "Cos(60)");
+    check(c, "30", "Asin(0.5)");
+    c.setDegreesMode(false);
+    // The precision doesn't affect other calculators.
+    check("3.141592653589793", "pi");
+
+    c.setPrecision(1000);
+    final String pi = c.evaluate("pi").toString();
+    assertEquals(1001, pi.length());
+    assertTrue(pi.startsWith("3.14159265358979323846264338327950288419716939937510"));
+    assertTrue(pi.endsWith("1195909216420199"));
+    assertEquals(pi, c.evaluate("Atan(1)*4").toString());
+
+    c.setPrecision(0);
+    check(c, "3.141592653589793", "pi");
+  }
+
+  public void testConstantsAtManyPrecisions() throws Exception {
+    // Lower-precision values are derived from the cached higher-precision ones, whichever thread computes them first.
+    final String[] names = { "pi", "e", "LogE(2)", "LogE(10)" };
+    final BigDecimal[] expected = new BigDecimal[names.length];
+    final Calculator reference = new Calculator();
+    reference.setPrecision(700);
+    for (int i = 0; i < names.length; ++i) {
+      expected[i] = new BigDecimal(reference.evaluate(names[i]).toString());
+    }
+    final Thread[] threads = new Thread[4];
+    final Throwable[] failures = new Throwable[threads.length];
+    for (int i = 0; i < threads.length; ++i) {
+      final int id = i;
+      threads[i] = new Thread(new Runnable() {
+        public void run() {
+          try {
+            final Calculator c = new Calculator();
+            for (int digits = 20 + id; digits <= 680; digits += 37) {
+              c.setPrecision(digits);
+              final MathContext mc = new MathContext(digits, RoundingMode.HALF_EVEN);
+              for (int j = 0; j < names.length; ++j) {
+                final BigDecimal actual = new BigDecimal(c.evaluate(names[j]).toString());
+                assertEquals(names[j] + " at " + digits + " digits", 0, expected[j].round(mc).compareTo(actual));
+              }
+            }
+          } catch (Throwable th) {
+            failures[id] = th;
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (int i = 0; i < threads.length; ++i) {
+      threads[i].join();
+      if (failures[i] != null) {
+        throw new AssertionFailedError("thread " + i + " failed: " + failures[i]);
+      }
+    }
+  }
+
+  public void testSharedCalculator() throws Exception {
+    final Calculator c = new Calculator();
+    c.evaluate("a = 2");
+    final CompiledExpression f = c.compile("Sum(a*k*x, k, 1, 100)", "x");
+    final Thread[] threads = new Thread[4];
+    final Throwable[] failures = new Throwable[threads.length];
+    for (int i = 0; i < threads.length; ++i) {
+      final int id = i;
+      threads[i] = new Thread(new Runnable() {
+        public void run() {
+          try {
+            for (int j = 0; j < 200; ++j) {
+              assertEquals(IntegerNode.valueOf(10100 * id), f.evaluate(IntegerNode.valueOf(id)));
+              assertEquals(IntegerNode.valueOf(5050), c.evaluate("Sum(k, k, 1, 100)"));
+              assertEquals("[" + (id + 2) + "]", c.evaluate("Map(k + a, k, [" + id + "])").toInputString());
+            }
+          } catch (Throwable th) {
+            failures[id] = th;
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (int i = 0; i < threads.length; ++i) {
+      threads[i].join();
+      if (failures[i] != null) {
+        throw new AssertionFailedError("thread " + i + " failed: " + failures[i]);
+      }
+    }
+  }
+
   public void testLCM() {
     check("0", "LCM(0, 0)");
     check("0", "LCM(12, 0)");
@@ -645,6 +1248,18 @@ public class CalculatorTest extends TestCase {
     check("[1, 3, 5]", "Range(1, 6, 2)");
     check("[4, 3, 2, 1]", "Range(4, 1, -1)");
     check("[1.2, 1.5, 1.8, 2.1]", "Range(1.2, 2.1, 0.3)");
+    check("[10, 7, 4, 1]", "Range(10, 0, -3)");
+    check("[1, 2]", "Range(1, 2.5)");
+    check("[-1, -2, -3]", "Range(-1, -3.5, -1)");
+    check("[]", "Range(1, 0.5)");
+    check("true", "Range(3) == [1, 2, 3]");
+    check("[5, 4, 3, 2, 1]", "Reverse(Range(5))");
+    check("[9, 6, 3]", "Reverse(Range(3, 10, 3))");
+    // Long ranges aren't materialized unless they have to be.
+    check("100000000", "Length(Range(10^8))");
+    check("5000000050000000", "Total(Range(10^8))");
+    check("-100000000", "Total(Range(0 - 10^8, 10^8 - 1, 2))");
+    check("100000000", "Length(Reverse(Range(10^8)))");
   }
 
   public void testReverse() {
@@ -658,6 +1273,106 @@ public class CalculatorTest extends TestCase {
     check("0", "Total([])");
     check("123", "Total([123])");
     check("6", "Total([1, 2, 3])");
+    // A long list mustn't turn into a deeply nested expression.
+    check("5000050000", "Total(Map(x, x, Range(10^5)))");
+  }
+
+  public void testPackedLists() {
+    // Lists of fixnums or reals are packed, but that shouldn't be visible.
+    check("[1, 2, 3]", "Map(x, x, [1, 2, 3])");
+    check("[1.0, 2.0, 3.0]", "Map(Sqrt(x^2), x, [1, 2, 3])");
+    check("true", "Map(x, x, [1, 2, 3]) == [1, 2, 3]");
+    check("true", "Map(Sqrt(x^2), x, [1, 2, 3]) == [1.0, 2.0, 3.0]");
+    check("[3, 2, 1]", "Reverse(Map(x, x, [1, 2, 3]))");
+    // Adding something that doesn't fit unpacks the list.
+    check("[4611686018427387904, 9223372036854775808, 18446744073709551616]", "Map(2^x, x, [62, 63, 64])");
+    check("[1, 1.4142135623730951, 2]", "[1, Sqrt(2), 2]");
+    check("[1.0, x, 3.0]", "[Sqrt(1), x, Sqrt(9)]");
+  }
+
+  public void testMean() {
+    check("2", "Mean([1, 2, 3])");
+    check("2.5", "Mean([1, 2, 3, 4])");
+    check("5.5", "Mean(Range(10))");
+    check("2.0", "Mean([1.5, 2.5])");
+    try {
+      new Calculator().evaluate("Mean([])");
+      fail("no exception was thrown for the mean of an empty list!");
+    } catch (CalculatorError ex) {
+      assertEquals("'Mean' requires a list of at least 1 element", ex.getMessage());
+    }
+    try {
+      new Calculator().evaluate("Mean([1, x])");
+      fail("no exception was thrown for the mean of a symbolic list!");
+    } catch (CalculatorError ex) {
+      assertEquals("'Mean' expected numeric list argument", ex.getMessage());
+    }
+  }
+
+  public void testSummation() {
+    // 10^16 + 3 rounds to 10^16 + 4, so plain summation gets the wrong answer.
+    final String input = "Mean([Sqrt(10^32), Sqrt(9), 0 - Sqrt(10^32)])";
+    Calculator c = new Calculator();
+    check(c, "1.3333333333333333", input);
+    c.setSummation(Calculator.Summation.COMPENSATED);
+    check(c, "1.0", input);
+
+    // Sum and Total of reals use the chosen algorithm too. (Splitting a sum between threads would change the answer.)
+    c = new Calculator();
+    c.setParallelThreshold(Integer.MAX_VALUE);
+    check(c, "16.695311365857272", "Sum(1/i, i, 1, 10^7)");
+    check(c, "1414213.5623829823", "Total(Map(Sqrt(2), x, Range(10^6)))");
+    c.setSummation(Calculator.Summation.PAIRWISE);
+    check(c, "16.695311365859855", "Sum(1/i, i, 1, 10^7)");
+    check(c, "1414213.562373097", "Total(Map(Sqrt(2), x, Range(10^6)))");
+    c.setSummation(Calculator.Summation.COMPENSATED);
+    check(c, "16.69531136585985", "Sum(1/i, i, 1, 10^7)");
+    check(c, "1414213.5623730952", "Total(Map(Sqrt(2), x, Range(10^6)))");
+    check(c, "2.0", "Total([Sqrt(10^32), 1, 1, 0 - Sqrt(10^32)])");
+    // Integers and rationals are still added exactly.
+    check(c, "5000050000", "Total(Map(x, x, Range(10^5)))");
+  }
+
+  public void testVariance() {
+    check("1.6666666666666667", "Variance([1, 2, 3, 4])");
+    check("1.666666666666666666666666666666667", "Variance([1.0, 2.0, 3.0, 4.0])");
+    check("9.166666666666666", "Variance(Range(10))");
+    check("2.138089935299395", "StandardDeviation([2, 4, 4, 4, 5, 5, 7, 9])");
+    try {
+      new Calculator().evaluate("Variance([1])");
+      fail("no exception was thrown for the variance of a single element!");
+    } catch (CalculatorError ex) {
+      assertEquals("'Variance' requires a list of at least 2 elements", ex.getMessage());
+    }
+  }
+
+  public void testMedian() {
+    check("2", "Median([3, 1, 2])");
+    check("2.5", "Median([4, 1, 3, 2])");
+    check("1.5", "Median([1.5, 0.5, 2.5])");
+    check("500000.5", "Median(Range(10^6))");
+  }
+
+  public void testQuantile() {
+    check("3", "Quantile([5, 1, 4, 2, 3], 0.5)");
+    check("[1, 2, 5]", "Quantile([5, 1, 4, 2, 3], [0, 0.25, 1])");
+    try {
+      new Calculator().evaluate("Quantile([1, 2], 2)");
+      fail("no exception was thrown for a quantile greater than 1!");
+    } catch (CalculatorError ex) {
+      assertEquals("'Quantile' requires quantiles between 0 and 1", ex.getMessage());
+    }
+  }
+
+  public void testHistogram() {
+    check("[[1.0, 1], [1.75, 2], [2.5, 3], [3.25, 1]]", "Histogram([1, 2, 2, 3, 3, 3, 4])");
+    check("[[1.0, 3], [2.5, 4]]", "Histogram([1, 2, 2, 3, 3, 3, 4], 2)");
+    try {
+      new Calculator().evaluate("Histogram([1, 2], 0)");
+      fail("no exception was thrown for zero bins!");
+    } catch (CalculatorError ex) {
+      assertEquals("'Histogram' requires a positive number of bins", ex.getMessage());
+    }
   }
 
   public void testMap() {
@@ -705,6 +1420,76 @@ public class CalculatorTest extends TestCase {
     check("[[0, 1], [0, 3]]", "[[1,2],[3,4]]*[[0,1],[0,0]]");
     check("[[3, 4], [0, 0]]", "[[0,1],[0,0]]*[[1,2],[3,4]]");
     check("[[5, 1], [4, 2]]", "[[1,0,2],[-1,3,1]]*[[3,1],[2,1],[1,0]]");
+    // Real matrices, and a mix of real and exact.
+    check("[[0.5, 1.0], [1.5, 2.5]]", "[[Sqrt(0.25), Sqrt(1)], [Sqrt(2.25), Sqrt(4)]]*[[Sqrt(1), Sqrt(1)], [0, Sqrt(0.25)]]");
+    check("[[1.0, 2.5], [3.0, 4.5]]", "Sqrt(1.0)*[[1, 2.5], [3, 4.5]]");
+    try {
+      Calculator calculator = new Calculator();
+      calculator.evaluate("[[1, 2]]*[[1, 2]]");
+      fail();
+    } catch (CalculatorError ex) {
+      assertEquals("matrix multiplication requires compatible matrices", ex.getMessage());
+    }
+  }
+
+  public void testDet() {
+    check("1", "Det([[1]])");
+    check("-2", "Det([[1, 2], [3, 4]])");
+    check("0", "Det([[1, 2, 3], [4, 5, 6], [7, 8, 9]])");
+    check("-1", "Det([[0, 1], [1, 0]])");
+    check("243", "Det(3*IdentityMatrix(5))");
+    // Exact all the way, even when the intermediate values get big.
+    check("-4656000000000000000", "Det([[2, 3, 5, 7, 11], [13, 17, 19, 23, 29], [31, 37, 41, 43, 47], [53, 59, 61, 67, 71], [73, 79, 83, 89, 97]]*1000)");
+    check(-2.0, "Det([[Sqrt(1), 2], [3, 4]])", 1e-15);
+    check("0.0", "Det([[Sqrt(1), 2], [2, 4]])");
+    try {
+      new Calculator().evaluate("Det([[1, 2, 3], [4, 5, 6]])");
+      fail();
+    } catch (CalculatorError ex) {
+      assertEquals("'Det' expected square matrix argument", ex.getMessage());
+    }
+  }
+
+  public void testInverse() {
+    check("[[1, -1], [-1, 2]]", "Inverse([[2, 1], [1, 1]])");
+    check("[[0.6, -0.7], [-0.2, 0.4]]", "Inverse([[4, 7], [2, 6]])");
+    check("[[1, 0, 0], [0, 1, 0], [0, 0, 1]]", "Inverse([[1, 2, 3], [0, 1, 4], [5, 6, 0]])*[[1, 2, 3], [0, 1, 4], [5, 6, 0]]");
+    check("[[0.5, 0.0], [0.0, 0.25]]", "Inverse([[Sqrt(4), 0], [0, Sqrt(16)]])");
+    try {
+      new Calculator().evaluate("Inverse([[1, 2], [2, 4]])");
+      fail();
+    } catch (CalculatorError ex) {
+      assertEquals("matrix is singular", ex.getMessage());
+    }
+    try {
+      new Calculator().evaluate("Inverse([[Sqrt(1), 2], [2, 4]])");
+      fail();
+    } catch (CalculatorError ex) {
+      assertEquals("matrix is singular", ex.getMessage());
+    }
+  }
+
+  public void testLinearSolve() {
+    check("[1, 2]", "LinearSolve([[1, 1], [1, -1]], [3, -1])");
+    check("[[1], [2]]", "LinearSolve([[1, 1], [1, -1]], [[3], [-1]])");
+    check("[0.8, 1.4]", "LinearSolve([[2, 1], [1, 3]], [3, 5])");
+    check("[0.8, 1.4]", "LinearSolve([[Sqrt(4), 1], [1, 3]], [3, 5])");
+    // Pivoting is needed here.
+    check("[2.0, 1.0]", "LinearSolve([[0, Sqrt(1)], [1, 1]], [1, 3])");
+    try {
+      new Calculator().evaluate("LinearSolve([[1, 1], [1, -1]], [1, 2, 3])");
+      fail();
+    } catch (CalculatorError ex) {
+      assertEquals("'LinearSolve' requires a right-hand side with as many rows as the matrix", ex.getMessage());
+    }
+  }
+
+  public void testMatrixEquality() {
+    // A matrix is still a list of lists.
+    check("true", "[[1, 2], [3, 4]] == [[1, 2], [3, 4]]");
+    check("false", "[[1, 2], [3, 4]] == [[1, 2], [3, 5]]");
+    check("true", "IdentityMatrix(2) == [[1, 0], [0, 1]]");
+    check("true", "IsMatrix(Transpose([[1.5, 2], [3, 4]]))");
   }
 
   public void testMatrixAddition() {
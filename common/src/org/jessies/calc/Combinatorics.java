@@ -0,0 +1,232 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.math.*;
+import java.util.*;
+
+/**
+ * Factorials and binomial coefficients, built from their prime factorizations.
+ *
+ * Factorials use Peter Luschny's prime swing algorithm: n! = ((n/2)!)^2 * swing(n), where swing(n) is a product of
+ * small prime powers. Binomial coefficients use Kummer's theorem to find the exponent of each prime directly.
+ * Either way, the final product is formed by binary splitting, so the expensive multiplications are between
+ * numbers of similar size.
+ */
+final class Combinatorics {
+    // Larger arguments would produce results too big to be useful (and the sieve doesn't go further).
+    static final int MAX_ARGUMENT = 1 << 24;
+
+    // Below this, it's quicker to multiply than to factor.
+    private static final int SMALL_ARGUMENT = 32;
+
+    // We remember a few recent large factorials, since they tend to be asked for again (nCr(n, r) and nPr(n, r) for various r, say).
+    // The memo lives as long as the process, so it's limited by the total size of the factorials rather than their number.
+    // Factorials near MAX_ARGUMENT are tens of MB, so we don't remember any factorial bigger than half the limit (about 800,000!).
+    private static final int MEMO_THRESHOLD = 1000;
+    private static final long MEMO_MAX_BITS = 4L * 1024 * 1024 * 8;
+    private static final long MEMO_MAX_ENTRY_BITS = MEMO_MAX_BITS / 2;
+    private static final LinkedHashMap<Integer, BigInteger> memo = new LinkedHashMap<Integer, BigInteger>(16, 0.75f, true);
+    // The total bitLength of the values in the memo. Guarded by the memo's lock.
+    private static long memoBits = 0;
+
+    private Combinatorics() {
+    }
+
+    /**
+     * Returns n! for 0 <= n <= MAX_ARGUMENT.
+     */
+    static BigInteger factorial(int n) {
+        if (n < SMALL_ARGUMENT) {
+            return product(1, n);
+        }
+        if (n >= MEMO_THRESHOLD) {
+            synchronized (memo) {
+                final BigInteger result = memo.get(n);
+                if (result != null) {
+                    return result;
+                }
+            }
+        }
+        // n! is its odd part shifted left by the number of factors of 2, which is n - (number of 1 bits in n).
+        final int[] primes = PrimeSieve.primes(n);
+        final BigInteger result = oddFactorial(n, primes).shiftLeft(n - Integer.bitCount(n));
+        if (n >= MEMO_THRESHOLD) {
+            remember(n, result);
+        }
+        return result;
+    }
+
+    // Adds n! to the memo, forgetting the least recently used factorials to stay within MEMO_MAX_BITS.
+    private static void remember(int n, BigInteger factorial) {
+        final long bits = factorial.bitLength();
+        if (bits > MEMO_MAX_ENTRY_BITS) {
+            return;
+        }
+        synchronized (memo) {
+            final BigInteger old = memo.put(n, factorial);
+            if (old != null) {
+                memoBits -= old.bitLength();
+            }
+            memoBits += bits;
+            final Iterator<BigInteger> it = memo.values().iterator();
+            while (memoBits > MEMO_MAX_BITS) {
+                memoBits -= it.next().bitLength();
+                it.remove();
+            }
+        }
+    }
+
+    // Returns the odd part of n!, given (at least) the primes <= n.
+    private static BigInteger oddFactorial(int n, int[] primes) {
+        if (n < 3) {
+            return BigInteger.ONE;
+        }
+        final BigInteger half = oddFactorial(n / 2, primes);
+        return half.multiply(half).multiply(oddSwing(n, primes));
+    }
+
+    // Returns the odd part of n!/((n/2)!)^2. Each odd prime p <= n appears to the power sum(floor(n/p^i) mod 2).
+    private static BigInteger oddSwing(int n, int[] primes) {
+        final Factors factors = new Factors();
+        for (int i = 1; i < primes.length && primes[i] <= n; ++i) {
+            final int p = primes[i];
+            int exponent = 0;
+            for (int q = n / p; q > 0; q /= p) {
+                exponent += q & 1;
+            }
+            factors.add(p, exponent);
+        }
+        return factors.product();
+    }
+
+    /**
+     * Returns n choose k, for 0 <= n <= MAX_ARGUMENT. The result is 0 if k < 0 or k > n.
+     */
+    static BigInteger binomial(int n, int k) {
+        if (k < 0 || k > n) {
+            return BigInteger.ZERO;
+        }
+        k = Math.min(k, n - k);
+        if (k < SMALL_ARGUMENT) {
+            // Each partial result is itself a binomial coefficient, so the division is exact.
+            BigInteger result = BigInteger.ONE;
+            for (int i = 1; i <= k; ++i) {
+                result = result.multiply(BigInteger.valueOf(n - k + i)).divide(BigInteger.valueOf(i));
+            }
+            return result;
+        }
+        // Kummer: the exponent of p is the number of borrows when subtracting k from n in base p.
+        final Factors factors = new Factors();
+        for (int p : PrimeSieve.primes(n)) {
+            int exponent = 0;
+            int borrow = 0;
+            for (int nn = n, kk = k; nn > 0; nn /= p, kk /= p) {
+                final int digit = nn % p - kk % p - borrow;
+                borrow = (digit < 0) ? 1 : 0;
+                exponent += borrow;
+            }
+            factors.add(p, exponent);
+        }
+        return factors.product();
+    }
+
+    /**
+     * Returns n!/(n - k)!, the number of ordered selections of k items from n, for 0 <= n <= MAX_ARGUMENT.
+     * The result is 0 if k < 0 or k > n.
+     */
+    static BigInteger permutations(int n, int k) {
+        if (k < 0 || k > n) {
+            return BigInteger.ZERO;
+        }
+        if (k < SMALL_ARGUMENT) {
+            return product(n - k + 1, n);
+        }
+        // Legendre: the exponent of p in n! is the sum of floor(n/p^i).
+        final Factors factors = new Factors();
+        for (int p : PrimeSieve.primes(n)) {
+            factors.add(p, legendre(n, p) - legendre(n - k, p));
+        }
+        return factors.product();
+    }
+
+    private static int legendre(int n, int p) {
+        int exponent = 0;
+        for (int q = n / p; q > 0; q /= p) {
+            exponent += q;
+        }
+        return exponent;
+    }
+
+    // Returns the product of the integers in [from, to].
+    private static BigInteger product(int from, int to) {
+        BigInteger result = BigInteger.ONE;
+        for (int i = from; i <= to; ++i) {
+            result = result.multiply(BigInteger.valueOf(i));
+        }
+        return result;
+    }
+
+    /**
+     * Collects prime powers as longs, packing several into each, then multiplies them all together by binary splitting.
+     */
+    private static class Factors {
+        private long[] values = new long[64];
+        private int count = 0;
+        private long current = 1;
+        // Powers of two are cheaper to apply as a shift at the end.
+        private int shift = 0;
+
+        void add(long p, int exponent) {
+            if (p == 2) {
+                shift += exponent;
+                return;
+            }
+            for (int i = 0; i < exponent; ++i) {
+                if (current > Long.MAX_VALUE / p) {
+                    flush();
+                }
+                current *= p;
+            }
+        }
+
+        private void flush() {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, 2 * count);
+            }
+            values[count++] = current;
+            current = 1;
+        }
+
+        BigInteger product() {
+            if (current != 1) {
+                flush();
+            }
+            return ((count == 0) ? BigInteger.ONE : product(0, count)).shiftLeft(shift);
+        }
+
+        private BigInteger product(int start, int end) {
+            if (end - start == 1) {
+                return BigInteger.valueOf(values[start]);
+            }
+            final int mid = (start + end) >>> 1;
+            return product(start, mid).multiply(product(mid, end));
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.*;
+
+/**
+ * An expression that has been parsed once so it can be evaluated many times.
+ *
+ * Each named parameter is resolved to a slot, and every other variable is resolved to the Calculator's
+ * storage for that variable, so evaluation never has to look anything up by name.
+ * (Variables bound by a function such as Sum or Map are the exception: they're looked up as usual.)
+ * Unlike Calculator.evaluate, evaluating a CompiledExpression doesn't change the value of Ans.
+ *
+ * An expression that uses only numbers and functions with a machine-precision real form (arithmetic,
+ * trigonometric functions, and so on) can also be evaluated on raw doubles; see isReal and evaluateReal.
+ */
+public class CompiledExpression {
+    private final Calculator calculator;
+    private final String[] parameterNames;
+    private final Map<String, Integer> parameterSlots;
+    private final Node expression;
+    // Non-null if this expression can be evaluated in machine-precision real arithmetic.
+    private final RealExpression realExpression;
+
+    CompiledExpression(Calculator calculator, Node expression, String... parameterNames) {
+        this.calculator = calculator;
+        this.parameterNames = parameterNames.clone();
+        this.parameterSlots = new HashMap<String, Integer>();
+        for (int i = 0; i < parameterNames.length; ++i) {
+            final String key = parameterNames[i].toLowerCase(Locale.US);
+            if (parameterSlots.put(key, i) != null) {
+                throw new CalculatorError("parameter '" + parameterNames[i] + "' given more than once");
+            }
+        }
+        this.expression = compile(expression, Collections.<String>emptySet());
+        this.realExpression = compileReal(this.expression);
+    }
+
+    private Node compile(Node node, Set<String> boundNames) {
+        if (node instanceof SlotNode || node instanceof ResolvedVariableNode) {
+            // Already compiled by an enclosing CompiledExpression (when Sum's body is compiled while evaluating a compiled expression, say).
+            return node;
+        } else if (node instanceof CalculatorVariableNode) {
+            final String name = ((CalculatorVariableNode) node).name();
+            final String key = name.toLowerCase(Locale.US);
+            if (boundNames.contains(key)) {
+                return node;
+            }
+            final Integer slot = parameterSlots.get(key);
+            if (slot != null) {
+                return new SlotNode(this, name, slot);
+            }
+            return new ResolvedVariableNode(name, calculator.variableFor(name));
+        } else if (node instanceof CalculatorFunction) {
+            final CalculatorFunction function = (CalculatorFunction) node;
+            final List<Node> args = function.args;
+            if (args == null) {
+                return function;
+            }
+            // A function like Sum(k^2, k, 1, 10) binds 'k' itself, so references to 'k' within it must stay references by name.
+            final int boundIndex = function.boundVariableIndex();
+            Set<String> innerBoundNames = boundNames;
+            if (boundIndex != -1 && args.get(boundIndex) instanceof CalculatorVariableNode) {
+                innerBoundNames = new HashSet<String>(boundNames);
+                innerBoundNames.add(((CalculatorVariableNode) args.get(boundIndex)).name().toLowerCase(Locale.US));
+            }
+            final ArrayList<Node> compiledArgs = new ArrayList<Node>(args.size());
+            for (int i = 0; i < args.size(); ++i) {
+                compiledArgs.add(i == boundIndex ? args.get(i) : compile(args.get(i), innerBoundNames));
+            }
+            return function.bind(compiledArgs);
+        } else if (node instanceof ListNode) {
+            final ListNode.Builder result = new ListNode.Builder();
+            for (Node element : (ListNode) node) {
+                result.add(compile(element, boundNames));
+            }
+            return result.build();
+        }
+        // Numbers, booleans, and strings evaluate to themselves.
+        return node;
+    }
+
+    // Returns the equivalent of 'node' on doubles, or null if there isn't one.
+    private RealExpression compileReal(Node node) {
+        if (node instanceof SlotNode) {
+            // A parameter of an enclosing CompiledExpression has to be looked up in the Calculator's frames.
+            final SlotNode slotNode = (SlotNode) node;
+            return (slotNode.owner == this) ? new RealExpression.Slot(slotNode.slot) : null;
+        } else if (node instanceof ResolvedVariableNode) {
+            final Calculator.Variable variable = ((ResolvedVariableNode) node).variable;
+            if (!(variable.value instanceof NumberNode)) {
+                return null;
+            }
+            // Constants can be folded in, but anything else (including Ans) has to be read each time.
+            return variable.isConstant ? compileReal(variable.value) : new RealExpression.Variable(variable);
+        } else if (node instanceof NumberNode) {
+            try {
+                return new RealExpression.Constant(((NumberNode) node).toReal().doubleValue());
+            } catch (RuntimeException ex) {
+                // Too big to be a double.
+                return null;
+            }
+        } else if (node instanceof CalculatorFunction) {
+            final List<Node> args = ((CalculatorFunction) node).args;
+            if (args == null) {
+                return null;
+            }
+            if (node instanceof RealExpression.UnaryFunction && args.size() == 1) {
+                final RealExpression arg = compileReal(args.get(0));
+                return (arg != null) ? new RealExpression.Unary((RealExpression.UnaryFunction) node, arg) : null;
+            } else if (node instanceof RealExpression.BinaryFunction && args.size() == 2) {
+                final RealExpression lhs = compileReal(args.get(0));
+                final RealExpression rhs = compileReal(args.get(1));
+                return (lhs != null && rhs != null) ? new RealExpression.Binary((RealExpression.BinaryFunction) node, lhs, rhs) : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of values that must be passed to evaluate.
+     */
+    public int parameterCount() {
+        return parameterNames.length;
+    }
+
+    /**
+     * Evaluates this expression with each parameter bound to the corresponding value.
+     * A null value leaves that parameter free.
+     * Like Calculator.evaluate, this is safe to call from many threads at once.
+     */
+    public Node evaluate(Node... values) throws CalculatorError {
+        return evaluate(calculator.newScope(), values);
+    }
+
+    // Evaluates in the given scope, which can see the parameters of any enclosing CompiledExpressions being evaluated.
+    Node evaluate(Calculator environment, Node[] values) {
+        if (values.length != parameterNames.length) {
+            throw new CalculatorError("wrong number of values for compiled expression; need exactly " + parameterNames.length + " but got " + values.length);
+        }
+        final Frame savedFrame = environment.frame;
+        environment.frame = new Frame(this, values, savedFrame);
+        try {
+            return expression.evaluate(environment);
+        } finally {
+            environment.frame = savedFrame;
+        }
+    }
+
+    /**
+     * Tests whether this expression can be evaluated by evaluateReal.
+     * That's true if it uses only numbers, numeric variables, and functions with a machine-precision real form.
+     */
+    public boolean isReal() {
+        return realExpression != null;
+    }
+
+    /**
+     * Evaluates this expression in machine-precision real arithmetic with each parameter bound to the corresponding value.
+     * This doesn't allocate, so callers evaluating many times should reuse their array of values.
+     * Only valid if isReal returns true.
+     */
+    public double evaluateReal(double... values) throws CalculatorError {
+        return evaluateReal(calculator, values);
+    }
+
+    double evaluateReal(Calculator environment, double[] values) {
+        if (realExpression == null) {
+            throw new CalculatorError("expression '" + this + "' isn't real-valued");
+        }
+        if (values.length != parameterNames.length) {
+            throw new CalculatorError("wrong number of values for compiled expression; need exactly " + parameterNames.length + " but got " + values.length);
+        }
+        return realExpression.evaluate(environment, values);
+    }
+
+    /**
+     * Returns a program that evaluates all the given expressions at once, computing their common subexpressions
+     * only once, or null if they aren't all real. The expressions must all take the same parameters.
+     */
+    static RealExpression.Program realProgram(CompiledExpression... expressions) {
+        final RealExpression[] realExpressions = new RealExpression[expressions.length];
+        for (int i = 0; i < expressions.length; ++i) {
+            if (expressions[i].realExpression == null) {
+                return null;
+            }
+            realExpressions[i] = expressions[i].realExpression;
+        }
+        return new RealExpression.Program(expressions[0].parameterCount(), realExpressions);
+    }
+
+    @Override public String toString() {
+        return expression.toInputString();
+    }
+
+    // The parameter values for one evaluation of a CompiledExpression.
+    // Frames are chained so that a compiled expression can be evaluated while evaluating another.
+    static class Frame {
+        final CompiledExpression owner;
+        final Node[] values;
+        final Frame next;
+
+        Frame(CompiledExpression owner, Node[] values, Frame next) {
+            this.owner = owner;
+            this.values = values;
+            this.next = next;
+        }
+    }
+
+    // A reference to a parameter.
+    private static class SlotNode extends CalculatorVariableNode {
+        private final CompiledExpression owner;
+        private final int slot;
+
+        SlotNode(CompiledExpression owner, String name, int slot) {
+            super(name);
+            this.owner = owner;
+            this.slot = slot;
+        }
+
+        @Override public Node evaluate(Calculator environment) {
+            for (Frame frame = environment.frame; frame != null; frame = frame.next) {
+                if (frame.owner == owner) {
+                    final Node value = frame.values[slot];
+                    return (value != null) ? value : this;
+                }
+            }
+            return this;
+        }
+    }
+
+    // A reference to a variable (or constant) whose storage was found at compile time.
+    private static class ResolvedVariableNode extends CalculatorVariableNode {
+        private final Calculator.Variable variable;
+
+        ResolvedVariableNode(String name, Calculator.Variable variable) {
+            super(name);
+            this.variable = variable;
+        }
+
+        @Override public Node evaluate(Calculator environment) {
+            final Node value = environment.valueOf(variable);
+            return (value != null) ? value : this;
+        }
+    }
+}
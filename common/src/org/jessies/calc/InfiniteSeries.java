@@ -0,0 +1,314 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.math.*;
+import java.util.*;
+
+/**
+ * Sums and products whose maximum is Infinity.
+ *
+ * We evaluate terms in batches that double in size, and after each batch we try three ways of guessing the limit
+ * of the partial sums (or products) seen so far:
+ *
+ * Levin's u-transform, which copes with alternating, geometric, and logarithmically convergent series alike;
+ * iterated Aitken delta-squared, which is best at alternating and geometric series; and Richardson extrapolation of
+ * the partial sums at 1, 2, 4, 8, ... terms, which is best when the error falls like a power series in 1/n, as it
+ * does for Sum(1/k^2, k, 1, Infinity). How closely successive orders of a method agree tells us how far to trust
+ * it, and we return the most trustworthy estimate once that's within TOLERANCE. A series whose terms fall fast
+ * enough doesn't need any of this, and we notice when a whole batch made no difference.
+ *
+ * Aitken's method converges, wrongly, on series like Sum(1/k^1.5) whose terms all have the same sign and shrink
+ * more slowly than any geometric series, so we don't use it on them; Richardson extrapolation is no use on
+ * anything else. And Levin in double arithmetic can only get about 8 digits right for Sum(1/k^1.5), so if nothing
+ * meets TOLERANCE but something meets LOOSE_TOLERANCE, we return that rounded to the digits we trust.
+ *
+ * Acceleration will happily find a value for divergent series like 1-1+1-1+..., so we only trust it if the terms
+ * are getting smaller in magnitude. The results are always machine-precision reals.
+ */
+final class InfiniteSeries {
+    // The first batch of terms; later batches double the number of terms we have.
+    private static final int FIRST_BATCH_SIZE = 16;
+
+    // If we haven't converged by now, we're not going to.
+    private static final int MAX_TERMS = 1 << 20;
+
+    // Levin and Aitken become unstable in double arithmetic beyond this many terms, so they only look at the first few.
+    private static final int MAX_TRANSFORM_TERMS = 40;
+
+    // How closely successive estimates have to agree.
+    private static final double TOLERANCE = 1e-13;
+    private static final double LOOSE_TOLERANCE = 1e-7;
+
+    private final String name;
+    private final Calculator environment;
+    private final CompiledExpression expr;
+    private final NumberNode iMin;
+    private final boolean isSum;
+
+    // partials[n] is the sum (or product) of terms 0..n, and terms[n] is partials[n] - partials[n-1].
+    private double[] partials = new double[2 * FIRST_BATCH_SIZE];
+    private double[] terms = new double[2 * FIRST_BATCH_SIZE];
+    private int count = 0;
+
+    // The best estimate so far, and how far we trust it.
+    private double estimate;
+    private double error = Double.POSITIVE_INFINITY;
+
+    private InfiniteSeries(String name, Calculator environment, CompiledExpression expr, NumberNode iMin, boolean isSum) {
+        this.name = name;
+        this.environment = environment;
+        this.expr = expr;
+        this.iMin = iMin;
+        this.isSum = isSum;
+    }
+
+    /**
+     * Returns the sum (or product) of the terms for iMin, iMin+1, ... forever.
+     */
+    static NumberNode evaluate(String name, Calculator environment, CompiledExpression expr, NumberNode iMin, boolean isSum) {
+        if (!isFinite(iMin)) {
+            throw new CalculatorError("'" + name + "' requires a finite minimum");
+        }
+        return new RealNode(new InfiniteSeries(name, environment, expr, iMin, isSum).evaluate());
+    }
+
+    private static boolean isFinite(NumberNode n) {
+        if (n instanceof RealNode) {
+            final double x = ((RealNode) n).doubleValue();
+            return !Double.isInfinite(x) && !Double.isNaN(x);
+        }
+        return true;
+    }
+
+    private double evaluate() {
+        // Partial sums are where we lose accuracy, so we always use compensated summation.
+        final RealSum sum = new RealSum(Calculator.Summation.COMPENSATED);
+        double product = 1;
+        int batchSize = FIRST_BATCH_SIZE;
+        while (count + batchSize <= MAX_TERMS) {
+            ensureCapacity(count + batchSize);
+            final int end = count + batchSize;
+            for (; count < end; ++count) {
+                final double term = term(count);
+                final double partial;
+                if (isSum) {
+                    sum.add(term);
+                    partial = sum.doubleValue();
+                } else {
+                    product *= term;
+                    partial = product;
+                }
+                if (Double.isNaN(partial) || Double.isInfinite(partial)) {
+                    throw divergent();
+                }
+                partials[count] = partial;
+                terms[count] = isSum ? term : partial - ((count > 0) ? partials[count - 1] : 1);
+            }
+            // A series whose terms have become negligible doesn't need any help.
+            if (recentChange() <= TOLERANCE * Math.abs(partials[count - 1])) {
+                return partials[count - 1];
+            }
+
+            final boolean isLogarithmic = isLogarithmic();
+            if (count <= 2 * MAX_TRANSFORM_TERMS) {
+                final int n = Math.min(count, MAX_TRANSFORM_TERMS);
+                if (isShrinking(n)) {
+                    final double[] levin = new double[n + 1];
+                    final double[] aitken = new double[n + 1];
+                    for (int order = 2; order <= n; ++order) {
+                        levin[order] = levin(order);
+                        aitken[order] = isLogarithmic ? Double.NaN : aitken(order);
+                    }
+                    consider(levin);
+                    consider(aitken);
+                }
+            }
+            if (isLogarithmic && isShrinking(count)) {
+                richardson();
+            }
+            if (error <= TOLERANCE * Math.abs(estimate) && isPlausible(estimate)) {
+                return estimate;
+            }
+            batchSize = count;
+        }
+
+        // We've run out of terms, so settle for fewer digits, from acceleration or (for series like Sum(Sin(k)/k^2)
+        // that none of our methods suit) from the partial sums themselves, if they've stopped moving.
+        double result = partials[count - 1];
+        double resultError = 0;
+        for (int i = count / 2; i < count; ++i) {
+            resultError = Math.max(resultError, Math.abs(result - partials[i - 1]));
+        }
+        if (error < resultError && isPlausible(estimate)) {
+            result = estimate;
+            resultError = error;
+        }
+        if (resultError == 0) {
+            return result;
+        } else if (resultError <= LOOSE_TOLERANCE * Math.abs(result)) {
+            // Keep only the digits that agreed, less one because agreement is only a guide to the error.
+            final int digits = (int) Math.floor(-Math.log10(resultError / Math.abs(result))) - 1;
+            return new BigDecimal(result).round(new MathContext(digits)).doubleValue();
+        }
+        throw divergent();
+    }
+
+    // Returns the total magnitude of the terms in the second half so far.
+    private double recentChange() {
+        double result = 0;
+        for (int i = count / 2; i < count; ++i) {
+            result += Math.abs(terms[i]);
+        }
+        return result;
+    }
+
+    // Tests whether the rest of the series could plausibly take the latest partial sum to 'limit', given how much
+    // the second half of the terms moved it. Even Sum(1/k^1.1) only needs a factor of 14 here, but accidental
+    // agreement between successive orders of a method that doesn't suit the series usually misses by far more.
+    // If the recent terms all have the same sign, the limit must also lie beyond the latest partial sum in that
+    // direction, which stops Levin from summing divergent series like Sum(1/Sqrt(k)) to something negative.
+    private boolean isPlausible(double limit) {
+        final double latest = partials[count - 1];
+        final double remainder = limit - latest;
+        if (Math.abs(remainder) > 20 * recentChange()) {
+            return false;
+        }
+        final int mid = count / 2;
+        for (int i = mid + 1; i < count; ++i) {
+            if ((terms[i] < 0) != (terms[mid] < 0)) {
+                return true;
+            }
+        }
+        return (terms[mid] < 0) ? remainder <= TOLERANCE * Math.abs(latest) : remainder >= -TOLERANCE * Math.abs(latest);
+    }
+
+    private CalculatorError divergent() {
+        return new CalculatorError("'" + name + "' doesn't converge");
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > partials.length) {
+            final int newLength = Math.max(capacity, 2 * partials.length);
+            partials = Arrays.copyOf(partials, newLength);
+            terms = Arrays.copyOf(terms, newLength);
+        }
+    }
+
+    private double term(int index) {
+        if (expr.isReal()) {
+            final double[] values = new double[] { iMin.toReal().doubleValue() + index };
+            return expr.evaluateReal(environment, values);
+        }
+        final Node[] values = new Node[] { iMin.plus(IntegerNode.valueOf(index)) };
+        return CalculatorFunction.toNumber(name, environment, expr.evaluate(environment, values)).toReal().doubleValue();
+    }
+
+    // Tests whether the magnitude of the terms (which for a product means the changes in the partial products)
+    // fell over the second half of the first n.
+    private boolean isShrinking(int n) {
+        return Math.abs(terms[n - 1]) < Math.abs(terms[n / 2]);
+    }
+
+    // Tests whether the terms in the second half so far all have the same sign, and the ratio of successive terms
+    // is creeping up towards 1 (rather than staying put, as it does for a geometric series, or falling, as it does
+    // for anything faster). That's when Aitken's method fails and Richardson's succeeds.
+    private boolean isLogarithmic() {
+        final int mid = count / 2;
+        for (int i = mid + 1; i < count; ++i) {
+            if ((terms[i] < 0) != (terms[mid] < 0)) {
+                return false;
+            }
+        }
+        final double earlyRatio = terms[mid + 1] / terms[mid];
+        final double lateRatio = terms[count - 1] / terms[count - 2];
+        return lateRatio - earlyRatio > 1e-9;
+    }
+
+    // Takes successive estimates from one method (starting from estimates[2]), and keeps the newest of any three
+    // in a row that agree better than the best we've seen so far (in any batch). Two can agree by accident:
+    // Levin's third and fourth orders both give exactly 25/12 for Sum(1/(k^2+1), k, 0, Infinity).
+    private void consider(double[] estimates) {
+        for (int i = 4; i < estimates.length; ++i) {
+            final double difference = Math.max(Math.abs(estimates[i] - estimates[i - 1]), Math.abs(estimates[i - 1] - estimates[i - 2]));
+            if (!Double.isNaN(difference) && difference < error) {
+                estimate = estimates[i];
+                error = difference;
+            }
+        }
+    }
+
+    // Returns Levin's u-transform of the first n partial sums, with beta = 1.
+    private double levin(int n) {
+        final int k = n - 1;
+        double numerator = 0;
+        double denominator = 0;
+        double binomial = 1;
+        for (int j = 0; j <= k; ++j) {
+            if (terms[j] == 0) {
+                return Double.NaN;
+            }
+            final double weight = ((j % 2 == 0) ? binomial : -binomial) * Math.pow((double) (j + 1) / (k + 1), k - 1) / ((j + 1) * terms[j]);
+            numerator += weight * partials[j];
+            denominator += weight;
+            binomial = binomial * (k - j) / (j + 1);
+        }
+        return numerator / denominator;
+    }
+
+    // Returns the last element of the deepest level of the iterated Aitken delta-squared transform of the first n partial sums.
+    private double aitken(int n) {
+        final double[] s = new double[n];
+        System.arraycopy(partials, 0, s, 0, n);
+        int length = n;
+        while (length >= 3) {
+            for (int i = 0; i < length - 2; ++i) {
+                final double d2 = s[i + 2] - 2 * s[i + 1] + s[i];
+                if (d2 == 0) {
+                    // The sequence is already (numerically) constant here.
+                    return s[length - 1];
+                }
+                s[i] = s[i + 2] - (s[i + 2] - s[i + 1]) * (s[i + 2] - s[i + 1]) / d2;
+            }
+            length -= 2;
+        }
+        return s[length - 1];
+    }
+
+    // Considers Richardson extrapolation of the partial sums at 1, 2, 4, ... count terms, in powers of 1/n.
+    private void richardson() {
+        int levels = 0;
+        while ((1 << levels) <= count) {
+            ++levels;
+        }
+        final double[][] table = new double[levels][];
+        final double[] diagonal = new double[levels + 2];
+        for (int j = 0; j < levels; ++j) {
+            table[j] = new double[j + 1];
+            table[j][0] = partials[(1 << j) - 1];
+            double power = 1;
+            for (int i = 1; i <= j; ++i) {
+                power *= 2;
+                table[j][i] = table[j][i - 1] + (table[j][i - 1] - table[j - 1][i - 1]) / (power - 1);
+            }
+            diagonal[j + 2] = table[j][j];
+        }
+        consider(diagonal);
+    }
+}
@@ -36,9 +36,6 @@ public class IntegerNode implements Comparable<IntegerNode>, NumberNode {
     public static final IntegerNode ZERO = IntegerNode.valueOf(0);
     public static final IntegerNode ONE = IntegerNode.valueOf(1);
 
-    // Used by factorial.
-    private static final BigInteger BIG_INTEGER_TWO = BigInteger.valueOf(2);
-
     // If 'bignum' is null, this IntegerNode's value is 'fixnum'. Otherwise, it's 'bignum' and 'fixnum' is ignored.
     private final long fixnum;
     private final BigInteger bignum;
@@ -222,8 +219,11 @@ public class IntegerNode implements Comparable<IntegerNode>, NumberNode {
      * The suggested idiom for performing any boolean comparison 'op' is: (x.compareTo(y) op 0).
      */
     public int compareTo(IntegerNode rhs) {
-        if (isBig() || rhs.isBig()) {
-            return big().compareTo(rhs.big());
+        if (isBig() && rhs.isBig()) {
+            return bignum.compareTo(rhs.bignum);
+        } else if (isBig() || rhs.isBig()) {
+            // A bignum is always outside the fixnum range, so its sign tells us which side it's on.
+            return isBig() ? bignum.signum() : -rhs.bignum.signum();
         } else {
             if (fixnum < rhs.fixnum) {
                 return -1;
@@ -242,8 +242,15 @@ public class IntegerNode implements Comparable<IntegerNode>, NumberNode {
             return toReal().divide(rhs);
         }
 
+        IntegerNode iRhs = (IntegerNode) rhs;
+        if (!isBig() && !iRhs.isBig() && iRhs.fixnum != 0 && !(fixnum == Long.MIN_VALUE && iRhs.fixnum == -1)) {
+            if (fixnum % iRhs.fixnum == 0) {
+                return IntegerNode.valueOf(fixnum / iRhs.fixnum);
+            } else {
+                return toReal().divide(rhs);
+            }
+        }
         try {
-            IntegerNode iRhs = (IntegerNode) rhs;
             BigInteger[] divmod = big().divideAndRemainder(iRhs.big());
             if (divmod[1].equals(BigInteger.ZERO)) {
                 return new IntegerNode(divmod[0]);
@@ -260,26 +267,18 @@ public class IntegerNode implements Comparable<IntegerNode>, NumberNode {
         final int signum = n.signum();
         if (signum < 0) {
             throw new IllegalArgumentException("factorial requires a non-negative integer argument; got " + this + " instead");
-        } else if (signum == 0) {
-            return IntegerNode.ONE;
+        } else if (isBig() || fixnum > Combinatorics.MAX_ARGUMENT) {
+            throw new CalculatorError("factorial argument " + this + " too large");
         }
-        // Based on fact6 from Richard J Fateman's "Comments on Factorial Programs".
-        return IntegerNode.valueOf(factorialHelper(n, BigInteger.ONE));
+        return IntegerNode.valueOf(Combinatorics.factorial((int) fixnum));
     }
 
     public static IntegerNode gcd(IntegerNode a, IntegerNode b) {
-        // If you special-case !isBig, don't forget to test Long.MIN_VALUE!
-        return IntegerNode.valueOf(a.big().abs().gcd(b.big().abs()));
-    }
-
-    private static BigInteger factorialHelper(BigInteger n, BigInteger m) {
-        if (n.compareTo(m) <= 0) {
-            return n;
+        // Long.MIN_VALUE has no fixnum absolute value, so it has to go the slow way.
+        if (a.isBig() || b.isBig() || a.fixnum == Long.MIN_VALUE || b.fixnum == Long.MIN_VALUE) {
+            return IntegerNode.valueOf(a.big().abs().gcd(b.big().abs()));
         }
-        // shiftLeft(1) - 550145094 ns
-        // multiply()   - 535161265 ns
-        final BigInteger twoM = BIG_INTEGER_TWO.multiply(m); // This seems consistently faster than m.shiftLeft(1)!
-        return factorialHelper(n, twoM).multiply(factorialHelper(n.subtract(m), twoM));
+        return IntegerNode.valueOf(NumberTheory.gcd(Math.abs(a.fixnum), Math.abs(b.fixnum)));
     }
 
     public NumberNode fractionalPart() {
@@ -299,71 +298,31 @@ public class IntegerNode implements Comparable<IntegerNode>, NumberNode {
     }
 
     public BooleanNode isPrime() {
-        if (isBig() || fixnum > Integer.MAX_VALUE || fixnum <= Integer.MIN_VALUE) {
-            throw new CalculatorError("IsPrime uses a naive algorithm unsuitable for huge numbers");
-        }
-        return isPrime((int) fixnum);
-    }
-
-    private static BooleanNode isPrime(int n) {
-      // FIXME: replace the naive algorithm with something better.
-      if (n == 1) {
-        return BooleanNode.FALSE;
-      }
-      if (n == 2) {
-        return BooleanNode.TRUE;
-      }
-      if ((n % 2) == 0) {
-        return BooleanNode.FALSE;
-      }
-      final int max = (int) Math.sqrt(n);
-      for (int i = 3; i <= max; i += 2) {
-        if (n % i == 0) {
-          return BooleanNode.FALSE;
-        }
-      }
-      return BooleanNode.TRUE;
+        return BooleanNode.valueOf(isBig() ? NumberTheory.isPrime(bignum) : PrimeSieve.isPrime(fixnum));
     }
 
     public ListNode primeFactors() {
-      if (isBig() || fixnum > Integer.MAX_VALUE || fixnum <= Integer.MIN_VALUE) {
-        throw new CalculatorError("Factors uses a naive algorithm unsuitable for huge numbers");
+      final ListNode.Builder result = new ListNode.Builder();
+      for (BigInteger factor : NumberTheory.primeFactors(big())) {
+        result.add(IntegerNode.valueOf(factor));
       }
-
-      // FIXME: replace the naive algorithm with something better.
-      int n = Math.abs((int) fixnum);
-
-      final ListNode result = new ListNode();
-      for (int factor = 2; factor <= n; ++factor) {
-        if ((n % factor) == 0) {
-          result.add(IntegerNode.valueOf(factor));
-          n /= factor;
-          --factor; // Try this factor again.
+      if (big().signum() < 0) {
+        // The sign goes on the smallest factor, or stands alone for -1.
+        if (result.size() == 0) {
+          result.add(IntegerNode.valueOf(-1));
+        } else {
+          result.set(0, IntegerNode.ZERO.subtract((IntegerNode) result.get(0)));
         }
       }
-      if (fixnum < 0) {
-        result.set(0, IntegerNode.ZERO.subtract((IntegerNode) result.get(0)));
-      }
-      return result;
+      return result.build();
     }
 
     public ListNode divisors() {
-      if (isBig() || fixnum > Integer.MAX_VALUE || fixnum <= Integer.MIN_VALUE) {
-        throw new CalculatorError("Factors uses a naive algorithm unsuitable for huge numbers");
+      final ListNode.Builder result = new ListNode.Builder();
+      for (BigInteger divisor : NumberTheory.divisors(big())) {
+        result.add(IntegerNode.valueOf(divisor));
       }
-
-      // FIXME: replace the naive algorithm with something better.
-      int n = Math.abs((int) fixnum);
-
-      final ListNode result = new ListNode();
-
-      // TODO: only need to go to sqrt(n) if we build the list from both ends by actually dividing.
-      for (int i = 1; i <= n; ++i) {
-        if ((n % i) == 0) {
-          result.add(IntegerNode.valueOf(i));
-        }
-      }
-      return result;
+      return result.build();
     }
 
     public IntegerNode mod(IntegerNode rhs) {
@@ -378,6 +337,43 @@ public class IntegerNode implements Comparable<IntegerNode>, NumberNode {
         }
     }
 
+    /**
+     * Returns this^exponent % modulus, with the same sign convention as mod, but without computing this^exponent in full.
+     * A negative exponent uses the modular inverse.
+     */
+    public IntegerNode powerMod(IntegerNode exponent, IntegerNode modulus) {
+        if (modulus.compareTo(IntegerNode.ZERO) == 0) {
+            throw new CalculatorError("division by zero");
+        }
+        final BigInteger m = modulus.big().abs();
+        BigInteger base = big();
+        BigInteger e = exponent.big();
+        if (e.signum() < 0) {
+            base = modInverse(modulus).big();
+            e = e.negate();
+        }
+        BigInteger result = NumberTheory.powerMod(base.mod(m), e, m);
+        // A remainder takes the sign of the dividend, and this^exponent is only negative for a negative base and an odd exponent.
+        if (big().signum() < 0 && e.testBit(0) && result.signum() != 0) {
+            result = result.subtract(m);
+        }
+        return IntegerNode.valueOf(result);
+    }
+
+    /**
+     * Returns the x in [0, |modulus|) such that this*x % modulus is 1.
+     */
+    public IntegerNode modInverse(IntegerNode modulus) {
+        if (modulus.compareTo(IntegerNode.ZERO) == 0) {
+            throw new CalculatorError("division by zero");
+        }
+        try {
+            return IntegerNode.valueOf(big().modInverse(modulus.big().abs()));
+        } catch (ArithmeticException ex) {
+            throw new CalculatorError(this + " has no inverse modulo " + modulus);
+        }
+    }
+
     public NumberNode plus(NumberNode rhs) {
         if (rhs instanceof BigRealNode) {
             return toBigReal().plus(rhs);
@@ -405,13 +401,50 @@ public class IntegerNode implements Comparable<IntegerNode>, NumberNode {
         if (rhs instanceof BigRealNode || rhs instanceof RealNode || rhs.sign().compareTo(MINUS_ONE) == 0) {
             return toReal().power(rhs);
         }
-        // FIXME: special-case small enough fixnums?
         final IntegerNode exponent = (IntegerNode) rhs;
+        if (!isBig()) {
+            // These bases never overflow, however large the exponent.
+            if (fixnum == 1 || (fixnum == 0 && exponent.compareTo(IntegerNode.ZERO) > 0)) {
+                return this;
+            } else if (fixnum == -1) {
+                return exponent.big().testBit(0) ? this : IntegerNode.ONE;
+            }
+        }
         if (exponent.isBig() || exponent.fixnum > Integer.MAX_VALUE) {
             throw new CalculatorError("can't raise " + this + " to the " + exponent + "th power");
         }
+        // Any other base overflows by the 64th power, so there's no point trying the fixnum path beyond that.
+        if (!isBig() && exponent.fixnum < 64) {
+            final long result = fixnumPower(fixnum, (int) exponent.fixnum);
+            if (result != 0) {
+                return IntegerNode.valueOf(result);
+            }
+        }
         return new IntegerNode(big().pow(exponent.intValue()));
+    }
 
+    // Returns base^exponent by square-and-multiply, or 0 if it doesn't fit in a long. The base must not be 0.
+    private static long fixnumPower(long base, int exponent) {
+        long result = 1;
+        for (int e = exponent; ; ) {
+            if ((e & 1) != 0) {
+                final long product = result * base;
+                if (NumberTheory.multiplyHigh(result, base) != (product >> 63)) {
+                    return 0;
+                }
+                result = product;
+            }
+            e >>= 1;
+            if (e == 0) {
+                return result;
+            }
+            // If the square overflows, so will the result, since it includes at least this square.
+            final long square = base * base;
+            if (NumberTheory.multiplyHigh(base, base) != 0 || square < 0) {
+                return 0;
+            }
+            base = square;
+        }
     }
 
     public IntegerNode sign() {
@@ -466,17 +499,12 @@ public class IntegerNode implements Comparable<IntegerNode>, NumberNode {
         } else {
             final long a = fixnum;
             final long b = iRhs.fixnum;
-            // https://www.securecoding.cert.org/confluence/display/seccode/INT32-C.+Ensure+that+operations+on+signed+integers+do+not+result+in+overflow?showComments=false
-            boolean overflow;
-            if (a > 0) {
-                overflow = ((b > 0) && (a > Long.MAX_VALUE / b)) || ((b <= 0) && (b < Long.MIN_VALUE / a));
+            final long c = a * b;
+            // Two ints can't overflow a long. Otherwise, the product fits if the high half of the 128-bit product is just the low half's sign.
+            if (((a + 0x80000000L) | (b + 0x80000000L)) >>> 32 == 0 || NumberTheory.multiplyHigh(a, b) == (c >> 63)) {
+                return IntegerNode.valueOf(c);
             } else {
-                overflow = ((b > 0) && (a < Long.MIN_VALUE / b)) || ((b <= 0) && (a != 0 && b < (Long.MAX_VALUE / a)));
-            }
-            if (overflow) {
                 return new IntegerNode(big().multiply(iRhs.big()));
-            } else {
-                return IntegerNode.valueOf(a*b);
             }
         }
     }
@@ -547,6 +575,6 @@ public class IntegerNode implements Comparable<IntegerNode>, NumberNode {
   }
 
   @Override public String toString() {
-    return toString(Calculator.getOutputBase());
+    return toString(10);
   }
 }
@@ -0,0 +1,275 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.math.*;
+
+/**
+ * Determinants, inverses, and the solution of linear systems.
+ *
+ * Matrices of integers and rationals are solved exactly by Bareiss' fraction-free elimination: we scale each row
+ * to clear its denominators, and then every intermediate value is itself the determinant of a submatrix, so every
+ * division is exact and the integers stay about as small as they can. Only the final quotients go through the
+ * calculator's usual division.
+ *
+ * Anything else is solved in doubles, by LU decomposition with partial pivoting.
+ */
+final class LinearAlgebra {
+    private LinearAlgebra() {
+    }
+
+    /**
+     * Returns the determinant of the square matrix 'm'.
+     */
+    static NumberNode determinant(Calculator environment, MatrixNode m) {
+        final int n = m.rowCount();
+        if (m.isExact()) {
+            final BigInteger[] scales = new BigInteger[n];
+            final BigInteger[][] a = toIntegers(m, null, scales);
+            BigInteger product = BigInteger.ONE;
+            for (BigInteger scale : scales) {
+                product = product.multiply(scale);
+            }
+            return CalculatorFunctions.divide(environment, IntegerNode.valueOf(bareissDeterminant(a)), IntegerNode.valueOf(product));
+        }
+        final double[] lu = m.toReals().clone();
+        final int sign = luDecompose(lu, n, null);
+        double result = sign;
+        for (int i = 0; i < n; ++i) {
+            result *= lu[i * n + i];
+        }
+        // Adding 0 turns -0.0 into 0.0.
+        return new RealNode(result + 0.0);
+    }
+
+    /**
+     * Returns the inverse of the square matrix 'm'.
+     */
+    static MatrixNode inverse(Calculator environment, MatrixNode m) {
+        return solve(environment, m, MatrixNode.identity(m.rowCount()));
+    }
+
+    /**
+     * Returns the matrix x such that a*x = b, where 'a' is square and 'b' has the same number of rows.
+     */
+    static MatrixNode solve(Calculator environment, MatrixNode a, MatrixNode b) {
+        final int n = a.rowCount();
+        final int k = b.columnCount();
+        if (a.isExact() && b.isExact()) {
+            final BigInteger[][] augmented = toIntegers(a, b, new BigInteger[n]);
+            bareissGaussJordan(augmented, n);
+            // The left half is now diagonal, so each row of the right half just needs dividing by its diagonal element.
+            final NumberNode[] result = new NumberNode[n * k];
+            for (int i = 0; i < n; ++i) {
+                final IntegerNode divisor = IntegerNode.valueOf(augmented[i][i]);
+                for (int j = 0; j < k; ++j) {
+                    result[i * k + j] = CalculatorFunctions.divide(environment, IntegerNode.valueOf(augmented[i][n + j]), divisor);
+                }
+            }
+            return MatrixNode.fromElements(n, k, result);
+        }
+
+        final double[] lu = a.toReals().clone();
+        final int[] permutation = new int[n];
+        luDecompose(lu, n, permutation);
+        final double[] x = new double[n * k];
+        final double[] bReals = b.toReals();
+        for (int i = 0; i < n; ++i) {
+            System.arraycopy(bReals, permutation[i] * k, x, i * k, k);
+        }
+        // Solve L*y = P*b, where L has a unit diagonal. We work on whole rows, so we solve for every column of b at once.
+        for (int i = 0; i < n; ++i) {
+            for (int r = 0; r < i; ++r) {
+                final double l = lu[i * n + r];
+                if (l != 0) {
+                    for (int j = 0; j < k; ++j) {
+                        x[i * k + j] -= l * x[r * k + j];
+                    }
+                }
+            }
+        }
+        // Then U*x = y.
+        for (int i = n - 1; i >= 0; --i) {
+            for (int r = i + 1; r < n; ++r) {
+                final double u = lu[i * n + r];
+                if (u != 0) {
+                    for (int j = 0; j < k; ++j) {
+                        x[i * k + j] -= u * x[r * k + j];
+                    }
+                }
+            }
+            final double pivot = lu[i * n + i];
+            for (int j = 0; j < k; ++j) {
+                x[i * k + j] /= pivot;
+            }
+        }
+        return MatrixNode.fromReals(n, k, x);
+    }
+
+    // Returns the rows of 'a' (followed by the rows of 'b', if it's non-null) as integers,
+    // each row multiplied by the lcm of its denominators, which we store in 'scales'.
+    private static BigInteger[][] toIntegers(MatrixNode a, MatrixNode b, BigInteger[] scales) {
+        final int n = a.rowCount();
+        final int width = n + ((b != null) ? b.columnCount() : 0);
+        final BigInteger[][] result = new BigInteger[n][width];
+        final NumberNode[] row = new NumberNode[width];
+        for (int i = 0; i < n; ++i) {
+            BigInteger scale = BigInteger.ONE;
+            for (int j = 0; j < width; ++j) {
+                row[j] = (j < n) ? a.get(i, j) : b.get(i, j - n);
+                if (row[j] instanceof RationalNode) {
+                    final BigInteger q = ((RationalNode) row[j]).denominator().big();
+                    scale = scale.divide(scale.gcd(q)).multiply(q);
+                }
+            }
+            for (int j = 0; j < width; ++j) {
+                if (row[j] instanceof RationalNode) {
+                    final RationalNode r = (RationalNode) row[j];
+                    result[i][j] = scale.divide(r.denominator().big()).multiply(r.numerator().big());
+                } else {
+                    result[i][j] = ((IntegerNode) row[j]).big().multiply(scale);
+                }
+            }
+            scales[i] = scale;
+        }
+        return result;
+    }
+
+    // Swaps rows i and k of 'a'.
+    private static void swapRows(BigInteger[][] a, int i, int k) {
+        final BigInteger[] tmp = a[i];
+        a[i] = a[k];
+        a[k] = tmp;
+    }
+
+    // Returns the index of the first row from 'k' on with a non-zero element in column 'k', or -1 if there isn't one.
+    private static int findPivot(BigInteger[][] a, int n, int k) {
+        for (int i = k; i < n; ++i) {
+            if (a[i][k].signum() != 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Returns the determinant of the n*n matrix 'a', destroying 'a' in the process.
+    private static BigInteger bareissDeterminant(BigInteger[][] a) {
+        final int n = a.length;
+        BigInteger previousPivot = BigInteger.ONE;
+        int sign = 1;
+        for (int k = 0; k < n - 1; ++k) {
+            final int pivotRow = findPivot(a, n, k);
+            if (pivotRow == -1) {
+                return BigInteger.ZERO;
+            }
+            if (pivotRow != k) {
+                swapRows(a, pivotRow, k);
+                sign = -sign;
+            }
+            final BigInteger pivot = a[k][k];
+            for (int i = k + 1; i < n; ++i) {
+                for (int j = k + 1; j < n; ++j) {
+                    a[i][j] = pivot.multiply(a[i][j]).subtract(a[i][k].multiply(a[k][j])).divide(previousPivot);
+                }
+            }
+            previousPivot = pivot;
+        }
+        return (sign < 0) ? a[n - 1][n - 1].negate() : a[n - 1][n - 1];
+    }
+
+    // Reduces the first n columns of the n*width matrix 'a' to a diagonal matrix whose elements are all the
+    // determinant of the (row-permuted) left half, applying the same row operations to the remaining columns.
+    private static void bareissGaussJordan(BigInteger[][] a, int n) {
+        final int width = a[0].length;
+        BigInteger previousPivot = BigInteger.ONE;
+        for (int k = 0; k < n; ++k) {
+            final int pivotRow = findPivot(a, n, k);
+            if (pivotRow == -1) {
+                throw new CalculatorError("matrix is singular");
+            }
+            swapRows(a, pivotRow, k);
+            final BigInteger pivot = a[k][k];
+            for (int i = 0; i < n; ++i) {
+                if (i == k) {
+                    continue;
+                }
+                final BigInteger aik = a[i][k];
+                for (int j = 0; j < width; ++j) {
+                    if (j != k) {
+                        a[i][j] = pivot.multiply(a[i][j]).subtract(aik.multiply(a[k][j])).divide(previousPivot);
+                    }
+                }
+                a[i][k] = BigInteger.ZERO;
+            }
+            previousPivot = pivot;
+        }
+    }
+
+    // Replaces the n*n row-major matrix 'a' with its LU decomposition (with L's unit diagonal left implicit).
+    // If 'permutation' is non-null, it's filled in so that row i of L*U is row permutation[i] of the original.
+    // Returns the sign of the permutation, for the determinant. Throws if 'a' is singular and we're going to solve.
+    private static int luDecompose(double[] a, int n, int[] permutation) {
+        if (permutation != null) {
+            for (int i = 0; i < n; ++i) {
+                permutation[i] = i;
+            }
+        }
+        int sign = 1;
+        for (int k = 0; k < n; ++k) {
+            // Partial pivoting: use the largest element in the column, so we never multiply by anything bigger than 1.
+            int pivotRow = k;
+            for (int i = k + 1; i < n; ++i) {
+                if (Math.abs(a[i * n + k]) > Math.abs(a[pivotRow * n + k])) {
+                    pivotRow = i;
+                }
+            }
+            final double pivot = a[pivotRow * n + k];
+            if (pivot == 0) {
+                if (permutation != null) {
+                    throw new CalculatorError("matrix is singular");
+                }
+                // The determinant is 0, and the zero we just found on the diagonal will make sure we return that.
+                return sign;
+            }
+            if (pivotRow != k) {
+                for (int j = 0; j < n; ++j) {
+                    final double tmp = a[k * n + j];
+                    a[k * n + j] = a[pivotRow * n + j];
+                    a[pivotRow * n + j] = tmp;
+                }
+                if (permutation != null) {
+                    final int tmp = permutation[k];
+                    permutation[k] = permutation[pivotRow];
+                    permutation[pivotRow] = tmp;
+                }
+                sign = -sign;
+            }
+            for (int i = k + 1; i < n; ++i) {
+                final double factor = a[i * n + k] / pivot;
+                a[i * n + k] = factor;
+                if (factor != 0) {
+                    for (int j = k + 1; j < n; ++j) {
+                        a[i * n + j] -= factor * a[k * n + j];
+                    }
+                }
+            }
+        }
+        return sign;
+    }
+}
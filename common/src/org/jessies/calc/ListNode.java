@@ -20,30 +20,188 @@ package org.jessies.calc;
 
 import java.util.*;
 
+/**
+ * A list. Lists can't be changed once they're built; see Builder.
+ */
 public class ListNode implements Iterable<Node>, Node {
-    private final List<Node> values = new ArrayList<Node>();
+    // A list of nothing but fixnums is stored in 'longs', and a list of nothing but reals in 'doubles', which takes
+    // about a quarter of the space of the equivalent nodes. Anything else goes in 'values'. At most one is non-null.
+    // A packed list that's given anything it can't store is unpacked into 'values', and stays that way.
+    private static final int INITIAL_CAPACITY = 10;
+
+    private long[] longs;
+    private double[] doubles;
+    private ArrayList<Node> values;
+    private int size;
+    private final int initialCapacity;
+
+    /**
+     * Creates an empty list.
+     */
+    public ListNode() {
+        this(INITIAL_CAPACITY);
+    }
+
+    private ListNode(int initialCapacity) {
+        this.initialCapacity = Math.max(initialCapacity, 1);
+    }
+
+    /**
+     * Builds a ListNode. The builder can't be used once build has been called.
+     */
+    public static final class Builder {
+        private ListNode list;
+
+        public Builder() {
+            this(INITIAL_CAPACITY);
+        }
+
+        /**
+         * Creates a builder with room for 'initialCapacity' elements before it needs to grow.
+         */
+        public Builder(int initialCapacity) {
+            list = new ListNode(initialCapacity);
+        }
+
+        public Builder add(Node value) {
+            list.append(value);
+            return this;
+        }
+
+        public Node get(int index) {
+            return list.get(index);
+        }
+
+        public void set(int index, Node value) {
+            list.replace(index, value);
+        }
+
+        public int size() {
+            return list.size();
+        }
+
+        public ListNode build() {
+            final ListNode result = list;
+            list = null;
+            return result;
+        }
+    }
+
+    private void append(Node value) {
+        if (values == null && size == 0) {
+            if (isFixnum(value)) {
+                longs = new long[initialCapacity];
+            } else if (value instanceof RealNode) {
+                doubles = new double[initialCapacity];
+            } else {
+                values = new ArrayList<Node>(initialCapacity);
+            }
+        }
+        if (longs != null && isFixnum(value)) {
+            if (size == longs.length) {
+                longs = Arrays.copyOf(longs, newCapacity());
+            }
+            longs[size++] = ((IntegerNode) value).fix();
+        } else if (doubles != null && value instanceof RealNode) {
+            if (size == doubles.length) {
+                doubles = Arrays.copyOf(doubles, newCapacity());
+            }
+            doubles[size++] = ((RealNode) value).doubleValue();
+        } else {
+            unpack();
+            values.add(value);
+            ++size;
+        }
+    }
+
+    private void replace(int index, Node value) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        if (longs != null && isFixnum(value)) {
+            longs[index] = ((IntegerNode) value).fix();
+        } else if (doubles != null && value instanceof RealNode) {
+            doubles[index] = ((RealNode) value).doubleValue();
+        } else {
+            unpack();
+            values.set(index, value);
+        }
+    }
+
+    private int newCapacity() {
+        return size + (size >> 1) + 1;
+    }
+
+    private static boolean isFixnum(Node value) {
+        return value instanceof IntegerNode && !((IntegerNode) value).isBig();
+    }
+
+    // Moves any packed elements into 'values'.
+    private void unpack() {
+        if (values != null) {
+            return;
+        }
+        final ArrayList<Node> newValues = new ArrayList<Node>(Math.max(size + 1, INITIAL_CAPACITY));
+        for (int i = 0; i < size; ++i) {
+            newValues.add(get(i));
+        }
+        values = newValues;
+        longs = null;
+        doubles = null;
+    }
+
+    // For loops that want to avoid boxing: these return the packed elements (of which only the first size() are used),
+    // or null if the list isn't packed that way. Callers mustn't modify the array.
+    long[] packedLongs() {
+        return longs;
+    }
 
-    public ListNode add(Node value) {
-        values.add(value);
-        return this;
+    double[] packedDoubles() {
+        return doubles;
     }
 
     public Node get(IntegerNode index) {
-        return values.get(index.intValue());
+        return get(index.intValue());
     }
 
     public Node get(int index) {
-        return values.get(index);
+        if (values != null) {
+            return values.get(index);
+        }
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return (longs != null) ? IntegerNode.valueOf(longs[index]) : new RealNode(doubles[index]);
     }
 
-    public void set(int index, Node value) {
-        values.set(index, value);
+    public Iterator<Node> iterator() {
+        if (values != null) {
+            return Collections.unmodifiableList(values).iterator();
+        }
+        return new ElementIterator() {
+            private int i = 0;
+
+            public boolean hasNext() {
+                return i < size();
+            }
+
+            public Node next() {
+                if (i >= size()) {
+                    throw new NoSuchElementException();
+                }
+                return get(i++);
+            }
+        };
     }
 
-    public Iterator<Node> iterator() {
-        return values.iterator();
+    // Our iterators can't remove elements, because lists can't be changed.
+    abstract static class ElementIterator implements Iterator<Node> {
+        public final void remove() {
+            throw new UnsupportedOperationException();
+        }
     }
 
+    // These go through size and get rather than the fields, so that a MatrixNode equals the equivalent list of lists.
     @Override public boolean equals(Object other) {
         if (this == other) {
             return true;
@@ -51,49 +209,67 @@ public class ListNode implements Iterable<Node>, Node {
         if (!(other instanceof ListNode)) {
             return false;
         }
-        return values.equals(((ListNode) other).values);
+        final ListNode rhs = (ListNode) other;
+        final int size = size();
+        if (size != rhs.size()) {
+            return false;
+        }
+        for (int i = 0; i < size; ++i) {
+            if (!get(i).equals(rhs.get(i))) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override public int hashCode() {
-        return values.hashCode();
+        // The same as List.hashCode.
+        int result = 1;
+        for (int i = 0, size = size(); i < size; ++i) {
+            result = 31 * result + get(i).hashCode();
+        }
+        return result;
     }
 
     public int size() {
-        return values.size();
+        return size;
     }
 
     public ListNode reverse() {
-        final ListNode result = new ListNode();
-        for (int i = values.size() - 1; i >= 0; --i) {
-            result.add(values.get(i));
+        final Builder result = new Builder(size());
+        for (int i = size() - 1; i >= 0; --i) {
+            result.add(get(i));
         }
-        return result;
+        return result.build();
     }
 
     public Node evaluate(Calculator environment) {
-        ListNode result = new ListNode();
-        for (Node value : values) {
-            result.values.add(value.evaluate(environment));
+        final Builder builder = new Builder(size());
+        for (int i = 0, size = size(); i < size; ++i) {
+            builder.add(get(i).evaluate(environment));
         }
-        return result;
+        final ListNode result = builder.build();
+        // Rectangular lists of numbers are matrices, which we can store and operate on more efficiently.
+        final MatrixNode matrix = MatrixNode.valueOf(result);
+        return (matrix != null) ? matrix : result;
     }
 
     public Node simplify(Calculator environment) {
-        ListNode result = new ListNode();
-        for (Node value : values) {
-            result.values.add(value.simplify(environment));
+        final Builder result = new Builder(size());
+        for (int i = 0, size = size(); i < size; ++i) {
+            result.add(get(i).simplify(environment));
         }
-        return result;
+        return result.build();
     }
 
     public String toInputString() {
         StringBuilder result = new StringBuilder();
         result.append("[");
-        for (int i = 0; i < values.size(); ++i) {
+        for (int i = 0, size = size(); i < size; ++i) {
             if (i > 0) {
                 result.append(", ");
             }
-            result.append(values.get(i).toInputString());
+            result.append(get(i).toInputString());
         }
         result.append("]");
         return result.toString();
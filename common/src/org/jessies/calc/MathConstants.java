@@ -0,0 +1,185 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.math.*;
+
+/**
+ * Mathematical constants to any precision, shared by all calculators.
+ *
+ * Each constant is the sum of a series of rationals, which we evaluate by binary splitting: the terms are combined
+ * pairwise into a single fraction, so the expensive work is a few multiplications of very large integers rather than
+ * many divisions at full precision. pi uses the Chudnovsky series (about 14 digits per term), e uses the sum of 1/k!,
+ * and ln(2) and ln(10) use series for atanh.
+ *
+ * We keep the most precise value computed so far, and answer requests for fewer digits by rounding it.
+ */
+final class MathConstants {
+    // Computing a few extra digits means a slightly larger request doesn't need a complete recomputation.
+    private static final int GUARD_DIGITS = 10;
+
+    /**
+     * A constant that can be computed to any precision.
+     * Readers don't need a lock unless the cached value isn't precise enough; at most one thread computes at a time.
+     */
+    abstract static class Constant {
+        private volatile BigDecimal value;
+
+        BigDecimal value(MathContext mc) {
+            final BigDecimal cached = value;
+            if (cached != null && cached.precision() >= mc.getPrecision() + GUARD_DIGITS) {
+                return cached.round(mc);
+            }
+            return compute(mc.getPrecision()).round(mc);
+        }
+
+        private synchronized BigDecimal compute(int digits) {
+            // Another thread may have computed a precise enough value while we were waiting for the lock.
+            final BigDecimal cached = value;
+            if (cached != null && cached.precision() >= digits + GUARD_DIGITS) {
+                return cached;
+            }
+            // Grow geometrically, so a run of slowly increasing precisions doesn't recompute every time.
+            final int oldDigits = (cached != null) ? cached.precision() : 0;
+            final MathContext mc = new MathContext(Math.max(digits, oldDigits + oldDigits / 2) + 2 * GUARD_DIGITS, RoundingMode.HALF_EVEN);
+            value = computeValue(mc);
+            return value;
+        }
+
+        abstract BigDecimal computeValue(MathContext mc);
+    }
+
+    static final Constant PI = new Constant() {
+        // 1/pi = 12 * sum((-1)^k (6k)! (13591409 + 545140134k) / ((3k)! (k!)^3 640320^(3k + 3/2))).
+        BigDecimal computeValue(MathContext mc) {
+            // Each term adds log10(640320^3/(12^3 * 8)) ~ 14.18 digits.
+            final int termCount = (int) (mc.getPrecision() / 14.18) + 2;
+            final BigInteger[] pqt = chudnovsky(0, termCount);
+            final BigDecimal sqrt10005 = BigRealMath.sqrt(BigDecimal.valueOf(10005), mc);
+            final BigDecimal numerator = new BigDecimal(pqt[1].multiply(BigInteger.valueOf(426880))).multiply(sqrt10005, mc);
+            return numerator.divide(new BigDecimal(pqt[2]), mc);
+        }
+    };
+
+    static final Constant E = new Constant() {
+        // e = sum(1/k!).
+        BigDecimal computeValue(MathContext mc) {
+            final BigInteger[] pqt = exponentialSeries(1, termCountForFactorial(mc.getPrecision()));
+            // We left out the k = 0 term, 1, to avoid a special case in the series.
+            return BigDecimal.ONE.add(new BigDecimal(pqt[2]).divide(new BigDecimal(pqt[1]), mc), mc);
+        }
+    };
+
+    static final Constant LN2 = new Constant() {
+        // ln(2) = 2*atanh(1/3).
+        BigDecimal computeValue(MathContext mc) {
+            return atanhOfReciprocal(3, mc).multiply(BigDecimal.valueOf(2), mc);
+        }
+    };
+
+    static final Constant LN10 = new Constant() {
+        // ln(10) = 3*ln(2) + ln(5/4), and ln(5/4) = 2*atanh(1/9).
+        BigDecimal computeValue(MathContext mc) {
+            final BigDecimal ln2 = LN2.value(mc);
+            return ln2.multiply(BigDecimal.valueOf(3)).add(atanhOfReciprocal(9, mc).multiply(BigDecimal.valueOf(2)), mc);
+        }
+    };
+
+    private MathConstants() {
+    }
+
+    // Returns the smallest n such that n! > 10^digits, so that the terms beyond n of sum(1/k!) don't matter.
+    private static int termCountForFactorial(int digits) {
+        double log10Factorial = 0;
+        int n = 1;
+        while (log10Factorial <= digits + 1) {
+            ++n;
+            log10Factorial += Math.log10(n);
+        }
+        return n;
+    }
+
+    // Returns {P, Q, T} for the Chudnovsky terms [a, b), where the sum of those terms is T/Q (times the constant factor).
+    private static BigInteger[] chudnovsky(int a, int b) {
+        if (b - a == 1) {
+            BigInteger p;
+            BigInteger q;
+            if (a == 0) {
+                p = BigInteger.ONE;
+                q = BigInteger.ONE;
+            } else {
+                final long k = a;
+                p = BigInteger.valueOf(6 * k - 5).multiply(BigInteger.valueOf(2 * k - 1)).multiply(BigInteger.valueOf(6 * k - 1));
+                // 640320^3/24 = 10939058860032000.
+                q = BigInteger.valueOf(k).pow(3).multiply(BigInteger.valueOf(10939058860032000L));
+            }
+            BigInteger t = p.multiply(BigInteger.valueOf(13591409L + 545140134L * a));
+            if ((a & 1) != 0) {
+                t = t.negate();
+            }
+            return new BigInteger[] { p, q, t };
+        }
+        final int m = (a + b) >>> 1;
+        final BigInteger[] left = chudnovsky(a, m);
+        final BigInteger[] right = chudnovsky(m, b);
+        final BigInteger p = left[0].multiply(right[0]);
+        final BigInteger q = left[1].multiply(right[1]);
+        final BigInteger t = left[2].multiply(right[1]).add(left[0].multiply(right[2]));
+        return new BigInteger[] { p, q, t };
+    }
+
+    // Returns {P, Q, T} for sum(1/(a*(a+1)*...*k)) over k in [a, b), which is T/Q.
+    private static BigInteger[] exponentialSeries(int a, int b) {
+        if (b - a == 1) {
+            return new BigInteger[] { BigInteger.ONE, BigInteger.valueOf(a), BigInteger.ONE };
+        }
+        final int m = (a + b) >>> 1;
+        final BigInteger[] left = exponentialSeries(a, m);
+        final BigInteger[] right = exponentialSeries(m, b);
+        final BigInteger q = left[1].multiply(right[1]);
+        final BigInteger t = left[2].multiply(right[1]).add(right[2]);
+        return new BigInteger[] { BigInteger.ONE, q, t };
+    }
+
+    // Returns atanh(1/n) = sum(1/((2k+1) n^(2k+1))), for n >= 2.
+    private static BigDecimal atanhOfReciprocal(int n, MathContext mc) {
+        // Each term is about n^2 times smaller than the one before.
+        final int termCount = (int) (mc.getPrecision() / (2 * Math.log10(n))) + 2;
+        final BigInteger[] bqt = atanhSeries(BigInteger.valueOf((long) n * n), 0, termCount);
+        // The series gives the sum of 1/((2k+1) n^(2k)), so we still have to divide by n.
+        final BigDecimal denominator = new BigDecimal(bqt[0].multiply(bqt[1]).multiply(BigInteger.valueOf(n)));
+        return new BigDecimal(bqt[2]).divide(denominator, mc);
+    }
+
+    // Returns {B, Q, T} for sum(1/((2k+1) nSquared^k)) over k in [a, b), which is T/(B*Q).
+    private static BigInteger[] atanhSeries(BigInteger nSquared, int a, int b) {
+        if (b - a == 1) {
+            final BigInteger q = (a == 0) ? BigInteger.ONE : nSquared;
+            return new BigInteger[] { BigInteger.valueOf(2L * a + 1), q, BigInteger.ONE };
+        }
+        final int m = (a + b) >>> 1;
+        final BigInteger[] left = atanhSeries(nSquared, a, m);
+        final BigInteger[] right = atanhSeries(nSquared, m, b);
+        final BigInteger b12 = left[0].multiply(right[0]);
+        final BigInteger q = left[1].multiply(right[1]);
+        // With all the p(k) = 1, T = B2*Q2*T1 + B1*T2.
+        final BigInteger t = right[0].multiply(right[1]).multiply(left[2]).add(left[0].multiply(right[2]));
+        return new BigInteger[] { b12, q, t };
+    }
+}
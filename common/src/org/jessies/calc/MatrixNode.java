@@ -0,0 +1,378 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.*;
+
+/**
+ * A dense matrix of numbers, stored in row-major order.
+ *
+ * If every element is a RealNode, the elements are stored as a double[]; otherwise (typically when they're exact
+ * integers or rationals) they're stored as a NumberNode[]. Either way, the shape is known without looking at
+ * the elements, and arithmetic is a simple loop over an array.
+ *
+ * To everything else, a MatrixNode looks like the list of rows it represents.
+ */
+public class MatrixNode extends ListNode {
+    // A 128*128 tile of doubles is 128KiB, which fits in the L2 cache of any recent phone or desktop.
+    private static final int BLOCK_SIZE = 128;
+
+    // A multiply-add costs about a hundredth as much as a term of Sum, which is what the parallel threshold counts.
+    private static final long MULTIPLY_ADDS_PER_ITEM = 100;
+
+    private final int rowCount;
+    private final int columnCount;
+    // Exactly one of these is non-null.
+    private final double[] reals;
+    private final NumberNode[] elements;
+
+    private MatrixNode(int rowCount, int columnCount, double[] reals, NumberNode[] elements) {
+        this.rowCount = rowCount;
+        this.columnCount = columnCount;
+        this.reals = reals;
+        this.elements = elements;
+    }
+
+    // Returns a matrix with the given elements, storing them as doubles if they're all RealNodes.
+    static MatrixNode fromElements(int rowCount, int columnCount, NumberNode[] elements) {
+        for (NumberNode element : elements) {
+            if (!(element instanceof RealNode)) {
+                return new MatrixNode(rowCount, columnCount, null, elements);
+            }
+        }
+        final double[] reals = new double[elements.length];
+        for (int i = 0; i < reals.length; ++i) {
+            reals[i] = ((RealNode) elements[i]).doubleValue();
+        }
+        return new MatrixNode(rowCount, columnCount, reals, null);
+    }
+
+    static MatrixNode fromReals(int rowCount, int columnCount, double[] reals) {
+        return new MatrixNode(rowCount, columnCount, reals, null);
+    }
+
+    /**
+     * Returns 'list' as a MatrixNode if it's a non-empty list of non-empty lists of the same length, all of whose
+     * elements are numbers. Returns null otherwise.
+     */
+    static MatrixNode valueOf(ListNode list) {
+        if (list instanceof MatrixNode) {
+            return (MatrixNode) list;
+        }
+        final int rowCount = list.size();
+        if (rowCount == 0 || !(list.get(0) instanceof ListNode)) {
+            return null;
+        }
+        final int columnCount = ((ListNode) list.get(0)).size();
+        if (columnCount == 0 || (long) rowCount * columnCount > Integer.MAX_VALUE) {
+            return null;
+        }
+        final NumberNode[] elements = new NumberNode[rowCount * columnCount];
+        for (int i = 0; i < rowCount; ++i) {
+            final Node row = list.get(i);
+            if (!(row instanceof ListNode) || ((ListNode) row).size() != columnCount) {
+                return null;
+            }
+            final ListNode rowList = (ListNode) row;
+            for (int j = 0; j < columnCount; ++j) {
+                final Node element = rowList.get(j);
+                if (!(element instanceof NumberNode)) {
+                    return null;
+                }
+                elements[i * columnCount + j] = (NumberNode) element;
+            }
+        }
+        return fromElements(rowCount, columnCount, elements);
+    }
+
+    /**
+     * Returns the n*n identity matrix, for n >= 1.
+     */
+    static MatrixNode identity(int n) {
+        if ((long) n * n > Integer.MAX_VALUE) {
+            throw new CalculatorError("can't make a " + n + "x" + n + " matrix");
+        }
+        final NumberNode[] elements = new NumberNode[n * n];
+        Arrays.fill(elements, IntegerNode.ZERO);
+        for (int i = 0; i < n; ++i) {
+            elements[i * n + i] = IntegerNode.ONE;
+        }
+        return new MatrixNode(n, n, null, elements);
+    }
+
+    public int rowCount() {
+        return rowCount;
+    }
+
+    public int columnCount() {
+        return columnCount;
+    }
+
+    /**
+     * Returns [rowCount, columnCount].
+     */
+    public ListNode dimensions() {
+        return new ListNode.Builder().add(IntegerNode.valueOf(rowCount)).add(IntegerNode.valueOf(columnCount)).build();
+    }
+
+    /**
+     * Returns the element in row i, column j, counting from 0.
+     */
+    public NumberNode get(int i, int j) {
+        final int index = i * columnCount + j;
+        return (reals != null) ? new RealNode(reals[index]) : elements[index];
+    }
+
+    /**
+     * Tests whether every element is an integer or a rational.
+     */
+    boolean isExact() {
+        if (elements == null) {
+            return false;
+        }
+        for (NumberNode element : elements) {
+            if (!(element instanceof IntegerNode || element instanceof RationalNode)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns the elements as doubles, converting them if necessary.
+    // The caller mustn't modify the result.
+    double[] toReals() {
+        if (reals != null) {
+            return reals;
+        }
+        final double[] result = new double[elements.length];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = elements[i].toReal().doubleValue();
+        }
+        return result;
+    }
+
+    private void checkSameShape(MatrixNode rhs, String operation) {
+        if (rowCount != rhs.rowCount || columnCount != rhs.columnCount) {
+            throw new CalculatorError("matrix " + operation + " requires compatible matrices");
+        }
+    }
+
+    public MatrixNode plus(MatrixNode rhs) {
+        checkSameShape(rhs, "addition");
+        if (reals != null || rhs.reals != null) {
+            // Anything plus a real is a real.
+            final double[] lhsReals = toReals();
+            final double[] rhsReals = rhs.toReals();
+            final double[] result = new double[lhsReals.length];
+            for (int i = 0; i < result.length; ++i) {
+                result[i] = lhsReals[i] + rhsReals[i];
+            }
+            return fromReals(rowCount, columnCount, result);
+        }
+        final NumberNode[] result = new NumberNode[elements.length];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = elements[i].plus(rhs.elements[i]);
+        }
+        return fromElements(rowCount, columnCount, result);
+    }
+
+    public MatrixNode subtract(MatrixNode rhs) {
+        checkSameShape(rhs, "subtraction");
+        if (reals != null || rhs.reals != null) {
+            final double[] lhsReals = toReals();
+            final double[] rhsReals = rhs.toReals();
+            final double[] result = new double[lhsReals.length];
+            for (int i = 0; i < result.length; ++i) {
+                result[i] = lhsReals[i] - rhsReals[i];
+            }
+            return fromReals(rowCount, columnCount, result);
+        }
+        final NumberNode[] result = new NumberNode[elements.length];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = elements[i].subtract(rhs.elements[i]);
+        }
+        return fromElements(rowCount, columnCount, result);
+    }
+
+    /**
+     * Returns the matrix product of this m*n matrix and the n*p matrix 'rhs'.
+     * Large products are computed a band of rows at a time on all cores. Every element is computed the same way
+     * however the rows are split, so the answer doesn't depend on the number of cores.
+     */
+    public MatrixNode times(final MatrixNode rhs, Calculator environment) {
+        if (columnCount != rhs.rowCount) {
+            throw new CalculatorError("matrix multiplication requires compatible matrices");
+        }
+        final int n = columnCount;
+        final int p = rhs.columnCount;
+        final boolean isReal = (reals != null || rhs.reals != null);
+        final double[] a = isReal ? toReals() : null;
+        final double[] b = isReal ? rhs.toReals() : null;
+        final double[] realResult = isReal ? new double[rowCount * p] : null;
+        final NumberNode[] exactResult = isReal ? null : new NumberNode[rowCount * p];
+        final long multiplyAddCount = (long) rowCount * n * p;
+        if (Parallel.shouldRunInParallel(environment, multiplyAddCount / MULTIPLY_ADDS_PER_ITEM) && rowCount > 1) {
+            // Each band writes to its own rows of the result, so there's nothing to combine afterwards.
+            Parallel.run(environment, rowCount, new Parallel.Chunk<Void>() {
+                public Void run(Calculator scope, long start, long end) {
+                    if (isReal) {
+                        multiplyReals(a, b, realResult, (int) start, (int) end, n, p);
+                    } else {
+                        multiplyExact(rhs, exactResult, (int) start, (int) end);
+                    }
+                    return null;
+                }
+            });
+        } else if (isReal) {
+            multiplyReals(a, b, realResult, 0, rowCount, n, p);
+        } else {
+            multiplyExact(rhs, exactResult, 0, rowCount);
+        }
+        return isReal ? fromReals(rowCount, p, realResult) : fromElements(rowCount, p, exactResult);
+    }
+
+    // Sets rows [rowStart, rowEnd) of the m*p matrix 'c' to those of the product of the m*n matrix 'a' and the n*p matrix 'b'.
+    private static void multiplyReals(double[] a, double[] b, double[] c, int rowStart, int rowEnd, int n, int p) {
+        // We work on a BLOCK_SIZE*BLOCK_SIZE tile of 'b' at a time, so it stays in the cache while we use it for every row.
+        // The inner loop goes along rows of both 'b' and 'c', rather than down the columns of 'b'.
+        // Each element still accumulates its terms in order, so we get the same answer as the textbook loop.
+        for (int jj = 0; jj < p; jj += BLOCK_SIZE) {
+            final int jEnd = Math.min(jj + BLOCK_SIZE, p);
+            for (int kk = 0; kk < n; kk += BLOCK_SIZE) {
+                final int kEnd = Math.min(kk + BLOCK_SIZE, n);
+                for (int i = rowStart; i < rowEnd; ++i) {
+                    final int cRow = i * p;
+                    for (int k = kk; k < kEnd; ++k) {
+                        final double aik = a[i * n + k];
+                        final int bRow = k * p;
+                        for (int j = jj; j < jEnd; ++j) {
+                            c[cRow + j] += aik * b[bRow + j];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // Sets rows [rowStart, rowEnd) of 'result' to those of the product of this matrix and 'rhs'.
+    private void multiplyExact(MatrixNode rhs, NumberNode[] result, int rowStart, int rowEnd) {
+        final int n = columnCount;
+        final int p = rhs.columnCount;
+        for (int i = rowStart; i < rowEnd; ++i) {
+            for (int j = 0; j < p; ++j) {
+                NumberNode sum = IntegerNode.ZERO;
+                for (int k = 0; k < n; ++k) {
+                    sum = sum.plus(elements[i * n + k].times(rhs.elements[k * p + j]));
+                }
+                result[i * p + j] = sum;
+            }
+        }
+    }
+
+    /**
+     * Returns the result of applying 'op' to each element and 'scalar'. RSB means 'scalar' minus the element.
+     */
+    MatrixNode scalarOp(NumberNode scalar, CalculatorFunctions.MatrixOp op) {
+        if (reals != null || scalar instanceof RealNode) {
+            final double[] values = toReals();
+            final double x = scalar.toReal().doubleValue();
+            final double[] result = new double[values.length];
+            for (int i = 0; i < result.length; ++i) {
+                switch (op) {
+                case ADD: result[i] = values[i] + x; break;
+                case MUL: result[i] = values[i] * x; break;
+                case RSB: result[i] = x - values[i]; break;
+                case SUB: result[i] = values[i] - x; break;
+                }
+            }
+            return fromReals(rowCount, columnCount, result);
+        }
+        final NumberNode[] result = new NumberNode[elements.length];
+        for (int i = 0; i < result.length; ++i) {
+            switch (op) {
+            case ADD: result[i] = elements[i].plus(scalar); break;
+            case MUL: result[i] = elements[i].times(scalar); break;
+            case RSB: result[i] = scalar.subtract(elements[i]); break;
+            case SUB: result[i] = elements[i].subtract(scalar); break;
+            }
+        }
+        return fromElements(rowCount, columnCount, result);
+    }
+
+    public MatrixNode transpose() {
+        if (reals != null) {
+            final double[] result = new double[reals.length];
+            for (int i = 0; i < rowCount; ++i) {
+                for (int j = 0; j < columnCount; ++j) {
+                    result[j * rowCount + i] = reals[i * columnCount + j];
+                }
+            }
+            return fromReals(columnCount, rowCount, result);
+        }
+        final NumberNode[] result = new NumberNode[elements.length];
+        for (int i = 0; i < rowCount; ++i) {
+            for (int j = 0; j < columnCount; ++j) {
+                result[j * rowCount + i] = elements[i * columnCount + j];
+            }
+        }
+        return new MatrixNode(columnCount, rowCount, null, result);
+    }
+
+    // The rest presents the matrix as a list of rows.
+
+    @Override public Node get(int index) {
+        if (index < 0 || index >= rowCount) {
+            throw new IndexOutOfBoundsException("row " + index + " of " + rowCount);
+        }
+        final ListNode.Builder row = new ListNode.Builder(columnCount);
+        for (int j = 0; j < columnCount; ++j) {
+            row.add(get(index, j));
+        }
+        return row.build();
+    }
+
+    @Override public int size() {
+        return rowCount;
+    }
+
+    @Override public Node evaluate(Calculator environment) {
+        return this;
+    }
+
+    @Override public Node simplify(Calculator environment) {
+        return this;
+    }
+
+    @Override public String toInputString() {
+        final StringBuilder result = new StringBuilder();
+        result.append("[");
+        for (int i = 0; i < rowCount; ++i) {
+            result.append(i > 0 ? ", [" : "[");
+            for (int j = 0; j < columnCount; ++j) {
+                if (j > 0) {
+                    result.append(", ");
+                }
+                result.append(get(i, j).toInputString());
+            }
+            result.append("]");
+        }
+        result.append("]");
+        return result.toString();
+    }
+}
@@ -0,0 +1,811 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.math.*;
+import java.util.*;
+
+/**
+ * Primality testing, factorization, and the modular arithmetic they need.
+ *
+ * For longs, we use Miller-Rabin with a set of bases known to give the right answer for every 64-bit number.
+ * For BigIntegers, we use the Baillie-PSW test: no counterexample is known, and none exists below 2^64.
+ *
+ * To factor, we divide by the primes below 2^16, then split what's left with Pollard's rho (Brent's variant),
+ * falling back to Lenstra's elliptic curve method for bignums whose factors are too large for rho.
+ */
+final class NumberTheory {
+    // Dividing by a few small primes first weeds out most composites before we do anything expensive.
+    private static final int[] SMALL_PRIMES = {
+        2, 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37, 41, 43, 47, 53, 59, 61, 67, 71, 73, 79, 83, 89, 97,
+        101, 103, 107, 109, 113, 127, 131, 137, 139, 149, 151, 157, 163, 167, 173, 179, 181, 191, 193, 197, 199
+    };
+
+    // Testing these bases is enough to decide primality for any n < 2^64 (Jim Sinclair, 2011).
+    private static final long[] MILLER_RABIN_BASES = { 2, 325, 9375, 28178, 450775, 9780504, 1795265022 };
+
+    // Below this, the product of two residues fits in a long, so we don't need Montgomery multiplication.
+    private static final long MAX_SIMPLE_MODULUS = 3037000499L; // floor(sqrt(Long.MAX_VALUE))
+
+    private static final BigInteger BIG_TWO = BigInteger.valueOf(2);
+
+    // Trial division covers every prime below this, which PrimeSieve.smallPrimes provides.
+    private static final int TRIAL_DIVISION_LIMIT = 1 << 16;
+
+    // How long we try before giving up on a factorization. We're called on Mathdroid's UI thread, so this is wall-clock
+    // time rather than a count of curves: a phone is several times slower than a desktop, where factors of up to about
+    // 15 digits turn up in a second or two.
+    private static final long FACTOR_TIME_LIMIT_NS = 3000L * 1000 * 1000;
+
+    // When rho gives way to ECM, and how large ECM's stage 1 bound grows.
+    // Stage 2 goes up to ECM_B2_MULTIPLE times the stage 1 bound, in giant steps of ECM_D.
+    private static final int RHO_ITERATION_LIMIT = 1 << 15;
+    private static final int ECM_INITIAL_B1 = 2000;
+    private static final int ECM_MAX_B1 = 50000;
+    private static final int ECM_B2_MULTIPLE = 100;
+    private static final int ECM_D = 2 * 3 * 5 * 7;
+
+    // Listing more divisors than this would be useless, even if we had the memory.
+    private static final long MAX_DIVISOR_COUNT = 1000000;
+
+    private NumberTheory() {
+    }
+
+    /**
+     * Tests whether |n| is prime.
+     */
+    static boolean isPrime(long n) {
+        if (n < 0) {
+            if (n == Long.MIN_VALUE) {
+                return false;
+            }
+            n = -n;
+        }
+        if (n < 2) {
+            return false;
+        }
+        for (int p : SMALL_PRIMES) {
+            if (n % p == 0) {
+                return n == p;
+            }
+        }
+        final int largestSmallPrime = SMALL_PRIMES[SMALL_PRIMES.length - 1];
+        if (n < (long) largestSmallPrime * largestSmallPrime) {
+            return true;
+        }
+        return (n <= MAX_SIMPLE_MODULUS) ? isStrongProbablePrimeSimple(n) : new Montgomery(n).isStrongProbablePrime();
+    }
+
+    /**
+     * Tests whether |n| is prime, using Baillie-PSW if it doesn't fit in a long.
+     */
+    static boolean isPrime(BigInteger n) {
+        n = n.abs();
+        if (n.bitLength() < 64) {
+            return isPrime(n.longValue());
+        }
+        for (int p : SMALL_PRIMES) {
+            if (n.mod(BigInteger.valueOf(p)).signum() == 0) {
+                return false;
+            }
+        }
+        return isStrongProbablePrime(n, BIG_TWO) && isStrongLucasProbablePrime(n);
+    }
+
+    private static boolean isStrongProbablePrimeSimple(long n) {
+        final long nMinusOne = n - 1;
+        final int s = Long.numberOfTrailingZeros(nMinusOne);
+        final long d = nMinusOne >> s;
+        for (long base : MILLER_RABIN_BASES) {
+            final long a = base % n;
+            if (a == 0) {
+                continue;
+            }
+            long x = simplePowerMod(a, d, n);
+            if (x == 1 || x == nMinusOne) {
+                continue;
+            }
+            boolean isWitness = true;
+            for (int r = 1; r < s && isWitness; ++r) {
+                x = (x * x) % n;
+                if (x == nMinusOne) {
+                    isWitness = false;
+                }
+            }
+            if (isWitness) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns base^exponent mod m, for base < m <= MAX_SIMPLE_MODULUS.
+    private static long simplePowerMod(long base, long exponent, long m) {
+        long result = 1 % m;
+        for (long e = exponent; e != 0; e >>= 1) {
+            if ((e & 1) != 0) {
+                result = (result * base) % m;
+            }
+            base = (base * base) % m;
+        }
+        return result;
+    }
+
+    /**
+     * Returns base^exponent mod m, for 0 <= base < m and exponent >= 0.
+     * Intermediate results never exceed m^2, however large the exponent.
+     */
+    static BigInteger powerMod(BigInteger base, BigInteger exponent, BigInteger m) {
+        if (m.bitLength() < 63 && exponent.bitLength() < 64) {
+            final long fixM = m.longValue();
+            final long e = exponent.longValue();
+            if (fixM <= MAX_SIMPLE_MODULUS) {
+                return BigInteger.valueOf(simplePowerMod(base.longValue(), e, fixM));
+            } else if ((fixM & 1) != 0) {
+                final Montgomery montgomery = new Montgomery(fixM);
+                return BigInteger.valueOf(montgomery.fromMontgomery(montgomery.power(montgomery.toMontgomery(base.longValue()), e)));
+            }
+        }
+        return base.modPow(exponent, m);
+    }
+
+    /**
+     * Arithmetic modulo an odd n < 2^63, with residues in Montgomery form (aR mod n, where R = 2^64).
+     * Multiplication then needs no division at all.
+     */
+    static final class Montgomery {
+        final long n;
+        // -n^-1 mod 2^64.
+        private final long nPrime;
+        // R mod n, which is 1 in Montgomery form.
+        final long one;
+        // R^2 mod n, which we use to convert into Montgomery form.
+        private final long rSquared;
+
+        Montgomery(long n) {
+            this.n = n;
+            // Newton's iteration doubles the number of correct low bits each time; n is its own inverse mod 8.
+            long inverse = n;
+            for (int i = 0; i < 5; ++i) {
+                inverse *= 2 - n * inverse;
+            }
+            this.nPrime = -inverse;
+            // 2^63 mod n, doubled.
+            this.one = addMod((Long.MAX_VALUE % n + 1) % n, (Long.MAX_VALUE % n + 1) % n);
+            long r = one;
+            for (int i = 0; i < 64; ++i) {
+                r = addMod(r, r);
+            }
+            this.rSquared = r;
+        }
+
+        // Returns (a + b) mod n for a, b < n, without overflow.
+        long addMod(long a, long b) {
+            return (a >= n - b) ? a - (n - b) : a + b;
+        }
+
+        long subtractMod(long a, long b) {
+            return (a >= b) ? a - b : a + (n - b);
+        }
+
+        long toMontgomery(long a) {
+            return multiply(a % n, rSquared);
+        }
+
+        long fromMontgomery(long a) {
+            return multiply(a, 1);
+        }
+
+        // Returns abR^-1 mod n.
+        long multiply(long a, long b) {
+            final long lo = a * b;
+            final long hi = unsignedMultiplyHigh(a, b);
+            final long m = lo * nPrime;
+            // lo + m*n is divisible by R, so the low half of the sum is zero; there's a carry out of it unless lo is zero.
+            long t = hi + unsignedMultiplyHigh(m, n) + (lo != 0 ? 1 : 0);
+            // t < 2n < 2^64; if it looks negative as a signed long, it's certainly >= n.
+            if (t < 0 || t >= n) {
+                t -= n;
+            }
+            return t;
+        }
+
+        long power(long base, long exponent) {
+            long result = one;
+            for (long e = exponent; e != 0; e >>>= 1) {
+                if ((e & 1) != 0) {
+                    result = multiply(result, base);
+                }
+                base = multiply(base, base);
+            }
+            return result;
+        }
+
+        // Pollard's rho with Brent's cycle finding, on x^2 + c. Returns a non-trivial factor of n, or 0 if this c didn't work.
+        long pollardBrent(long c) {
+            final int batchSize = 128;
+            c = toMontgomery(c);
+            long y = toMontgomery(2);
+            long x = y;
+            long ys = y;
+            long q = one;
+            long g = 1;
+            for (int r = 1; g == 1; r *= 2) {
+                x = y;
+                for (int i = 0; i < r; ++i) {
+                    y = addMod(multiply(y, y), c);
+                }
+                for (int k = 0; k < r && g == 1; k += batchSize) {
+                    ys = y;
+                    for (int i = 0; i < Math.min(batchSize, r - k); ++i) {
+                        y = addMod(multiply(y, y), c);
+                        q = multiply(q, subtractMod(x, y));
+                    }
+                    g = gcd(q, n);
+                }
+            }
+            if (g == n) {
+                // The batch overshot; step through it one at a time.
+                do {
+                    ys = addMod(multiply(ys, ys), c);
+                    g = gcd(subtractMod(x, ys), n);
+                } while (g == 1);
+            }
+            return (g == n) ? 0 : g;
+        }
+
+        boolean isStrongProbablePrime() {
+            final long nMinusOne = n - 1;
+            final long minusOne = subtractMod(0, one);
+            final int s = Long.numberOfTrailingZeros(nMinusOne);
+            final long d = nMinusOne >> s;
+            for (long base : MILLER_RABIN_BASES) {
+                final long a = base % n;
+                if (a == 0) {
+                    continue;
+                }
+                long x = power(toMontgomery(a), d);
+                if (x == one || x == minusOne) {
+                    continue;
+                }
+                boolean isWitness = true;
+                for (int r = 1; r < s && isWitness; ++r) {
+                    x = multiply(x, x);
+                    if (x == minusOne) {
+                        isWitness = false;
+                    }
+                }
+                if (isWitness) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns the greatest common divisor of a and b, which must be non-negative.
+     */
+    static long gcd(long a, long b) {
+        // Stein's binary algorithm avoids division entirely.
+        if (a == 0) {
+            return b;
+        } else if (b == 0) {
+            return a;
+        }
+        final int shift = Long.numberOfTrailingZeros(a | b);
+        a >>= Long.numberOfTrailingZeros(a);
+        while (b != 0) {
+            b >>= Long.numberOfTrailingZeros(b);
+            if (a > b) {
+                final long t = a;
+                a = b;
+                b = t;
+            }
+            b -= a;
+        }
+        return a << shift;
+    }
+
+    /**
+     * Returns the high 64 bits of the signed 128-bit product of a and b.
+     * The product a*b fits in a long exactly when this is the sign extension of the low 64 bits.
+     */
+    static long multiplyHigh(long a, long b) {
+        return unsignedMultiplyHigh(a, b) - ((a >> 63) & b) - ((b >> 63) & a);
+    }
+
+    /**
+     * Returns the high 64 bits of the unsigned 128-bit product of a and b.
+     */
+    static long unsignedMultiplyHigh(long a, long b) {
+        final long aLo = a & 0xffffffffL;
+        final long aHi = a >>> 32;
+        final long bLo = b & 0xffffffffL;
+        final long bHi = b >>> 32;
+        final long loLo = aLo * bLo;
+        final long hiLo = aHi * bLo;
+        final long loHi = aLo * bHi;
+        final long hiHi = aHi * bHi;
+        // This can't overflow: the worst case is exactly 2^64 - 1.
+        final long cross = (loLo >>> 32) + (hiLo & 0xffffffffL) + loHi;
+        return (hiLo >>> 32) + (cross >>> 32) + hiHi;
+    }
+
+    // Miller-Rabin for odd n > 2 with a single base.
+    private static boolean isStrongProbablePrime(BigInteger n, BigInteger base) {
+        final BigInteger nMinusOne = n.subtract(BigInteger.ONE);
+        final int s = nMinusOne.getLowestSetBit();
+        final BigInteger d = nMinusOne.shiftRight(s);
+        BigInteger x = base.modPow(d, n);
+        if (x.equals(BigInteger.ONE) || x.equals(nMinusOne)) {
+            return true;
+        }
+        for (int r = 1; r < s; ++r) {
+            x = x.multiply(x).mod(n);
+            if (x.equals(nMinusOne)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The strong Lucas probable prime test with Selfridge's parameters, for odd n not divisible by any small prime.
+    private static boolean isStrongLucasProbablePrime(BigInteger n) {
+        // Find the first D in 5, -7, 9, -11, ... with Jacobi(D, n) = -1.
+        // If n is a perfect square there's no such D, so check for that if the search takes a while.
+        int d = 5;
+        for (int attempt = 0; ; ++attempt) {
+            final int j = jacobi(d, n);
+            if (j == -1) {
+                break;
+            } else if (j == 0) {
+                // |D| < n shares a factor with n.
+                return false;
+            }
+            if (attempt == 10 && isPerfectSquare(n)) {
+                return false;
+            }
+            d = (d > 0) ? -(d + 2) : -(d - 2);
+        }
+        final BigInteger bigD = BigInteger.valueOf(d);
+        final BigInteger q = BigInteger.valueOf((1 - d) / 4);
+
+        // n + 1 = k * 2^s, with k odd.
+        final BigInteger nPlusOne = n.add(BigInteger.ONE);
+        final int s = nPlusOne.getLowestSetBit();
+        final BigInteger k = nPlusOne.shiftRight(s);
+
+        // Compute U_k, V_k, and Q^k mod n, with P = 1, from the top bit down.
+        BigInteger u = BigInteger.ONE;
+        BigInteger v = BigInteger.ONE;
+        BigInteger qk = q.mod(n);
+        for (int i = k.bitLength() - 2; i >= 0; --i) {
+            // Double the index.
+            u = u.multiply(v).mod(n);
+            v = v.multiply(v).subtract(qk.shiftLeft(1)).mod(n);
+            qk = qk.multiply(qk).mod(n);
+            if (k.testBit(i)) {
+                // Increment the index.
+                final BigInteger newU = halveMod(u.add(v), n);
+                final BigInteger newV = halveMod(bigD.multiply(u).add(v), n);
+                u = newU;
+                v = newV;
+                qk = qk.multiply(q).mod(n);
+            }
+        }
+        if (u.signum() == 0 || v.signum() == 0) {
+            return true;
+        }
+        for (int r = 1; r < s; ++r) {
+            v = v.multiply(v).subtract(qk.shiftLeft(1)).mod(n);
+            if (v.signum() == 0) {
+                return true;
+            }
+            qk = qk.multiply(qk).mod(n);
+        }
+        return false;
+    }
+
+    // Returns x/2 mod odd n.
+    private static BigInteger halveMod(BigInteger x, BigInteger n) {
+        x = x.mod(n);
+        if (x.testBit(0)) {
+            x = x.add(n);
+        }
+        return x.shiftRight(1);
+    }
+
+    // Returns the Jacobi symbol (a/n) for odd positive n.
+    static int jacobi(long a, BigInteger n) {
+        int result = 1;
+        if (a < 0) {
+            a = -a;
+            // (-1/n) is -1 if n = 3 mod 4.
+            if (n.testBit(1)) {
+                result = -result;
+            }
+        }
+        if (BigInteger.valueOf(a).compareTo(n) >= 0) {
+            return result * jacobi(BigInteger.valueOf(a).mod(n).longValue(), n.longValue());
+        }
+        if (a == 0) {
+            return n.equals(BigInteger.ONE) ? result : 0;
+        }
+        // Factor out twos: (2/n) is -1 if n = 3 or 5 mod 8.
+        final int n8 = n.intValue() & 7;
+        while ((a & 1) == 0) {
+            a >>= 1;
+            if (n8 == 3 || n8 == 5) {
+                result = -result;
+            }
+        }
+        // Quadratic reciprocity, with a odd and smaller than n.
+        if ((a & 3) == 3 && (n8 & 3) == 3) {
+            result = -result;
+        }
+        return result * jacobi(n.mod(BigInteger.valueOf(a)).longValue(), a);
+    }
+
+    // Returns the Jacobi symbol (a/n) for 0 <= a and odd positive n.
+    static int jacobi(long a, long n) {
+        a %= n;
+        int result = 1;
+        while (a != 0) {
+            while ((a & 1) == 0) {
+                a >>= 1;
+                final long r = n & 7;
+                if (r == 3 || r == 5) {
+                    result = -result;
+                }
+            }
+            final long t = a;
+            a = n;
+            n = t;
+            if ((a & 3) == 3 && (n & 3) == 3) {
+                result = -result;
+            }
+            a %= n;
+        }
+        return (n == 1) ? result : 0;
+    }
+
+    /**
+     * Returns floor(sqrt(n)) for n >= 0.
+     */
+    static BigInteger sqrt(BigInteger n) {
+        if (n.signum() == 0) {
+            return n;
+        }
+        // Start above the root, then use Newton's method, which decreases monotonically to the answer.
+        BigInteger x = BigInteger.ONE.shiftLeft((n.bitLength() + 1) / 2);
+        while (true) {
+            final BigInteger y = x.add(n.divide(x)).shiftRight(1);
+            if (y.compareTo(x) >= 0) {
+                return x;
+            }
+            x = y;
+        }
+    }
+
+    static boolean isPerfectSquare(BigInteger n) {
+        final BigInteger root = sqrt(n);
+        return root.multiply(root).equals(n);
+    }
+
+    /**
+     * Returns the prime factors of |n|, with multiplicity, in ascending order.
+     * The result is empty for 0 and 1.
+     */
+    static List<BigInteger> primeFactors(BigInteger n) {
+        n = n.abs();
+        final ArrayList<BigInteger> result = new ArrayList<BigInteger>();
+        if (n.compareTo(BigInteger.ONE) <= 0) {
+            return result;
+        }
+        n = trialDivide(n, result);
+        if (!n.equals(BigInteger.ONE)) {
+            factorCofactor(n, result, System.nanoTime() + FACTOR_TIME_LIMIT_NS);
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    // Adds n's factors below TRIAL_DIVISION_LIMIT to 'factors' and returns what's left.
+    private static BigInteger trialDivide(BigInteger n, List<BigInteger> factors) {
+        if (n.bitLength() < 64) {
+            long m = n.longValue();
+            for (int p : PrimeSieve.smallPrimes()) {
+                if ((long) p * p > m) {
+                    break;
+                }
+                while (m % p == 0) {
+                    factors.add(BigInteger.valueOf(p));
+                    m /= p;
+                }
+            }
+            if (m != 1 && m < (long) TRIAL_DIVISION_LIMIT * TRIAL_DIVISION_LIMIT) {
+                // Whatever's left has no factor below its square root, so it's prime.
+                factors.add(BigInteger.valueOf(m));
+                m = 1;
+            }
+            return BigInteger.valueOf(m);
+        }
+        for (int p : PrimeSieve.smallPrimes()) {
+            final BigInteger bigP = BigInteger.valueOf(p);
+            BigInteger[] divmod = n.divideAndRemainder(bigP);
+            while (divmod[1].signum() == 0) {
+                factors.add(bigP);
+                n = divmod[0];
+                divmod = n.divideAndRemainder(bigP);
+            }
+        }
+        return n;
+    }
+
+    // Adds the prime factors of n, which has no small factors, to 'factors'.
+    // Gives up if that's taking us past 'deadline', a System.nanoTime value.
+    private static void factorCofactor(BigInteger n, List<BigInteger> factors, long deadline) {
+        if (isPrime(n)) {
+            factors.add(n);
+            return;
+        }
+        // Perfect powers defeat rho and ECM alike, so take roots first.
+        for (int k = 2; k <= n.bitLength() / 16; ++k) {
+            final BigInteger root = root(n, k);
+            if (root.pow(k).equals(n)) {
+                for (int i = 0; i < k; ++i) {
+                    factorCofactor(root, factors, deadline);
+                }
+                return;
+            }
+        }
+        final BigInteger d = findFactor(n, deadline);
+        factorCofactor(d, factors, deadline);
+        factorCofactor(n.divide(d), factors, deadline);
+    }
+
+    // Returns a non-trivial factor of the odd composite n.
+    private static BigInteger findFactor(BigInteger n, long deadline) {
+        if (n.bitLength() < 63) {
+            final Montgomery m = new Montgomery(n.longValue());
+            for (long c = 1; ; ++c) {
+                final long d = m.pollardBrent(c);
+                if (d != 0) {
+                    return BigInteger.valueOf(d);
+                }
+            }
+        }
+        // Rho is quickest for factors of up to about 10 digits; if it fails, ECM finds those soon enough anyway.
+        final BigInteger d = pollardBrent(n, BigInteger.ONE, RHO_ITERATION_LIMIT, deadline);
+        if (d != null) {
+            return d;
+        }
+        final Random random = new Random(n.hashCode());
+        final int[] primes = PrimeSieve.primes(ECM_B2_MULTIPLE * ECM_MAX_B1);
+        int b1 = ECM_INITIAL_B1;
+        while (System.nanoTime() - deadline < 0) {
+            final BigInteger factor = ecm(n, BigInteger.valueOf(6 + (random.nextInt() & 0x7fffffff)), b1, primes, deadline);
+            if (factor != null) {
+                return factor;
+            }
+            // Gradually look for larger factors.
+            b1 = Math.min(b1 + b1 / 20, ECM_MAX_B1);
+        }
+        throw new CalculatorError("couldn't factor " + n + " in a reasonable time");
+    }
+
+    // Pollard's rho with Brent's cycle finding, on x^2 + c. Returns null if we give up.
+    private static BigInteger pollardBrent(BigInteger n, BigInteger c, int iterationLimit, long deadline) {
+        final int batchSize = 128;
+        BigInteger y = BIG_TWO;
+        BigInteger x = y;
+        BigInteger ys = y;
+        BigInteger q = BigInteger.ONE;
+        BigInteger g = BigInteger.ONE;
+        int iterations = 0;
+        for (int r = 1; g.equals(BigInteger.ONE); r *= 2) {
+            x = y;
+            for (int i = 0; i < r; ++i) {
+                y = y.multiply(y).add(c).mod(n);
+            }
+            for (int k = 0; k < r && g.equals(BigInteger.ONE); k += batchSize) {
+                ys = y;
+                for (int i = 0; i < Math.min(batchSize, r - k); ++i) {
+                    y = y.multiply(y).add(c).mod(n);
+                    q = q.multiply(x.subtract(y)).mod(n);
+                }
+                g = q.gcd(n);
+                iterations += batchSize;
+            }
+            if (iterations > iterationLimit || System.nanoTime() - deadline > 0) {
+                return null;
+            }
+        }
+        if (g.equals(n)) {
+            // The batch overshot; step through it one at a time.
+            do {
+                ys = ys.multiply(ys).add(c).mod(n);
+                g = x.subtract(ys).gcd(n);
+            } while (g.equals(BigInteger.ONE));
+        }
+        return g.equals(n) ? null : g;
+    }
+
+    // One curve of Lenstra's elliptic curve method, using a Montgomery curve with Suyama's parameterization.
+    // 'primes' must go up to ECM_B2_MULTIPLE*b1. Returns null if this curve didn't find a factor, or we ran out of time.
+    private static BigInteger ecm(BigInteger n, BigInteger sigma, int b1, int[] primes, long deadline) {
+        final BigInteger u = sigma.multiply(sigma).subtract(BigInteger.valueOf(5)).mod(n);
+        final BigInteger v = sigma.shiftLeft(2).mod(n);
+        final BigInteger u3 = u.pow(3).mod(n);
+        final BigInteger vMinusU = v.subtract(u);
+        // (A + 2)/4 = (v - u)^3 (3u + v) / (16 u^3 v).
+        final BigInteger numerator = vMinusU.pow(3).multiply(u.multiply(BigInteger.valueOf(3)).add(v)).mod(n);
+        final BigInteger denominator = u3.multiply(v).shiftLeft(4).mod(n);
+        final BigInteger g = denominator.gcd(n);
+        if (!g.equals(BigInteger.ONE)) {
+            return g.equals(n) ? null : g;
+        }
+        final BigInteger a24 = numerator.multiply(denominator.modInverse(n)).mod(n);
+
+        // Stage 1 finds a factor if the curve's order modulo it has no prime power factor above b1.
+        BigInteger[] point = { u3, v.pow(3).mod(n) };
+        int i = 0;
+        for (; primes[i] <= b1; ++i) {
+            final int p = primes[i];
+            long q = p;
+            while (q * p <= b1) {
+                q *= p;
+            }
+            point = ladder(point, BigInteger.valueOf(q), a24, n);
+            if (System.nanoTime() - deadline > 0) {
+                return null;
+            }
+        }
+        BigInteger result = point[1].gcd(n);
+        if (!result.equals(BigInteger.ONE)) {
+            return result.equals(n) ? null : result;
+        }
+
+        // Stage 2 also finds a factor if the order has just one prime factor p above b1, as long as p <= b2.
+        // We write p as k*D +/- j, for j < D/2: p*Q is the identity modulo the factor exactly when k*D*Q and j*Q
+        // have the same x-coordinate there, so we multiply together X(kDQ) Z(jQ) - X(jQ) Z(kDQ) for each p.
+        final int b2 = ECM_B2_MULTIPLE * b1;
+        final BigInteger[][] babySteps = new BigInteger[ECM_D / 2][];
+        final BigInteger[] twoQ = ecmDouble(point, a24, n);
+        babySteps[1] = point;
+        babySteps[3] = ecmAdd(twoQ, point, point, n);
+        for (int j = 5; j < ECM_D / 2; j += 2) {
+            babySteps[j] = ecmAdd(babySteps[j - 2], twoQ, babySteps[j - 4], n);
+        }
+        final BigInteger[] giantStep = ladder(point, BigInteger.valueOf(ECM_D), a24, n);
+        int k = (primes[i] + ECM_D / 2) / ECM_D;
+        BigInteger[] previous = ladder(point, BigInteger.valueOf((long) (k - 1) * ECM_D), a24, n);
+        BigInteger[] current = ladder(point, BigInteger.valueOf((long) k * ECM_D), a24, n);
+        BigInteger product = BigInteger.ONE;
+        for (; primes[i] <= b2; ++i) {
+            final int p = primes[i];
+            while (p > k * ECM_D + ECM_D / 2) {
+                final BigInteger[] next = ecmAdd(current, giantStep, previous, n);
+                previous = current;
+                current = next;
+                ++k;
+                if (System.nanoTime() - deadline > 0) {
+                    return null;
+                }
+            }
+            final BigInteger[] baby = babySteps[Math.abs(p - k * ECM_D)];
+            product = product.multiply(current[0].multiply(baby[1]).subtract(baby[0].multiply(current[1]))).mod(n);
+        }
+        result = product.gcd(n);
+        return (result.equals(BigInteger.ONE) || result.equals(n)) ? null : result;
+    }
+
+    // Returns k*P for a point P = (X:Z) on a Montgomery curve.
+    private static BigInteger[] ladder(BigInteger[] p, BigInteger k, BigInteger a24, BigInteger n) {
+        BigInteger[] r0 = p;
+        BigInteger[] r1 = ecmDouble(p, a24, n);
+        for (int i = k.bitLength() - 2; i >= 0; --i) {
+            if (k.testBit(i)) {
+                r0 = ecmAdd(r0, r1, p, n);
+                r1 = ecmDouble(r1, a24, n);
+            } else {
+                r1 = ecmAdd(r0, r1, p, n);
+                r0 = ecmDouble(r0, a24, n);
+            }
+        }
+        return r0;
+    }
+
+    private static BigInteger[] ecmDouble(BigInteger[] p, BigInteger a24, BigInteger n) {
+        final BigInteger sum = p[0].add(p[1]);
+        final BigInteger difference = p[0].subtract(p[1]);
+        final BigInteger t1 = sum.multiply(sum).mod(n);
+        final BigInteger t2 = difference.multiply(difference).mod(n);
+        final BigInteger t3 = t1.subtract(t2);
+        return new BigInteger[] { t1.multiply(t2).mod(n), t3.multiply(t2.add(a24.multiply(t3))).mod(n) };
+    }
+
+    // Returns P + Q, given P - Q.
+    private static BigInteger[] ecmAdd(BigInteger[] p, BigInteger[] q, BigInteger[] difference, BigInteger n) {
+        final BigInteger a = p[0].subtract(p[1]).multiply(q[0].add(q[1]));
+        final BigInteger b = p[0].add(p[1]).multiply(q[0].subtract(q[1]));
+        final BigInteger sum = a.add(b);
+        final BigInteger diff = a.subtract(b);
+        return new BigInteger[] { difference[1].multiply(sum.multiply(sum).mod(n)).mod(n), difference[0].multiply(diff.multiply(diff).mod(n)).mod(n) };
+    }
+
+    // Returns floor(n^(1/k)) for n >= 0.
+    private static BigInteger root(BigInteger n, int k) {
+        if (k == 2) {
+            return sqrt(n);
+        }
+        // Newton's method from above, as for sqrt.
+        final BigInteger bigK = BigInteger.valueOf(k);
+        final BigInteger kMinusOne = BigInteger.valueOf(k - 1);
+        BigInteger x = BigInteger.ONE.shiftLeft(n.bitLength() / k + 1);
+        while (true) {
+            final BigInteger y = kMinusOne.multiply(x).add(n.divide(x.pow(k - 1))).divide(bigK);
+            if (y.compareTo(x) >= 0) {
+                return x;
+            }
+            x = y;
+        }
+    }
+
+    /**
+     * Returns the positive divisors of |n| in ascending order, or the empty list for 0.
+     */
+    static List<BigInteger> divisors(BigInteger n) {
+        final ArrayList<BigInteger> result = new ArrayList<BigInteger>();
+        if (n.signum() == 0) {
+            return result;
+        }
+        final List<BigInteger> factors = primeFactors(n);
+        // Every divisor picks an exponent between 0 and the multiplicity for each distinct prime.
+        long count = 1;
+        for (int i = 0; i < factors.size(); ) {
+            int multiplicity = 0;
+            final BigInteger p = factors.get(i);
+            while (i < factors.size() && factors.get(i).equals(p)) {
+                ++multiplicity;
+                ++i;
+            }
+            count *= multiplicity + 1;
+            if (count > MAX_DIVISOR_COUNT) {
+                throw new CalculatorError(n + " has too many divisors to list");
+            }
+        }
+        result.add(BigInteger.ONE);
+        for (int i = 0; i < factors.size(); ) {
+            final BigInteger p = factors.get(i);
+            final int previousSize = result.size();
+            BigInteger power = BigInteger.ONE;
+            while (i < factors.size() && factors.get(i).equals(p)) {
+                power = power.multiply(p);
+                for (int j = 0; j < previousSize; ++j) {
+                    result.add(result.get(j).multiply(power));
+                }
+                ++i;
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+}
@@ -0,0 +1,135 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs the chunks of a large job on all available cores: a Sum, Product, Map, or Filter, the rows of a matrix
+ * product, or a batch of plot samples.
+ *
+ * How the work is split depends only on its size, never on the number of cores or on timing,
+ * so inexact results are the same from run to run and from device to device.
+ * Whether to go parallel at all is the caller's choice, and may depend on timing (the plotter times its first
+ * evaluations, for example), since the results are the same either way.
+ * Each chunk runs in its own worker scope, which never goes parallel again, so workers never wait for each other.
+ */
+final class Parallel {
+    // Enough chunks to keep any phone or desktop busy even if some chunks are slower than others.
+    private static final int MAX_CHUNK_COUNT = 64;
+
+    private static final int THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+
+    private static ExecutorService executor;
+
+    interface Chunk<T> {
+        // Computes the result for items [start, end), evaluating in the given scope.
+        public T run(Calculator scope, long start, long end);
+    }
+
+    private Parallel() {
+    }
+
+    /**
+     * Tests whether the given number of items should be split between threads.
+     * We split even on a single core, so inexact results don't depend on the device.
+     */
+    static boolean shouldRunInParallel(Calculator environment, long itemCount) {
+        return itemCount >= environment.getParallelThreshold();
+    }
+
+    /**
+     * Splits [0, itemCount) into chunks, runs them all, and returns their results in order.
+     */
+    static <T> List<T> run(Calculator environment, long itemCount, final Chunk<T> chunk) throws CalculatorError {
+        final int chunkCount = (int) Math.min(MAX_CHUNK_COUNT, itemCount);
+        final ArrayList<Future<T>> futures = new ArrayList<Future<T>>(chunkCount);
+        try {
+            for (int i = 0; i < chunkCount; ++i) {
+                final long start = itemCount * i / chunkCount;
+                final long end = itemCount * (i + 1) / chunkCount;
+                final Calculator scope = environment.newWorkerScope();
+                futures.add(executor().submit(new Callable<T>() {
+                    public T call() {
+                        return chunk.run(scope, start, end);
+                    }
+                }));
+            }
+            final ArrayList<T> results = new ArrayList<T>(chunkCount);
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new CalculatorError("internal error: " + cause);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CalculatorError("interrupted");
+        } finally {
+            // If anything went wrong, there's no point finishing the other chunks.
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Combines partial sums or products pairwise, so the shape of the computation (and thus any rounding) depends only on the number of parts.
+     */
+    static NumberNode reduce(List<NumberNode> parts, boolean isSum) {
+        ArrayList<NumberNode> level = new ArrayList<NumberNode>(parts);
+        while (level.size() > 1) {
+            final ArrayList<NumberNode> nextLevel = new ArrayList<NumberNode>((level.size() + 1) / 2);
+            for (int i = 0; i < level.size(); i += 2) {
+                if (i + 1 == level.size()) {
+                    nextLevel.add(level.get(i));
+                } else {
+                    final NumberNode lhs = level.get(i);
+                    final NumberNode rhs = level.get(i + 1);
+                    nextLevel.add(isSum ? lhs.plus(rhs) : lhs.times(rhs));
+                }
+            }
+            level = nextLevel;
+        }
+        return level.get(0);
+    }
+
+    private static synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(THREAD_COUNT, new ThreadFactory() {
+                private int threadCount = 0;
+
+                public synchronized Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "Calculator worker " + (++threadCount));
+                    // These threads shouldn't keep an application from exiting.
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+}
@@ -0,0 +1,542 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.*;
+
+/**
+ * Chooses where to evaluate the curves of a Plot, ParametricPlot, or PolarPlot.
+ *
+ * We start with a coarse, even grid of intervals of the plot's variable, evaluating the curves at each end and in
+ * the middle. If the middle of any curve isn't (to within half a pixel) on the straight line between the ends, we
+ * split the interval in two and evaluate the middles of the halves. We always split the worst interval next, so if
+ * we run out of our budget of evaluations, we've spent it where it showed most.
+ *
+ * Ordinary intervals aren't split below a quarter of a pixel, but we keep bisecting intervals across which a curve
+ * jumps, or becomes undefined, until they're a millionth of a pixel wide. Below a pixel, we only follow the half
+ * with the bigger change, so that costs one evaluation per halving. That finds where a NaN region starts to well
+ * within a pixel, and separates a pole like the one in 1/(x-1) from a merely steep curve: a steep curve stops
+ * changing by a pixel at a time, but a jump doesn't. Where the jump survives, we insert a NaN sample so the two
+ * sides aren't joined up.
+ *
+ * All the curves share the same values of the variable, so each evaluation computes every curve at once, and
+ * computes the subexpressions they have in common (such as the r(t) in PolarPlot's x and y) only once. The samples
+ * are kept in primitive arrays, one per expression, and linked in order as intervals are split.
+ *
+ * We split intervals in rounds: each round takes the worst intervals that fit in what's left of the budget, and
+ * evaluates all the new points together, on all cores if that looks worthwhile. Each evaluation runs in its own
+ * worker scope and only depends on the variable, and what we do with the results doesn't depend on how they were
+ * computed, so a parallel plot is identical to a sequential one.
+ */
+final class PlotSampler {
+    // The width (in pixels) that we assume we're plotting for.
+    static final int PIXEL_WIDTH = 300;
+
+    // The number of intervals we start with. Enough not to miss a wiggle wider than a few percent of the plot.
+    private static final int INITIAL_INTERVAL_COUNT = 32;
+
+    // The most evaluations we'll do, however badly behaved the curves are.
+    private static final int MAX_EVALUATION_COUNT = 2000;
+
+    // What we pretend an evaluation costs when comparing with the parallel threshold, which counts cheap terms of a Sum.
+    private static final long NANOS_PER_PARALLEL_ITEM = 50;
+
+    // How finely we subdivide smooth curves, and how finely we look for jumps and NaN boundaries, in pixels.
+    private static final double MIN_WIDTH = 0.25;
+    private static final double MIN_JUMP_WIDTH = 1e-6;
+
+    private final Calculator environment;
+    // The expressions we evaluate for each value of the variable. For Plot, that's each curve's y. For ParametricPlot
+    // and PolarPlot, it's each curve's x and then its y.
+    private final CompiledExpression[] expressions;
+    // All the expressions as one program, if they're all real.
+    private final RealExpression.Program program;
+    private final boolean isParametric;
+    private final int curveCount;
+    private final double tMin;
+    private final double tRange;
+
+    // Every sample, in the order we evaluated them: the value of the variable, and of each expression.
+    private int rowCount = 0;
+    private double[] ts = new double[0];
+    private final double[][] columns;
+    // The sample after each one, by value of the variable, or -1 for the last.
+    private int[] next = new int[0];
+    // The samples we added to mark breaks, and (at row * curveCount + curve) which curves break there.
+    private final BitSet isBreakRow = new BitSet();
+    private final BitSet breaks = new BitSet();
+
+    private int evaluationCount = 0;
+
+    // How long an evaluation takes on this thread, or -1 if we haven't timed one yet.
+    private long nanosPerEvaluation = -1;
+
+    // The size of a pixel, in x and y units.
+    private double xPixel;
+    private double yPixel;
+
+    private static class Interval implements Comparable<Interval> {
+        final int row0, rowMid, row1;
+        final double badness;
+
+        Interval(int row0, int rowMid, int row1, double badness) {
+            this.row0 = row0;
+            this.rowMid = rowMid;
+            this.row1 = row1;
+            this.badness = badness;
+        }
+
+        public int compareTo(Interval other) {
+            // Worst first.
+            return Double.compare(other.badness, badness);
+        }
+    }
+
+    /**
+     * Prepares to sample the given expressions, all functions of the same variable, from tMin to tMax. If
+     * isParametric is true, the expressions are pairs of x and y; otherwise, each is the y of a curve.
+     */
+    PlotSampler(Calculator environment, CompiledExpression[] expressions, boolean isParametric, double tMin, double tMax) {
+        this.environment = environment;
+        this.expressions = expressions.clone();
+        this.program = CompiledExpression.realProgram(expressions);
+        this.isParametric = isParametric;
+        this.curveCount = isParametric ? expressions.length / 2 : expressions.length;
+        this.columns = new double[expressions.length][0];
+        this.tMin = tMin;
+        this.tRange = tMax - tMin;
+    }
+
+    /**
+     * Returns the plot data for the curves over [tMin, tMax].
+     */
+    CalculatorPlotData sample(RealNode tMin, RealNode tMax) {
+        final int[] initialRows = new int[2 * INITIAL_INTERVAL_COUNT + 1];
+        for (int i = 0; i < initialRows.length; ++i) {
+            initialRows[i] = addRow(this.tMin + tRange * i / (initialRows.length - 1));
+            if (i > 0) {
+                next[initialRows[i - 1]] = initialRows[i];
+            }
+        }
+        evaluate(initialRows);
+        choosePixelSizes(initialRows);
+
+        final PriorityQueue<Interval> queue = new PriorityQueue<Interval>();
+        for (int i = 0; i + 2 < initialRows.length; i += 2) {
+            offer(queue, initialRows[i], initialRows[i + 1], initialRows[i + 2]);
+        }
+        final ArrayList<Interval> round = new ArrayList<Interval>();
+        while (!queue.isEmpty()) {
+            // Choose this round's intervals, and the points they need.
+            round.clear();
+            int newRowCount = 0;
+            while (!queue.isEmpty()) {
+                final Interval interval = queue.peek();
+                final int cost = (splitsLeft(interval) ? 1 : 0) + (splitsRight(interval) ? 1 : 0);
+                if (evaluationCount + newRowCount + cost > MAX_EVALUATION_COUNT) {
+                    break;
+                }
+                round.add(queue.poll());
+                newRowCount += cost;
+            }
+            if (round.isEmpty()) {
+                break;
+            }
+            final int[] newRows = new int[newRowCount];
+            int i = 0;
+            for (Interval interval : round) {
+                if (splitsLeft(interval)) {
+                    newRows[i++] = insertRow(interval.row0, (ts[interval.row0] + ts[interval.rowMid]) / 2);
+                }
+                if (splitsRight(interval)) {
+                    newRows[i++] = insertRow(interval.rowMid, (ts[interval.rowMid] + ts[interval.row1]) / 2);
+                }
+            }
+
+            evaluate(newRows);
+
+            i = 0;
+            for (Interval interval : round) {
+                if (splitsLeft(interval)) {
+                    offer(queue, interval.row0, newRows[i++], interval.rowMid);
+                }
+                if (splitsRight(interval)) {
+                    offer(queue, interval.rowMid, newRows[i++], interval.row1);
+                }
+            }
+        }
+        // Whatever's left is as good as it's going to get.
+        for (Interval interval : queue) {
+            finish(interval.row0, interval.rowMid, interval.row1);
+        }
+        return collect(tMin, tMax);
+    }
+
+    /**
+     * Returns the number of times we've evaluated the curves.
+     */
+    int evaluationCount() {
+        return evaluationCount;
+    }
+
+    // Adds a sample for the given value of the variable, not yet evaluated or linked in, returning its row.
+    private int addRow(double t) {
+        if (rowCount == ts.length) {
+            final int capacity = Math.max(2 * rowCount, 4 * INITIAL_INTERVAL_COUNT);
+            ts = Arrays.copyOf(ts, capacity);
+            next = Arrays.copyOf(next, capacity);
+            for (int k = 0; k < columns.length; ++k) {
+                columns[k] = Arrays.copyOf(columns[k], capacity);
+            }
+        }
+        ts[rowCount] = t;
+        next[rowCount] = -1;
+        return rowCount++;
+    }
+
+    // Adds a sample for the given value of the variable, immediately after the given row.
+    private int insertRow(int previousRow, double t) {
+        final int row = addRow(t);
+        next[row] = next[previousRow];
+        next[previousRow] = row;
+        return row;
+    }
+
+    private double x(int curve, int row) {
+        return isParametric ? columns[2 * curve][row] : ts[row];
+    }
+
+    private double y(int curve, int row) {
+        return columns[isParametric ? 2 * curve + 1 : curve][row];
+    }
+
+    private boolean isDefined(int curve, int row) {
+        return !Double.isNaN(x(curve, row)) && !Double.isNaN(y(curve, row));
+    }
+
+    // Sets the pixel sizes, assuming the plot is square, guessing the ranges from the middle 80% of the coarse
+    // samples of all the curves, so that a pole doesn't make everything else look flat.
+    private void choosePixelSizes(int[] rows) {
+        final double[] xs = new double[rows.length * curveCount];
+        final double[] ys = new double[rows.length * curveCount];
+        for (int c = 0; c < curveCount; ++c) {
+            for (int i = 0; i < rows.length; ++i) {
+                xs[c * rows.length + i] = x(c, rows[i]);
+                ys[c * rows.length + i] = y(c, rows[i]);
+            }
+        }
+        xPixel = isParametric ? choosePixelSize(xs) : tRange / PIXEL_WIDTH;
+        yPixel = choosePixelSize(ys);
+    }
+
+    private static double choosePixelSize(double[] values) {
+        final double[] finite = new double[values.length];
+        int count = 0;
+        for (double value : values) {
+            if (!Double.isNaN(value)) {
+                finite[count++] = value;
+            }
+        }
+        if (count == 0) {
+            return Double.MIN_NORMAL;
+        }
+        Arrays.sort(finite, 0, count);
+        final double range = finite[count - 1 - count / 10] - finite[count / 10];
+        final double size = Math.max(range, 1e-12 * Math.max(Math.abs(finite[0]), Math.abs(finite[count - 1]))) / PIXEL_WIDTH;
+        // If everything's zero, any change at all is a big one.
+        return Math.max(size, Double.MIN_NORMAL);
+    }
+
+    // Tests whether splitting the interval means evaluating the middle of its left half. Both halves get split
+    // unless the interval is narrower than MIN_WIDTH, in which case we only follow the bigger change.
+    private boolean splitsLeft(Interval interval) {
+        return pixels(interval.row0, interval.row1) >= MIN_WIDTH || maxChange(interval.row0, interval.rowMid) >= maxChange(interval.rowMid, interval.row1);
+    }
+
+    private boolean splitsRight(Interval interval) {
+        return pixels(interval.row0, interval.row1) >= MIN_WIDTH || maxChange(interval.rowMid, interval.row1) > maxChange(interval.row0, interval.rowMid);
+    }
+
+    // Returns the width of the interval between two samples in pixels, as if the variable were plotted along the x axis.
+    private double pixels(int row0, int row1) {
+        return (ts[row1] - ts[row0]) / tRange * PIXEL_WIDTH;
+    }
+
+    // Returns how far, in pixels, a curve moves between two samples, which is infinite if it becomes (or stops being)
+    // undefined, and zero if it's undefined throughout. For Plot, only the vertical distance counts.
+    private double change(int curve, int row0, int row1) {
+        final boolean isDefined0 = isDefined(curve, row0);
+        final boolean isDefined1 = isDefined(curve, row1);
+        if (!isDefined0 || !isDefined1) {
+            return (isDefined0 == isDefined1) ? 0 : Double.POSITIVE_INFINITY;
+        }
+        final double dy = (y(curve, row1) - y(curve, row0)) / yPixel;
+        if (!isParametric) {
+            return Math.abs(dy);
+        }
+        final double dx = (x(curve, row1) - x(curve, row0)) / xPixel;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    // Returns the biggest change of any curve between two samples.
+    private double maxChange(int row0, int row1) {
+        double result = 0;
+        for (int c = 0; c < curveCount; ++c) {
+            result = Math.max(result, change(c, row0, row1));
+        }
+        return result;
+    }
+
+    // Returns how far, in pixels, the middle sample of a curve is from the straight line between the ends.
+    private double deviation(int curve, int row0, int rowMid, int row1) {
+        final double yMid = (y(curve, rowMid) - y(curve, row0)) / yPixel;
+        final double y1 = (y(curve, row1) - y(curve, row0)) / yPixel;
+        if (!isParametric) {
+            return Math.abs(yMid - y1 / 2);
+        }
+        // A parametric curve needn't move at a constant speed, so we measure to the nearest point of the chord,
+        // rather than to its middle.
+        final double xMid = (x(curve, rowMid) - x(curve, row0)) / xPixel;
+        final double x1 = (x(curve, row1) - x(curve, row0)) / xPixel;
+        final double lengthSquared = x1 * x1 + y1 * y1;
+        final double u = (lengthSquared > 0) ? Math.max(0, Math.min(1, (xMid * x1 + yMid * y1) / lengthSquared)) : 0;
+        final double dx = xMid - u * x1;
+        final double dy = yMid - u * y1;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    // Tests whether a curve changes by more than a pixel over half of a sub-pixel interval.
+    private boolean isJump(int curve, int row0, int rowMid, int row1) {
+        return change(curve, row0, rowMid) > 1 || change(curve, rowMid, row1) > 1;
+    }
+
+    // Queues the interval for splitting if it needs it, or finishes with it if not.
+    private void offer(PriorityQueue<Interval> queue, int row0, int rowMid, int row1) {
+        final double width = pixels(row0, row1);
+        double badness = 0;
+        for (int c = 0; c < curveCount; ++c) {
+            badness = Math.max(badness, badness(c, width, row0, rowMid, row1));
+        }
+        if (badness > 0) {
+            queue.add(new Interval(row0, rowMid, row1, badness));
+        } else {
+            finish(row0, rowMid, row1);
+        }
+    }
+
+    // Returns how badly the interval needs splitting for the given curve, or 0 if it doesn't.
+    private double badness(int curve, double width, int row0, int rowMid, int row1) {
+        if (!isDefined(curve, row0) || !isDefined(curve, rowMid) || !isDefined(curve, row1)) {
+            // Unless the whole interval is undefined, there's a boundary to find.
+            final boolean isBoundary = change(curve, row0, rowMid) > 0 || change(curve, rowMid, row1) > 0;
+            return (isBoundary && width >= MIN_JUMP_WIDTH) ? width : 0;
+        } else if (width >= MIN_WIDTH) {
+            final double deviation = deviation(curve, row0, rowMid, row1);
+            // Weighting by the width means one bad spot can't soak up the whole budget.
+            return (deviation > 0.5) ? deviation * width : 0;
+        } else if (width >= MIN_JUMP_WIDTH && isJump(curve, row0, rowMid, row1)) {
+            return width;
+        }
+        return 0;
+    }
+
+    // Marks a break in any curve that still jumps across something so narrow.
+    private void finish(int row0, int rowMid, int row1) {
+        if (pixels(row0, row1) >= MIN_WIDTH) {
+            return;
+        }
+        for (int c = 0; c < curveCount; ++c) {
+            final boolean isDefined = isDefined(c, row0) && isDefined(c, rowMid) && isDefined(c, row1);
+            if (isDefined && isJump(c, row0, rowMid, row1)) {
+                // Put the break on whichever side the jump is, sharing a break with another curve if it's there too.
+                final int previousRow = (change(c, row0, rowMid) > change(c, rowMid, row1)) ? row0 : rowMid;
+                int row = next[previousRow];
+                if (!isBreakRow.get(row)) {
+                    row = insertRow(previousRow, (ts[previousRow] + ts[row]) / 2);
+                    isBreakRow.set(row);
+                }
+                breaks.set(row * curveCount + c);
+            }
+        }
+    }
+
+    // Returns the samples in order, with the breaks.
+    private CalculatorPlotData collect(RealNode tMin, RealNode tMax) {
+        int[] order = new int[rowCount];
+        int sampleCount = 0;
+        for (int row = 0; row != -1; row = next[row]) {
+            order[sampleCount++] = row;
+        }
+
+        // Chasing the steep sides of a pole can find the same jump more than once, and a break next to where the
+        // curve is undefined anyway is redundant.
+        final double pixel = tRange / PIXEL_WIDTH;
+        final double[] nextGap = new double[sampleCount];
+        for (int c = 0; c < curveCount; ++c) {
+            double gap = Double.POSITIVE_INFINITY;
+            for (int i = sampleCount - 1; i >= 0; --i) {
+                nextGap[i] = gap;
+                if (!isBreakRow.get(order[i]) && !isDefined(c, order[i])) {
+                    gap = ts[order[i]];
+                }
+            }
+            double lastGap = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < sampleCount; ++i) {
+                final int row = order[i];
+                if (!isBreakRow.get(row)) {
+                    if (!isDefined(c, row)) {
+                        lastGap = ts[row];
+                    }
+                } else if (breaks.get(row * curveCount + c)) {
+                    if (ts[row] - lastGap < pixel || nextGap[i] - ts[row] < pixel) {
+                        breaks.clear(row * curveCount + c);
+                    } else {
+                        lastGap = ts[row];
+                    }
+                }
+            }
+        }
+
+        // The curves that don't break at a break need evaluating there. Breaks no curve needs are dropped.
+        int breakCount = 0;
+        int keptCount = 0;
+        for (int i = 0; i < sampleCount; ++i) {
+            final int row = order[i];
+            if (isBreakRow.get(row)) {
+                if (!hasBreak(row)) {
+                    continue;
+                }
+                ++breakCount;
+            }
+            order[keptCount++] = row;
+        }
+        sampleCount = keptCount;
+        final int[] breakRows = new int[breakCount];
+        breakCount = 0;
+        for (int i = 0; i < sampleCount; ++i) {
+            if (isBreakRow.get(order[i])) {
+                breakRows[breakCount++] = order[i];
+            }
+        }
+        evaluate(breakRows);
+
+        final CalculatorPlotData result = isParametric ? new CalculatorPlotData(curveCount, sampleCount) : new CalculatorPlotData(tMin, tMax, curveCount, sampleCount);
+        for (int i = 0; i < sampleCount; ++i) {
+            final int row = order[i];
+            result.tValues[i] = ts[row];
+            for (int c = 0; c < curveCount; ++c) {
+                final boolean isBreak = breaks.get(row * curveCount + c);
+                if (isParametric) {
+                    result.xColumns[c][i] = isBreak ? Double.NaN : x(c, row);
+                }
+                result.yColumns[c][i] = isBreak ? Double.NaN : y(c, row);
+            }
+        }
+        result.calculateRange();
+        return result;
+    }
+
+    // Tests whether any curve breaks at the given row.
+    private boolean hasBreak(int row) {
+        final int bit = breaks.nextSetBit(row * curveCount);
+        return bit != -1 && bit < (row + 1) * curveCount;
+    }
+
+    // Evaluates the curves at each of the given samples.
+    private void evaluate(final int[] rows) {
+        evaluationCount += rows.length;
+        int start = 0;
+        if (nanosPerEvaluation == -1 && rows.length > 0) {
+            // Time one evaluation so we know whether the rest are worth farming out.
+            final long t0 = System.nanoTime();
+            evaluate(environment, rows[0], newValues());
+            nanosPerEvaluation = System.nanoTime() - t0;
+            start = 1;
+        }
+        final int count = rows.length - start;
+        final long threshold = environment.getParallelThreshold();
+        if (threshold != Integer.MAX_VALUE && count > 1 && nanosPerEvaluation * count >= threshold * NANOS_PER_PARALLEL_ITEM) {
+            final int offset = start;
+            Parallel.run(environment, count, new Parallel.Chunk<Void>() {
+                public Void run(Calculator scope, long chunkStart, long chunkEnd) {
+                    final double[] values = newValues();
+                    for (int i = offset + (int) chunkStart; i < offset + (int) chunkEnd; ++i) {
+                        evaluate(scope, rows[i], values);
+                    }
+                    return null;
+                }
+            });
+        } else {
+            final double[] values = newValues();
+            final long t0 = System.nanoTime();
+            for (int i = start; i < rows.length; ++i) {
+                evaluate(environment, rows[i], values);
+            }
+            if (count > 0) {
+                nanosPerEvaluation = (System.nanoTime() - t0) / count;
+            }
+        }
+    }
+
+    // Returns an array for the program's parameter and intermediate values.
+    private double[] newValues() {
+        return new double[(program != null) ? program.valueCount() : 1];
+    }
+
+    // Evaluates the curves at the given sample, in the given scope, using 'values' for the program's values.
+    private void evaluate(Calculator scope, int row, double[] values) {
+        final double t = ts[row];
+        if (program != null) {
+            try {
+                values[0] = t;
+                program.evaluate(scope, values);
+                for (int k = 0; k < columns.length; ++k) {
+                    columns[k][row] = plottable(program.output(scope, values, k));
+                }
+                return;
+            } catch (RuntimeException ex) {
+                // At least one of the expressions can't be evaluated here, so evaluate them one by one.
+            }
+        }
+        for (int k = 0; k < columns.length; ++k) {
+            columns[k][row] = evaluate(scope, expressions[k], t);
+        }
+    }
+
+    // Returns the expression's value at t, evaluating in the given scope.
+    private static double evaluate(Calculator scope, CompiledExpression expr, double t) {
+        try {
+            if (expr.isReal()) {
+                return plottable(expr.evaluateReal(scope, new double[] { t }));
+            }
+            final Node[] nodeValues = new Node[] { new RealNode(t) };
+            return plottable(CalculatorFunction.toNumber("Plot", scope, expr.evaluate(scope, nodeValues)).toReal().doubleValue());
+        } catch (CalculatorError ex) {
+            return Double.NaN;
+        } catch (RuntimeException ex) {
+            ex.printStackTrace();
+            return Double.NaN;
+        }
+    }
+
+    private static double plottable(double value) {
+        // Infinity confuses the range calculations.
+        return Double.isInfinite(value) ? Double.NaN : value;
+    }
+}
@@ -0,0 +1,337 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.math.*;
+
+/**
+ * A shared sieve of Eratosthenes, grown on demand and kept for later queries.
+ *
+ * Only odd numbers are represented, one bit each, so the cache costs one byte per 16 numbers.
+ * The cache stops growing at MAX_CACHED_LIMIT; beyond that, we sieve one fixed-size segment at a time
+ * using the cached primes, so memory use stays bounded however large the range.
+ */
+final class PrimeSieve {
+    // The cache starts big enough for trial division during factorization.
+    private static final long INITIAL_LIMIT = 1 << 16;
+
+    // 2^25 numbers cost 2 MiB, and give us every base prime we need to sieve segments up to 2^50.
+    private static final long MAX_CACHED_LIMIT = 1 << 25;
+
+    // The size of each segment when sieving past the cache (in numbers, so this is 32 KiB of bits).
+    private static final long SEGMENT_SIZE = 1 << 19;
+
+    // Segmented sieving covers a few hundred million numbers per second on a desktop, and perhaps a tenth of that on
+    // a phone. We run on Mathdroid's UI thread, so this keeps any query to a few seconds even there.
+    private static final long MAX_SEGMENTED_LIMIT = 1L << 28;
+
+    /**
+     * The sieved numbers [0, limit). Bit i of 'composite' is set if 2i+1 is composite.
+     * Instances are never modified once published, so readers don't need a lock.
+     */
+    private static final class Sieve {
+        final long limit;
+        final long[] composite;
+
+        Sieve(long limit, long[] composite) {
+            this.limit = limit;
+            this.composite = composite;
+        }
+
+        boolean isOddPrime(long n) {
+            final long bit = n >>> 1;
+            return (composite[(int) (bit >>> 6)] & (1L << bit)) == 0;
+        }
+    }
+
+    private static volatile Sieve sieve;
+
+    // The primes below 2^16, as ints, for trial division.
+    private static int[] smallPrimes;
+
+    private PrimeSieve() {
+    }
+
+    /**
+     * Returns the sieve, grown to cover at least [0, n) if that's within MAX_CACHED_LIMIT.
+     */
+    private static Sieve sieve(long n) {
+        final Sieve s = sieve;
+        if (s != null && s.limit >= n) {
+            return s;
+        }
+        return grow(n);
+    }
+
+    private static synchronized Sieve grow(long n) {
+        final Sieve old = sieve;
+        if (old != null && old.limit >= n) {
+            return old;
+        }
+        // Grow geometrically, so a run of increasing queries doesn't re-sieve each time.
+        long newLimit = (old == null) ? INITIAL_LIMIT : old.limit;
+        while (newLimit < n && newLimit < MAX_CACHED_LIMIT) {
+            newLimit *= 2;
+        }
+        if (old != null && newLimit == old.limit) {
+            return old;
+        }
+        final long[] composite = new long[(int) (newLimit / 128)];
+        if (old == null) {
+            // 1 is neither prime nor composite, but we don't want it reported as a prime.
+            composite[0] = 1;
+            // Sieving [0, newLimit) only needs the primes below sqrt(newLimit), which we find as we go.
+            for (long p = 3; p * p < newLimit; p += 2) {
+                if ((composite[(int) (p >>> 7)] & (1L << (p >>> 1))) == 0) {
+                    crossOff(composite, 0, newLimit, p);
+                }
+            }
+        } else {
+            // Keep what we already know, and sieve the new part with the primes we already have.
+            System.arraycopy(old.composite, 0, composite, 0, old.composite.length);
+            final long oldLimit = old.limit;
+            for (long p = 3; p * p < newLimit; p += 2) {
+                if (old.isOddPrime(p)) {
+                    crossOff(composite, 0, newLimit, p, oldLimit);
+                }
+            }
+        }
+        sieve = new Sieve(newLimit, composite);
+        return sieve;
+    }
+
+    // Marks the odd multiples of the odd prime p in [base, limit) as composite, where bit i of 'bits' represents base + 2i + 1.
+    private static void crossOff(long[] bits, long base, long limit, long p) {
+        crossOff(bits, base, limit, p, base);
+    }
+
+    // As crossOff, but only marks multiples from 'from' onwards.
+    private static void crossOff(long[] bits, long base, long limit, long p, long from) {
+        // Start at p^2 (smaller multiples have smaller factors), or the first odd multiple at or after 'from'.
+        long start = p * p;
+        if (start < from) {
+            start = ((from + p - 1) / p) * p;
+            if ((start & 1) == 0) {
+                start += p;
+            }
+        }
+        final long step = 2 * p;
+        for (long m = start; m < limit; m += step) {
+            final long bit = (m - base) >>> 1;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Returns a sieve of the odd numbers in [base, base + SEGMENT_SIZE), for a base beyond the cache.
+     */
+    private static long[] sieveSegment(long base) {
+        final long limit = base + SEGMENT_SIZE;
+        final Sieve s = sieve((long) Math.sqrt((double) limit) + 2);
+        final long[] composite = new long[(int) (SEGMENT_SIZE / 128)];
+        for (long p = 3; p * p < limit; p += 2) {
+            if (s.isOddPrime(p)) {
+                crossOff(composite, base, limit, p);
+            }
+        }
+        return composite;
+    }
+
+    private static void checkSegmentedLimit(long n) {
+        if (n > MAX_SEGMENTED_LIMIT) {
+            throw new CalculatorError("can't sieve primes beyond " + MAX_SEGMENTED_LIMIT);
+        }
+    }
+
+    /**
+     * Returns the primes below 2^16.
+     */
+    static synchronized int[] smallPrimes() {
+        if (smallPrimes == null) {
+            smallPrimes = primes(INITIAL_LIMIT - 1);
+        }
+        return smallPrimes;
+    }
+
+    /**
+     * Returns the primes <= n, for n within the cache.
+     */
+    static int[] primes(long n) {
+        if (n >= MAX_CACHED_LIMIT) {
+            throw new CalculatorError("can't list the primes up to " + n);
+        }
+        if (n < 2) {
+            return new int[0];
+        }
+        final Sieve s = sieve(n + 1);
+        final int[] primes = new int[(int) countPrimes(s, n + 1)];
+        primes[0] = 2;
+        for (int candidate = 3, i = 1; candidate <= n; candidate += 2) {
+            if (s.isOddPrime(candidate)) {
+                primes[i++] = candidate;
+            }
+        }
+        return primes;
+    }
+
+    /**
+     * Tests whether n is prime, answering from the sieve if n is within the cached range.
+     */
+    static boolean isPrime(long n) {
+        n = Math.abs(n);
+        final Sieve s = sieve(INITIAL_LIMIT);
+        if (n >= s.limit || n < 0) {
+            return NumberTheory.isPrime(n);
+        }
+        return (n == 2) || ((n & 1) != 0 && s.isOddPrime(n));
+    }
+
+    /**
+     * Returns the number of primes <= n.
+     */
+    static long primePi(long n) {
+        if (n < 2) {
+            return 0;
+        }
+        checkSegmentedLimit(n);
+        final Sieve s = sieve(n + 1);
+        if (n < s.limit) {
+            return countPrimes(s, n + 1);
+        }
+        long count = countPrimes(s, s.limit);
+        for (long base = s.limit; base <= n; base += SEGMENT_SIZE) {
+            final long[] composite = sieveSegment(base);
+            count += countClearBits(composite, Math.min(SEGMENT_SIZE, n + 1 - base) / 2);
+        }
+        return count;
+    }
+
+    // Returns the number of primes in [0, n), for n <= s.limit.
+    private static long countPrimes(Sieve s, long n) {
+        // 2 is the only even prime, and bit 0 (for 1) is already set.
+        return 1 + countClearBits(s.composite, n / 2);
+    }
+
+    // Returns the number of clear bits among the first 'bitCount' bits.
+    private static long countClearBits(long[] bits, long bitCount) {
+        final int wholeWords = (int) (bitCount >>> 6);
+        long count = 0;
+        for (int i = 0; i < wholeWords; ++i) {
+            count += 64 - Long.bitCount(bits[i]);
+        }
+        final int remainder = (int) (bitCount & 63);
+        if (remainder != 0) {
+            count += remainder - Long.bitCount(bits[wholeWords] & ((1L << remainder) - 1));
+        }
+        return count;
+    }
+
+    /**
+     * Returns the smallest prime greater than n.
+     */
+    static BigInteger nextPrime(BigInteger n) {
+        if (n.compareTo(BigInteger.valueOf(2)) < 0) {
+            return BigInteger.valueOf(2);
+        }
+        if (n.bitLength() < 63) {
+            final long result = nextPrime(n.longValue());
+            if (result != 0) {
+                return BigInteger.valueOf(result);
+            }
+        }
+        // Beyond the sieve, we test the odd candidates one by one; primes are about ln(n) apart, so this is quick.
+        BigInteger candidate = n.add(BigInteger.ONE).or(BigInteger.ONE);
+        while (!NumberTheory.isPrime(candidate)) {
+            candidate = candidate.add(BigInteger.valueOf(2));
+        }
+        return candidate;
+    }
+
+    // Returns the smallest prime greater than n, for n >= 2, or 0 if that's beyond the cache.
+    private static long nextPrime(long n) {
+        if (n + 1 >= MAX_CACHED_LIMIT) {
+            return 0;
+        }
+        for (Sieve s = sieve(n + 2); ; s = sieve(2 * s.limit)) {
+            for (long candidate = (n + 1) | 1; candidate < s.limit; candidate += 2) {
+                if (s.isOddPrime(candidate)) {
+                    return candidate;
+                }
+            }
+            if (s.limit >= MAX_CACHED_LIMIT) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Returns the k'th prime, counting 2 as the first.
+     */
+    static long prime(long k) {
+        if (k < 1) {
+            throw new CalculatorError("'Prime' requires a positive argument");
+        }
+        if (k == 1) {
+            return 2;
+        }
+        // p(k) < k(ln k + ln ln k) for k >= 6 (Rosser), which tells us how far to sieve.
+        final double lnK = Math.log(k);
+        final long upperBound = (k < 6) ? 12 : (long) (k * (lnK + Math.log(lnK))) + 1;
+        checkSegmentedLimit(upperBound);
+        final Sieve s = sieve(upperBound + 1);
+        // Count off the odd primes, having already counted 2.
+        long remaining = k - 1;
+        remaining = findNthClearBit(s.composite, 1, s.limit / 2, remaining);
+        if (remaining < 0) {
+            return ~remaining * 2 + 1;
+        }
+        for (long base = s.limit; ; base += SEGMENT_SIZE) {
+            remaining = findNthClearBit(sieveSegment(base), 0, SEGMENT_SIZE / 2, remaining);
+            if (remaining < 0) {
+                return base + ~remaining * 2 + 1;
+            }
+        }
+    }
+
+    // Looks for the n'th clear bit in [from, to). Returns ~index if it's found, or how many more clear bits are still needed.
+    private static long findNthClearBit(long[] bits, long from, long to, long n) {
+        long i = from;
+        // Skip whole words at a time where we can.
+        while (i < to && (i & 63) != 0) {
+            if ((bits[(int) (i >>> 6)] & (1L << i)) == 0 && --n == 0) {
+                return ~i;
+            }
+            ++i;
+        }
+        while (i + 64 <= to) {
+            final int clear = 64 - Long.bitCount(bits[(int) (i >>> 6)]);
+            if (clear >= n) {
+                break;
+            }
+            n -= clear;
+            i += 64;
+        }
+        for (; i < to; ++i) {
+            if ((bits[(int) (i >>> 6)] & (1L << i)) == 0 && --n == 0) {
+                return ~i;
+            }
+        }
+        return n;
+    }
+}
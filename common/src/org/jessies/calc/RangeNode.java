@@ -0,0 +1,138 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.math.*;
+import java.util.*;
+
+/**
+ * An arithmetic sequence of integers, as returned by Range.
+ *
+ * The elements are computed when they're asked for, so a range takes the same space however long it is, and
+ * functions like Length, Total, and Reverse that know about ranges don't need to look at the elements at all.
+ * To everything else, a RangeNode looks like the list of its elements.
+ */
+public class RangeNode extends ListNode {
+    // Beyond this, RealNode.integerPart can't give the right answer.
+    private static final double MAX_EXACT_REAL = 1e18;
+
+    private final IntegerNode start;
+    private final IntegerNode step;
+    private final int size;
+
+    private RangeNode(IntegerNode start, IntegerNode step, int size) {
+        this.start = start;
+        this.step = step;
+        this.size = size;
+    }
+
+    /**
+     * Returns the range [start, start+step, ...] of all the elements not beyond 'end', or null if 'end' isn't a
+     * number whose integer part we can find exactly. 'step' must not be zero.
+     */
+    static RangeNode valueOf(IntegerNode start, NumberNode end, IntegerNode step) {
+        if (end instanceof RealNode) {
+            // This also rejects infinities and NaN.
+            if (!(Math.abs(((RealNode) end).doubleValue()) < MAX_EXACT_REAL)) {
+                return null;
+            }
+        } else if (!(end instanceof IntegerNode || end instanceof BigRealNode)) {
+            return null;
+        }
+        // Only the integers between start and end matter, so we can replace 'end' by the last integer we reach.
+        final boolean isIncreasing = step.sign().compareTo(IntegerNode.ZERO) > 0;
+        IntegerNode last = end.integerPart();
+        if (isIncreasing && CalculatorFunctions.cmp(last, end) > 0) {
+            last = (IntegerNode) last.subtract(IntegerNode.ONE);
+        } else if (!isIncreasing && CalculatorFunctions.cmp(last, end) < 0) {
+            last = last.increment();
+        }
+        final int direction = last.compareTo(start);
+        if (direction != 0 && (direction > 0) != isIncreasing) {
+            return new RangeNode(start, step, 0);
+        }
+        // (last - start) has the same sign as step, so truncating division is what we want.
+        final BigInteger count = last.big().subtract(start.big()).divide(step.big()).add(BigInteger.ONE);
+        if (count.bitLength() > 31) {
+            throw new CalculatorError("range has too many elements");
+        }
+        return new RangeNode(start, step, count.intValue());
+    }
+
+    IntegerNode step() {
+        return step;
+    }
+
+    @Override public Node get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("element " + index + " of " + size);
+        }
+        return start.plus(step.times(IntegerNode.valueOf(index)));
+    }
+
+    @Override public int size() {
+        return size;
+    }
+
+    @Override public Iterator<Node> iterator() {
+        return new ElementIterator() {
+            private int i = 0;
+            private NumberNode next = start;
+
+            public boolean hasNext() {
+                return i < size;
+            }
+
+            public Node next() {
+                if (i >= size) {
+                    throw new NoSuchElementException();
+                }
+                final NumberNode result = next;
+                next = next.plus(step);
+                ++i;
+                return result;
+            }
+        };
+    }
+
+    @Override public ListNode reverse() {
+        if (size == 0) {
+            return this;
+        }
+        return new RangeNode((IntegerNode) get(size - 1), (IntegerNode) IntegerNode.ZERO.subtract(step), size);
+    }
+
+    /**
+     * Returns the sum of the elements, size*start + step*size*(size-1)/2.
+     */
+    public IntegerNode total() {
+        // size is an int, so size*(size-1)/2 can't overflow a long.
+        final long n = size;
+        final IntegerNode triangle = IntegerNode.valueOf(n * (n - 1) / 2);
+        return (IntegerNode) start.times(IntegerNode.valueOf(n)).plus(step.times(triangle));
+    }
+
+    @Override public Node evaluate(Calculator environment) {
+        return this;
+    }
+
+    @Override public Node simplify(Calculator environment) {
+        return this;
+    }
+}
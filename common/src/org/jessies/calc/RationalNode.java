@@ -30,7 +30,8 @@ public class RationalNode implements Comparable<RationalNode>, NumberNode {
             // FIXME: we can cope with this if we fiddle the signs; but should we?
             throw new RuntimeException("Internal error: trying to create rational with negative denominator");
         }
-        if (p.isBig() || q.isBig()) {
+        // Long.MIN_VALUE has no fixnum absolute value, so it has to go the slow way.
+        if (p.isBig() || q.isBig() || p.fix() == Long.MIN_VALUE || q.fix() == Long.MIN_VALUE) {
             final BigInteger bigP = p.big();
             final BigInteger bigQ = q.big();
             final BigInteger bigGcd = bigP.abs().gcd(bigQ.abs());
@@ -39,7 +40,7 @@ public class RationalNode implements Comparable<RationalNode>, NumberNode {
         } else {
             final long fixP = p.fix();
             final long fixQ = q.fix();
-            final long fixGcd = gcd(Math.abs(fixP), Math.abs(fixQ));
+            final long fixGcd = NumberTheory.gcd(Math.abs(fixP), Math.abs(fixQ));
             this.p = IntegerNode.valueOf(fixP/fixGcd);
             this.q = IntegerNode.valueOf(Math.abs(fixQ)/fixGcd);
         }
@@ -53,20 +54,6 @@ public class RationalNode implements Comparable<RationalNode>, NumberNode {
         }
     }
     
-    static long gcd(long a, long b) {
-        if (a == 0) {
-            return b;
-        }
-        while (b != 0) {
-            if (a > b) {
-                a = a - b;
-            } else {
-                b = b - a;
-            }
-        }
-        return a;
-    }
-    
     @Override public boolean equals(Object other) {
         if (this == other) {
             return true;
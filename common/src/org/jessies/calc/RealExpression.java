@@ -0,0 +1,254 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.*;
+
+/**
+ * An expression evaluated entirely in machine-precision real arithmetic, on raw doubles.
+ * Evaluation allocates nothing, which makes a big difference when plotting or summing.
+ * See CompiledExpression for how these are created.
+ */
+abstract class RealExpression {
+    /**
+     * Implemented by functions of one argument whose result for a real argument is a real.
+     * The result must be the double value of what the function's apply would return.
+     */
+    interface UnaryFunction {
+        public double applyReal(Calculator environment, double x);
+    }
+
+    /**
+     * Implemented by functions of two arguments whose result for real arguments is a real.
+     * The result must be the double value of what the function's apply would return.
+     */
+    interface BinaryFunction {
+        public double applyReal(Calculator environment, double x, double y);
+    }
+
+    abstract double evaluate(Calculator environment, double[] values);
+
+    // Returns the equivalent of this expression whose subexpressions are steps of the given program.
+    // Leaves are cheap enough to evaluate where they're used, so they return themselves.
+    RealExpression share(Program program) {
+        return this;
+    }
+
+    /**
+     * Several expressions evaluated together, such as the curves of a plot, with each distinct subexpression
+     * evaluated only once. Plot([Sin(x)^2, Cos(x)*Sin(x)], x, 0, 1) only evaluates Sin(x) once per x, say.
+     *
+     * Each step stores its result in the values array after the parameters, where the steps after it read it
+     * as if it were a parameter. So callers need an array of valueCount values, with the parameters first.
+     */
+    static class Program {
+        private final int parameterCount;
+        private final ArrayList<RealExpression> steps = new ArrayList<RealExpression>();
+        private final HashMap<RealExpression, RealExpression> slots = new HashMap<RealExpression, RealExpression>();
+        private final RealExpression[] outputs;
+
+        Program(int parameterCount, RealExpression... expressions) {
+            this.parameterCount = parameterCount;
+            this.outputs = new RealExpression[expressions.length];
+            for (int i = 0; i < expressions.length; ++i) {
+                outputs[i] = expressions[i].share(this);
+            }
+        }
+
+        // Returns a reference to the step computing the given expression, whose arguments have already been shared.
+        private RealExpression step(RealExpression expression) {
+            RealExpression slot = slots.get(expression);
+            if (slot == null) {
+                slot = new Slot(parameterCount + steps.size());
+                steps.add(expression);
+                slots.put(expression, slot);
+            }
+            return slot;
+        }
+
+        int valueCount() {
+            return parameterCount + steps.size();
+        }
+
+        int outputCount() {
+            return outputs.length;
+        }
+
+        /**
+         * Evaluates every step, given the parameters at the start of 'values'.
+         */
+        void evaluate(Calculator environment, double[] values) {
+            for (int i = 0; i < steps.size(); ++i) {
+                values[parameterCount + i] = steps.get(i).evaluate(environment, values);
+            }
+        }
+
+        /**
+         * Returns the value of the i'th expression. Only valid after evaluate.
+         */
+        double output(Calculator environment, double[] values, int i) {
+            return outputs[i].evaluate(environment, values);
+        }
+    }
+
+    static class Constant extends RealExpression {
+        private final double value;
+
+        Constant(double value) {
+            this.value = value;
+        }
+
+        double evaluate(Calculator environment, double[] values) {
+            return value;
+        }
+
+        @Override public boolean equals(Object other) {
+            return (other instanceof Constant) && Double.doubleToLongBits(value) == Double.doubleToLongBits(((Constant) other).value);
+        }
+
+        @Override public int hashCode() {
+            return Double.valueOf(value).hashCode();
+        }
+    }
+
+    static class Slot extends RealExpression {
+        private final int slot;
+
+        Slot(int slot) {
+            this.slot = slot;
+        }
+
+        double evaluate(Calculator environment, double[] values) {
+            return values[slot];
+        }
+
+        @Override public boolean equals(Object other) {
+            return (other instanceof Slot) && slot == ((Slot) other).slot;
+        }
+
+        @Override public int hashCode() {
+            return slot;
+        }
+    }
+
+    // A variable that isn't a parameter, such as a constant or a user-defined variable.
+    static class Variable extends RealExpression {
+        private final Calculator.Variable variable;
+        // We only convert the variable's value to a double when the value changes.
+        private volatile Conversion conversion;
+
+        private static class Conversion {
+            final Node value;
+            final double doubleValue;
+
+            Conversion(Node value) {
+                this.value = value;
+                this.doubleValue = ((NumberNode) value).toReal().doubleValue();
+            }
+        }
+
+        Variable(Calculator.Variable variable) {
+            this.variable = variable;
+            this.conversion = new Conversion(variable.value);
+        }
+
+        double evaluate(Calculator environment, double[] values) {
+            Conversion c = conversion;
+            final Node value = variable.value;
+            if (c.value != value) {
+                if (!(value instanceof NumberNode)) {
+                    throw new CalculatorError("variable '" + variable.name + "' is no longer a number");
+                }
+                c = conversion = new Conversion(value);
+            }
+            return c.doubleValue;
+        }
+
+        @Override public boolean equals(Object other) {
+            return (other instanceof Variable) && variable == ((Variable) other).variable;
+        }
+
+        @Override public int hashCode() {
+            return System.identityHashCode(variable);
+        }
+    }
+
+    static class Unary extends RealExpression {
+        private final UnaryFunction function;
+        private final RealExpression arg;
+
+        Unary(UnaryFunction function, RealExpression arg) {
+            this.function = function;
+            this.arg = arg;
+        }
+
+        double evaluate(Calculator environment, double[] values) {
+            return function.applyReal(environment, arg.evaluate(environment, values));
+        }
+
+        @Override RealExpression share(Program program) {
+            return program.step(new Unary(function, arg.share(program)));
+        }
+
+        // Functions only differ in their arguments, so any two Sin nodes (say) compute the same thing.
+        @Override public boolean equals(Object other) {
+            if (!(other instanceof Unary)) {
+                return false;
+            }
+            final Unary rhs = (Unary) other;
+            return function.getClass() == rhs.function.getClass() && arg.equals(rhs.arg);
+        }
+
+        @Override public int hashCode() {
+            return function.getClass().hashCode() * 31 + arg.hashCode();
+        }
+    }
+
+    static class Binary extends RealExpression {
+        private final BinaryFunction function;
+        private final RealExpression lhs;
+        private final RealExpression rhs;
+
+        Binary(BinaryFunction function, RealExpression lhs, RealExpression rhs) {
+            this.function = function;
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        double evaluate(Calculator environment, double[] values) {
+            return function.applyReal(environment, lhs.evaluate(environment, values), rhs.evaluate(environment, values));
+        }
+
+        @Override RealExpression share(Program program) {
+            return program.step(new Binary(function, lhs.share(program), rhs.share(program)));
+        }
+
+        @Override public boolean equals(Object other) {
+            if (!(other instanceof Binary)) {
+                return false;
+            }
+            final Binary that = (Binary) other;
+            return function.getClass() == that.function.getClass() && lhs.equals(that.lhs) && rhs.equals(that.rhs);
+        }
+
+        @Override public int hashCode() {
+            return (function.getClass().hashCode() * 31 + lhs.hashCode()) * 31 + rhs.hashCode();
+        }
+    }
+}
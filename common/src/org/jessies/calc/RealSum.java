@@ -0,0 +1,98 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Accumulates a sum of doubles, using the calculator's choice of summation algorithm.
+ *
+ * Compensated summation is Neumaier's improvement of Kahan's: alongside the sum, we keep the low-order bits that each
+ * addition rounded away, and add them back at the end. The error is then independent of the number of terms, for
+ * about four times the work of a plain sum.
+ *
+ * Pairwise summation adds blocks of terms plainly, and then adds the blocks' sums in a balanced binary tree, so each
+ * term only takes part in about log2(n) roundings. We don't know n in advance, so the tree is built like a binary
+ * counter: partials[k] holds the sum of 2^k blocks whenever bit k of the number of completed blocks is set.
+ */
+final class RealSum {
+    // Small enough for the plain sum of a block to be accurate, large enough that the tree costs almost nothing.
+    private static final int BLOCK_SIZE = 128;
+
+    private final Calculator.Summation summation;
+    private double sum = 0;
+    private double compensation = 0;
+
+    // Only used for pairwise summation.
+    private int blockCount = 0;
+    private long completedBlockCount = 0;
+    private double[] partials;
+
+    RealSum(Calculator.Summation summation) {
+        this.summation = summation;
+        if (summation == Calculator.Summation.PAIRWISE) {
+            this.partials = new double[64];
+        }
+    }
+
+    void add(double x) {
+        if (summation == Calculator.Summation.PLAIN) {
+            sum += x;
+        } else if (summation == Calculator.Summation.PAIRWISE) {
+            sum += x;
+            if (++blockCount == BLOCK_SIZE) {
+                completeBlock();
+            }
+        } else {
+            final double t = sum + x;
+            if (Math.abs(sum) >= Math.abs(x)) {
+                compensation += (sum - t) + x;
+            } else {
+                compensation += (x - t) + sum;
+            }
+            sum = t;
+        }
+    }
+
+    // Carries the current block up the tree, merging it with every partial sum of the same size.
+    private void completeBlock() {
+        double carry = sum;
+        int level = 0;
+        for (long n = completedBlockCount; (n & 1) != 0; n >>>= 1) {
+            carry = partials[level++] + carry;
+        }
+        partials[level] = carry;
+        ++completedBlockCount;
+        sum = 0;
+        blockCount = 0;
+    }
+
+    double doubleValue() {
+        if (summation == Calculator.Summation.PAIRWISE) {
+            // The partial sums get bigger as we go up, so start at the bottom.
+            double result = sum;
+            int level = 0;
+            for (long n = completedBlockCount; n != 0; n >>>= 1, ++level) {
+                if ((n & 1) != 0) {
+                    result += partials[level];
+                }
+            }
+            return result;
+        }
+        return sum + compensation;
+    }
+}
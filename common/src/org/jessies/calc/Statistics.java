@@ -0,0 +1,391 @@
+package org.jessies.calc;
+
+/*
+ * This file is part of org.jessies.calc.
+ * Copyright (C) 2011 Elliott Hughes <enh@jessies.org>.
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.*;
+
+/**
+ * Descriptive statistics of lists of numbers.
+ *
+ * If any element is a machine-precision real, we work in doubles: the mean is a (possibly compensated) sum, and the
+ * variance uses Welford's updates, which don't suffer from the cancellation of the textbook formula. Otherwise we
+ * use exact sums, and only the final division rounds. Either way, we make one pass over the list, reading packed
+ * lists directly. Ranges have closed forms, and are already sorted.
+ *
+ * Medians and quantiles need a copy they can reorder, in which we find each order statistic by quickselect.
+ */
+final class Statistics {
+    private Statistics() {
+    }
+
+    static NumberNode mean(Calculator environment, String function, ListNode list) {
+        final int n = checkNonEmpty(function, list, 1);
+        if (list instanceof RangeNode) {
+            final NumberNode ends = ((NumberNode) list.get(0)).plus((NumberNode) list.get(n - 1));
+            return CalculatorFunctions.divide(environment, ends, IntegerNode.valueOf(2));
+        }
+        if (isInexact(function, list)) {
+            final RealSum sum = new RealSum(environment.getSummation());
+            final double[] doubles = list.packedDoubles();
+            for (int i = 0; i < n; ++i) {
+                sum.add((doubles != null) ? doubles[i] : ((NumberNode) list.get(i)).toReal().doubleValue());
+            }
+            return new RealNode(sum.doubleValue() / n);
+        }
+        return CalculatorFunctions.divide(environment, exactTotal(list), IntegerNode.valueOf(n));
+    }
+
+    /**
+     * Returns the sample variance, sum((x - mean)^2)/(n - 1).
+     */
+    static NumberNode variance(Calculator environment, String function, ListNode list) {
+        final int n = checkNonEmpty(function, list, 2);
+        if (list instanceof RangeNode) {
+            // For an arithmetic sequence, the variance is step^2*n*(n+1)/12.
+            final IntegerNode step = ((RangeNode) list).step();
+            final NumberNode numerator = step.times(step).times(IntegerNode.valueOf((long) n * (n + 1)));
+            return CalculatorFunctions.divide(environment, numerator, IntegerNode.valueOf(12));
+        }
+        if (isInexact(function, list)) {
+            // Welford: after k elements, 'mean' is their mean, and 'm2' the sum of their squared differences from it.
+            final RealSum m2 = new RealSum(environment.getSummation());
+            final double[] doubles = list.packedDoubles();
+            double mean = 0;
+            for (int i = 0; i < n; ++i) {
+                final double x = (doubles != null) ? doubles[i] : ((NumberNode) list.get(i)).toReal().doubleValue();
+                final double delta = x - mean;
+                mean += delta / (i + 1);
+                m2.add(delta * (x - mean));
+            }
+            return new RealNode(m2.doubleValue() / (n - 1));
+        }
+        // (n*sum(x^2) - sum(x)^2)/(n*(n - 1)) is exact here, so there's no cancellation to worry about.
+        NumberNode sum = IntegerNode.ZERO;
+        NumberNode sumOfSquares = IntegerNode.ZERO;
+        for (int i = 0; i < n; ++i) {
+            final NumberNode x = (NumberNode) list.get(i);
+            sum = sum.plus(x);
+            sumOfSquares = sumOfSquares.plus(x.times(x));
+        }
+        final IntegerNode count = IntegerNode.valueOf(n);
+        final NumberNode numerator = count.times(sumOfSquares).subtract(sum.times(sum));
+        return CalculatorFunctions.divide(environment, numerator, IntegerNode.valueOf((long) n * (n - 1)));
+    }
+
+    static NumberNode median(Calculator environment, String function, ListNode list) {
+        final int n = checkNonEmpty(function, list, 1);
+        final Selector selector = selector(function, list);
+        if ((n & 1) == 1) {
+            return selector.select(n / 2);
+        }
+        // With an even number of elements, the median is the mean of the middle two.
+        final NumberNode lower = selector.select(n / 2 - 1);
+        final NumberNode upper = selector.select(n / 2);
+        return CalculatorFunctions.divide(environment, lower.plus(upper), IntegerNode.valueOf(2));
+    }
+
+    /**
+     * Returns the q'th quantile: the element at position ceil(n*q) (counting from 1) in sorted order, or the least
+     * element if q is 0. 'qs' may be a single number, or a list of them, in which case we return a list.
+     */
+    static Node quantile(String function, ListNode list, Node qs) {
+        final int n = checkNonEmpty(function, list, 1);
+        final Selector selector = selector(function, list);
+        if (!(qs instanceof ListNode)) {
+            return selector.select(quantileIndex(function, n, qs));
+        }
+        final ListNode qList = (ListNode) qs;
+        final ListNode.Builder result = new ListNode.Builder(qList.size());
+        for (int i = 0; i < qList.size(); ++i) {
+            result.add(selector.select(quantileIndex(function, n, qList.get(i))));
+        }
+        return result.build();
+    }
+
+    // Returns the zero-based index in sorted order of the q'th quantile of n elements.
+    private static int quantileIndex(String function, int n, Node node) {
+        if (!(node instanceof NumberNode)) {
+            throw CalculatorFunction.expected(function, "numeric quantile");
+        }
+        final NumberNode q = (NumberNode) node;
+        if (CalculatorFunctions.cmp(q, IntegerNode.ZERO) < 0 || CalculatorFunctions.cmp(q, IntegerNode.ONE) > 0) {
+            throw new CalculatorError("'" + function + "' requires quantiles between 0 and 1");
+        }
+        // ceil(n*q), computed without rounding unless q is itself inexact.
+        final NumberNode position = IntegerNode.valueOf(n).times(q);
+        IntegerNode index = position.integerPart();
+        if (CalculatorFunctions.cmp(index, position) < 0) {
+            index = index.increment();
+        }
+        return Math.max(index.intValue(), 1) - 1;
+    }
+
+    /**
+     * Returns a list of [lowerBound, count] pairs, counting the elements in each of 'binCount' bins of equal width
+     * between the least and greatest elements. The greatest element goes in the last bin.
+     */
+    static ListNode histogram(String function, ListNode list, int binCount) {
+        final int n = checkNonEmpty(function, list, 1);
+        if (binCount < 1) {
+            throw new CalculatorError("'" + function + "' requires a positive number of bins");
+        }
+        final double[] doubles = list.packedDoubles();
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        if (list instanceof RangeNode) {
+            final double first = ((NumberNode) list.get(0)).toReal().doubleValue();
+            final double last = ((NumberNode) list.get(n - 1)).toReal().doubleValue();
+            min = Math.min(first, last);
+            max = Math.max(first, last);
+        } else {
+            for (int i = 0; i < n; ++i) {
+                final double x = (doubles != null) ? doubles[i] : toDouble(function, list.get(i));
+                min = Math.min(min, x);
+                max = Math.max(max, x);
+            }
+        }
+        final double width = (max - min) / binCount;
+        final long[] counts = new long[binCount];
+        for (int i = 0; i < n; ++i) {
+            final double x = (doubles != null) ? doubles[i] : toDouble(function, list.get(i));
+            final int bin = (width > 0) ? (int) ((x - min) / width) : 0;
+            ++counts[Math.min(bin, binCount - 1)];
+        }
+        final ListNode.Builder result = new ListNode.Builder(binCount);
+        for (int i = 0; i < binCount; ++i) {
+            result.add(new ListNode.Builder(2).add(new RealNode(min + i * width)).add(IntegerNode.valueOf(counts[i])).build());
+        }
+        return result.build();
+    }
+
+    /**
+     * Returns Sturges' choice of the number of bins for 'list', ceil(log2(n)) + 1.
+     */
+    static int defaultBinCount(ListNode list) {
+        final int n = list.size();
+        return (n <= 1) ? 1 : 33 - Integer.numberOfLeadingZeros(n - 1);
+    }
+
+    private static int checkNonEmpty(String function, ListNode list, int minSize) {
+        final int n = list.size();
+        if (n < minSize) {
+            throw new CalculatorError("'" + function + "' requires a list of at least " + minSize + " element" + (minSize == 1 ? "" : "s"));
+        }
+        return n;
+    }
+
+    private static double toDouble(String function, Node node) {
+        if (!(node instanceof NumberNode)) {
+            throw CalculatorFunction.expected(function, "numeric list");
+        }
+        return ((NumberNode) node).toReal().doubleValue();
+    }
+
+    // Tests whether any element of 'list' is a machine-precision real, throwing if any element isn't a number.
+    private static boolean isInexact(String function, ListNode list) {
+        if (list.packedDoubles() != null) {
+            return true;
+        } else if (list.packedLongs() != null || list instanceof RangeNode) {
+            return false;
+        }
+        boolean result = false;
+        for (int i = 0, n = list.size(); i < n; ++i) {
+            final Node node = list.get(i);
+            if (!(node instanceof NumberNode)) {
+                throw CalculatorFunction.expected(function, "numeric list");
+            }
+            result = result || (node instanceof RealNode);
+        }
+        return result;
+    }
+
+    private static NumberNode exactTotal(ListNode list) {
+        NumberNode result = IntegerNode.ZERO;
+        for (int i = 0, n = list.size(); i < n; ++i) {
+            result = result.plus((NumberNode) list.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Finds the k'th smallest element (counting from 0) of a list.
+     * Each call leaves the copy partially ordered, so later calls on the same selector have less to do.
+     */
+    private abstract static class Selector {
+        abstract NumberNode select(int k);
+    }
+
+    private static Selector selector(String function, final ListNode list) {
+        if (list instanceof RangeNode) {
+            // A range is already in order, one way or the other.
+            final int n = list.size();
+            final boolean isIncreasing = ((RangeNode) list).step().sign().compareTo(IntegerNode.ZERO) > 0;
+            return new Selector() {
+                NumberNode select(int k) {
+                    return (NumberNode) list.get(isIncreasing ? k : n - 1 - k);
+                }
+            };
+        }
+        final int n = list.size();
+        final long[] packedLongs = list.packedLongs();
+        if (packedLongs != null) {
+            final long[] longs = Arrays.copyOf(packedLongs, n);
+            return new Selector() {
+                NumberNode select(int k) {
+                    return IntegerNode.valueOf(selectLong(longs, k));
+                }
+            };
+        }
+        if (isInexact(function, list)) {
+            final double[] packedDoubles = list.packedDoubles();
+            final double[] doubles = (packedDoubles != null) ? Arrays.copyOf(packedDoubles, n) : new double[n];
+            if (packedDoubles == null) {
+                for (int i = 0; i < n; ++i) {
+                    doubles[i] = ((NumberNode) list.get(i)).toReal().doubleValue();
+                }
+            }
+            return new Selector() {
+                NumberNode select(int k) {
+                    return new RealNode(selectDouble(doubles, k));
+                }
+            };
+        }
+        final NumberNode[] numbers = new NumberNode[n];
+        for (int i = 0; i < n; ++i) {
+            numbers[i] = (NumberNode) list.get(i);
+        }
+        return new Selector() {
+            NumberNode select(int k) {
+                return selectNumber(numbers, k);
+            }
+        };
+    }
+
+    // Hoare's quickselect, with the median of the first, middle, and last elements as the pivot.
+    // The three versions differ only in the type of the elements and how they're compared.
+
+    private static long selectLong(long[] a, int k) {
+        int lo = 0;
+        int hi = a.length - 1;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            final long pivot = Math.max(Math.min(a[lo], a[mid]), Math.min(Math.max(a[lo], a[mid]), a[hi]));
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (a[i] < pivot) {
+                    ++i;
+                }
+                while (a[j] > pivot) {
+                    --j;
+                }
+                if (i <= j) {
+                    final long tmp = a[i];
+                    a[i++] = a[j];
+                    a[j--] = tmp;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                break;
+            }
+        }
+        return a[k];
+    }
+
+    private static double selectDouble(double[] a, int k) {
+        int lo = 0;
+        int hi = a.length - 1;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            final double pivot = Math.max(Math.min(a[lo], a[mid]), Math.min(Math.max(a[lo], a[mid]), a[hi]));
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (a[i] < pivot) {
+                    ++i;
+                }
+                while (a[j] > pivot) {
+                    --j;
+                }
+                if (i <= j) {
+                    final double tmp = a[i];
+                    a[i++] = a[j];
+                    a[j--] = tmp;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                break;
+            }
+        }
+        return a[k];
+    }
+
+    private static NumberNode selectNumber(NumberNode[] a, int k) {
+        int lo = 0;
+        int hi = a.length - 1;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            final NumberNode pivot = medianOfThree(a[lo], a[mid], a[hi]);
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (CalculatorFunctions.cmp(a[i], pivot) < 0) {
+                    ++i;
+                }
+                while (CalculatorFunctions.cmp(a[j], pivot) > 0) {
+                    --j;
+                }
+                if (i <= j) {
+                    final NumberNode tmp = a[i];
+                    a[i++] = a[j];
+                    a[j--] = tmp;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                break;
+            }
+        }
+        return a[k];
+    }
+
+    private static NumberNode medianOfThree(NumberNode a, NumberNode b, NumberNode c) {
+        if (CalculatorFunctions.cmp(a, b) > 0) {
+            final NumberNode tmp = a;
+            a = b;
+            b = tmp;
+        }
+        // Now a <= b, so the median is b unless c is less than b, in which case it's the greater of a and c.
+        if (CalculatorFunctions.cmp(c, b) >= 0) {
+            return b;
+        }
+        return CalculatorFunctions.cmp(a, c) >= 0 ? a : c;
+    }
+}
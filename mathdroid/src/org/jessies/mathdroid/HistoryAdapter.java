@@ -3,32 +3,114 @@ package org.jessies.mathdroid;
 import android.content.*;
 import android.view.*;
 import android.widget.*;
+import java.io.*;
 import java.util.*;
 import org.jessies.calc.*;
 
 /**
  * A simple ListAdapter for the ListView that shows the history transcript.
+ *
+ * Once open has been called, every change is appended to a HistoryLog as it happens. Items are only read back from
+ * the log when the ListView asks for them, a page at a time, so a long history doesn't slow startup.
  */
 public class HistoryAdapter extends BaseAdapter {
+    // How many items we read from the log at once.
+    private static final int PAGE_SIZE = 50;
+
     private final Context mContext;
+    // The items, with null for any we haven't read from the log yet.
     private final ArrayList<HistoryItem> mItems;
+    private HistoryLog mLog;
 
     public HistoryAdapter(Context context) {
         mContext = context;
         mItems = new ArrayList<HistoryItem>();
     }
 
+    /**
+     * Shows the history in the given log (creating it if necessary), and logs all changes from now on.
+     * Only the most recent items are read now.
+     */
+    public void open(File logFile) throws IOException {
+        mLog = new HistoryLog(logFile);
+        mItems.clear();
+        mItems.ensureCapacity(mLog.size());
+        for (int i = 0; i < mLog.size(); ++i) {
+            mItems.add(null);
+        }
+        if (mItems.size() > 0) {
+            // The transcript starts scrolled to the end.
+            loadPage(mItems.size() - 1);
+        }
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Makes sure all changes are on disk, and compacts the log if it's mostly dead records.
+     */
+    public void save() {
+        if (mLog == null) {
+            return;
+        }
+        try {
+            mLog.sync();
+            mLog.compactIfNeeded();
+        } catch (IOException ex) {
+            stopLogging(ex);
+        }
+    }
+
+    /**
+     * Tests whether changes are being saved to the log. That stops if the log couldn't be opened or written.
+     */
+    public boolean isLogging() {
+        return mLog != null;
+    }
+
+    public void close() {
+        if (mLog == null) {
+            return;
+        }
+        try {
+            mLog.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        mLog = null;
+    }
+
     public void add(HistoryItem item) {
+        if (mLog != null) {
+            try {
+                mLog.add(item);
+            } catch (IOException ex) {
+                stopLogging(ex);
+            }
+        }
         mItems.add(item);
         notifyDataSetChanged();
     }
 
     public void remove(int index) {
+        if (mLog != null) {
+            try {
+                mLog.remove(index);
+            } catch (IOException ex) {
+                stopLogging(ex);
+            }
+        }
         mItems.remove(index);
         notifyDataSetChanged();
     }
 
     public void clear() {
+        if (mLog != null) {
+            try {
+                mLog.clear();
+            } catch (IOException ex) {
+                stopLogging(ex);
+            }
+        }
         mItems.clear();
         notifyDataSetChanged();
     }
@@ -38,20 +120,54 @@ public class HistoryAdapter extends BaseAdapter {
     }
 
     public HistoryItem getItem(int index) {
+        if (mItems.get(index) == null) {
+            loadPage(index);
+        }
         return mItems.get(index);
     }
 
+    // Reads the page of items ending at 'index' from the log. Pages end rather than start there because the user
+    // scrolls back from the most recent items.
+    private void loadPage(int index) {
+        for (int i = Math.max(0, index - PAGE_SIZE + 1); i <= index; ++i) {
+            if (mItems.get(i) == null) {
+                mItems.set(i, readItem(i));
+            }
+        }
+    }
+
+    private HistoryItem readItem(int index) {
+        try {
+            return mLog.get(index);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return new HistoryItem("", new StringNode("Error: " + ex.getMessage()));
+        }
+    }
+
+    // Gives up on the log after a failed write, so it can't disagree with what we show. We read everything it
+    // has first, so the user doesn't lose anything until they quit.
+    private void stopLogging(IOException ex) {
+        ex.printStackTrace();
+        for (int i = 0; i < mItems.size(); ++i) {
+            if (mItems.get(i) == null) {
+                mItems.set(i, readItem(i));
+            }
+        }
+        close();
+    }
+
     public long getItemId(int index) {
         return index;
     }
 
     public View getView(int index, View convertView, ViewGroup parent) {
         if (convertView == null) {
-            return new HistoryItemView(mContext, mItems.get(index));
+            return new HistoryItemView(mContext, getItem(index));
         }
 
         HistoryItemView historyView = (HistoryItemView) convertView;
-        historyView.setItem(mItems.get(index));
+        historyView.setItem(getItem(index));
         return historyView;
     }
 
@@ -65,10 +181,11 @@ public class HistoryAdapter extends BaseAdapter {
         }
     }
 
-    // Used both as the serialized form when we save the current state and as what "copy all" copies to the clipboard.
+    // What "copy all" copies to the clipboard. Old versions also saved the history this way; see fromString.
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        for (HistoryItem item : mItems) {
+        for (int i = 0; i < mItems.size(); ++i) {
+            final HistoryItem item = getItem(i);
             sb.append(item.question);
             sb.append("\n = ");
             sb.append(item.answer);
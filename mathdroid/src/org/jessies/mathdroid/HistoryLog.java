@@ -0,0 +1,291 @@
+package org.jessies.mathdroid;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import org.jessies.calc.*;
+
+/**
+ * The history, saved as an append-only log of changes, so that saving only writes what's new.
+ *
+ * The log is a header (a magic number and the version), followed by records. Each record is its length, a type, and
+ * the type's data: an ADD has the item's question and answer as UTF-8, each preceded by its length; a REMOVE has
+ * the index of the item removed; a CLEAR has nothing. All the ints are little-endian.
+ *
+ * Opening a log reads through it once, skipping over the items, to find where each surviving item is. Items are
+ * only decoded when asked for, so a long history doesn't slow startup. Records that no longer matter (REMOVEs, CLEARs, and
+ * the ADDs they undid) are dropped when we compact the log, which copies the surviving ADDs to a new file.
+ *
+ * If we crash while appending, the last record may be incomplete. We drop it when we next open the log.
+ */
+final class HistoryLog {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // "MDHL" when read as bytes.
+    private static final int MAGIC = 0x4c48444d;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 2 * 4;
+
+    // Record types.
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    private static final byte CLEAR = 3;
+
+    // The length and the type.
+    private static final int RECORD_HEADER_SIZE = 4 + 1;
+
+    // We compact once there are more dead records than this, and more than there are items.
+    private static final int MIN_DEAD_RECORDS_TO_COMPACT = 128;
+
+    private final File file;
+    private RandomAccessFile raf;
+    // Where the log ends; anything after is an incomplete record.
+    private long end;
+
+    // The offset of each item's ADD record.
+    private long[] offsets = new long[16];
+    private int count = 0;
+
+    private int deadRecordCount = 0;
+
+    /**
+     * Opens the given log, creating it if necessary.
+     */
+    HistoryLog(File file) throws IOException {
+        this.file = file;
+        open();
+    }
+
+    private void open() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        count = 0;
+        deadRecordCount = 0;
+        final long length = raf.length();
+        if (length < HEADER_SIZE) {
+            final ByteBuffer header = newBuffer(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            raf.setLength(0);
+            raf.write(header.array());
+            end = HEADER_SIZE;
+            return;
+        }
+        final ByteBuffer header = read(0, HEADER_SIZE);
+        if (header.getInt() != MAGIC) {
+            throw new IOException(file + " isn't a Mathdroid history log");
+        }
+        final int version = header.getInt();
+        if (version != VERSION) {
+            throw new IOException(file + " has unknown version " + version);
+        }
+
+        // Find the surviving items, reading the log in one pass but skipping over the items themselves.
+        final InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+        long offset = HEADER_SIZE;
+        try {
+            skipFully(in, HEADER_SIZE);
+            final ByteBuffer recordHeader = newBuffer(RECORD_HEADER_SIZE + 4);
+            while (offset + RECORD_HEADER_SIZE <= length) {
+                recordHeader.clear();
+                readFully(in, recordHeader.array(), RECORD_HEADER_SIZE);
+                final int recordLength = recordHeader.getInt();
+                final byte type = recordHeader.get();
+                if (recordLength < 1 || offset + 4 + recordLength > length) {
+                    break;
+                }
+                if (type == ADD) {
+                    addOffset(offset);
+                    skipFully(in, recordLength - 1);
+                } else if (type == REMOVE) {
+                    readFully(in, recordHeader.array(), 4);
+                    recordHeader.position(0);
+                    removeOffset(recordHeader.getInt());
+                    deadRecordCount += 2;
+                } else if (type == CLEAR) {
+                    deadRecordCount += count + 1;
+                    count = 0;
+                } else {
+                    throw new IOException(file + " has unknown record type " + type + " at " + offset);
+                }
+                offset += 4 + recordLength;
+            }
+        } finally {
+            in.close();
+        }
+        end = offset;
+        if (end < length) {
+            // Lose the incomplete record, so what we append next isn't followed by the rest of it.
+            raf.setLength(end);
+        }
+    }
+
+    /**
+     * Returns the number of items.
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Reads the item at the given index.
+     */
+    HistoryItem get(int index) throws IOException {
+        final long offset = offsets[index];
+        final int recordLength = read(offset, 4).getInt();
+        final ByteBuffer record = read(offset + RECORD_HEADER_SIZE, recordLength - 1);
+        final String question = getString(record);
+        final String answer = getString(record);
+        return new HistoryItem(question, new StringNode(answer));
+    }
+
+    /**
+     * Appends an item.
+     */
+    void add(HistoryItem item) throws IOException {
+        final byte[] question = item.question.getBytes(UTF_8);
+        final byte[] answer = item.answer.toString().getBytes(UTF_8);
+        final ByteBuffer record = newRecord(ADD, 4 + question.length + 4 + answer.length);
+        record.putInt(question.length);
+        record.put(question);
+        record.putInt(answer.length);
+        record.put(answer);
+        addOffset(append(record));
+    }
+
+    /**
+     * Removes the item at the given index.
+     */
+    void remove(int index) throws IOException {
+        final ByteBuffer record = newRecord(REMOVE, 4);
+        record.putInt(index);
+        append(record);
+        removeOffset(index);
+        deadRecordCount += 2;
+    }
+
+    /**
+     * Removes all the items.
+     */
+    void clear() throws IOException {
+        append(newRecord(CLEAR, 0));
+        deadRecordCount += count + 1;
+        count = 0;
+    }
+
+    /**
+     * Makes sure everything appended so far is on disk.
+     */
+    void sync() throws IOException {
+        raf.getFD().sync();
+    }
+
+    /**
+     * Rewrites the log without its dead records, if there are enough of them to be worth it.
+     */
+    void compactIfNeeded() throws IOException {
+        if (deadRecordCount <= MIN_DEAD_RECORDS_TO_COMPACT || deadRecordCount <= count) {
+            return;
+        }
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        final RandomAccessFile out = new RandomAccessFile(tmpFile, "rw");
+        try {
+            out.setLength(0);
+            out.write(read(0, HEADER_SIZE).array());
+            // The ADD records are copied as they are, without decoding the items.
+            for (int i = 0; i < count; ++i) {
+                final int recordLength = read(offsets[i], 4).getInt();
+                out.write(read(offsets[i], 4 + recordLength).array());
+            }
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        raf.close();
+        final boolean renamed = tmpFile.renameTo(file);
+        // If the rename failed, we carry on with the old log.
+        open();
+        if (!renamed) {
+            throw new IOException("couldn't rename " + tmpFile + " to " + file);
+        }
+    }
+
+    void close() throws IOException {
+        raf.close();
+    }
+
+    private void addOffset(long offset) {
+        if (count == offsets.length) {
+            final long[] newOffsets = new long[2 * count];
+            System.arraycopy(offsets, 0, newOffsets, 0, count);
+            offsets = newOffsets;
+        }
+        offsets[count++] = offset;
+    }
+
+    private void removeOffset(int index) throws IOException {
+        if (index < 0 || index >= count) {
+            throw new IOException(file + " removes item " + index + " of " + count);
+        }
+        System.arraycopy(offsets, index + 1, offsets, index, count - index - 1);
+        --count;
+    }
+
+    private static ByteBuffer newBuffer(int size) {
+        final ByteBuffer result = ByteBuffer.allocate(size);
+        result.order(ByteOrder.LITTLE_ENDIAN);
+        return result;
+    }
+
+    private static ByteBuffer newRecord(byte type, int dataLength) {
+        final ByteBuffer result = newBuffer(RECORD_HEADER_SIZE + dataLength);
+        result.putInt(1 + dataLength);
+        result.put(type);
+        return result;
+    }
+
+    // Writes the record at the end of the log, returning its offset.
+    private long append(ByteBuffer record) throws IOException {
+        final long offset = end;
+        raf.seek(offset);
+        raf.write(record.array());
+        end += record.capacity();
+        return offset;
+    }
+
+    // Reads 'length' bytes at the given offset.
+    private ByteBuffer read(long offset, int length) throws IOException {
+        raf.seek(offset);
+        final byte[] bytes = new byte[length];
+        raf.readFully(bytes);
+        final ByteBuffer result = ByteBuffer.wrap(bytes);
+        result.order(ByteOrder.LITTLE_ENDIAN);
+        return result;
+    }
+
+    private static void readFully(InputStream in, byte[] bytes, int length) throws IOException {
+        for (int offset = 0; offset < length; ) {
+            final int byteCount = in.read(bytes, offset, length - offset);
+            if (byteCount == -1) {
+                throw new EOFException();
+            }
+            offset += byteCount;
+        }
+    }
+
+    private static void skipFully(InputStream in, long byteCount) throws IOException {
+        while (byteCount > 0) {
+            final long skipped = in.skip(byteCount);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            byteCount -= skipped;
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        final String result = new String(buffer.array(), buffer.position(), length, UTF_8);
+        buffer.position(buffer.position() + length);
+        return result;
+    }
+}
@@ -12,6 +12,8 @@ import android.util.Log;
 import android.view.*;
 import android.view.inputmethod.*;
 import android.widget.*;
+import java.io.*;
+import java.nio.charset.*;
 import java.util.*;
 import org.jessies.calc.Calculator;
 import org.jessies.calc.CalculatorError;
@@ -34,6 +36,13 @@ public class Mathdroid extends Activity implements AdapterView.OnItemClickListen
     // Constants identifying dialogs.
     private static final int DIALOG_PLOT = 0;
 
+    // The file we save our state in. Older versions used SharedPreferences.
+    private static final String STATE_FILE = "state";
+    // The file we log the history in. Older versions kept it in the state.
+    private static final String HISTORY_FILE = "history";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     private Calculator calculator;
 
     private CalculatorPlotData plotData;
@@ -115,6 +124,13 @@ public class Mathdroid extends Activity implements AdapterView.OnItemClickListen
         transcriptView.setAdapter(history);
         transcriptView.setOnItemClickListener(this);
 
+        try {
+            history.open(getFileStreamPath(HISTORY_FILE));
+        } catch (Exception ex) {
+            // We'll still work; we just won't remember the history.
+            ex.printStackTrace();
+        }
+
         try {
             loadState();
         } catch (Exception ex) {
@@ -298,9 +314,16 @@ public class Mathdroid extends Activity implements AdapterView.OnItemClickListen
 
     @Override protected void onPause() {
         super.onPause();
+        // Save the history first, so saveState knows whether the log has it.
+        history.save();
         saveState();
     }
 
+    @Override protected void onDestroy() {
+        super.onDestroy();
+        history.close();
+    }
+
     @Override public void onResume() {
         super.onResume();
         SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
@@ -311,6 +334,12 @@ public class Mathdroid extends Activity implements AdapterView.OnItemClickListen
         String outputBase = settings.getString("outputBase", "10");
         calculator.setOutputBase(Integer.parseInt(outputBase));
 
+        String precision = settings.getString("precision", "0");
+        calculator.setPrecision(Integer.parseInt(precision));
+
+        String summation = settings.getString("summation", "PLAIN");
+        calculator.setSummation(Calculator.Summation.valueOf(summation));
+
         this.continuationMode = settings.getBoolean("continuationMode", false);
         this.hapticFeedback = settings.getBoolean("hapticFeedback", false);
 
@@ -482,7 +511,8 @@ public class Mathdroid extends Activity implements AdapterView.OnItemClickListen
             }
             if (answer == null) {
                 // Evaluate mathematical expressions.
-                answer = calculator.evaluate(query);
+                // We format the answer now, so it stays in the output base it was computed in.
+                answer = new StringNode(calculator.format(calculator.evaluate(query)));
             }
             return answer;
         } catch (CalculatorError ex) {
@@ -493,7 +523,33 @@ public class Mathdroid extends Activity implements AdapterView.OnItemClickListen
         }
     }
 
-    private void loadState() {
+    private void loadState() throws IOException {
+        final File stateFile = getFileStreamPath(STATE_FILE);
+        if (!stateFile.exists()) {
+            loadOldState();
+            return;
+        }
+        final byte[][] sections = StateFile.read(stateFile);
+
+        final EditText queryView = (EditText) findViewById(R.id.q);
+        queryView.setText(new String(sections[0], UTF_8));
+        queryView.selectAll();
+
+        if (sections[1].length > 0) {
+            plotData = CalculatorPlotData.fromByteArray(sections[1]);
+        }
+
+        if (sections.length > 2) {
+            // The log couldn't be written last time, so the history was saved here instead. That's newer than the log.
+            if (history.getCount() > 0) {
+                history.clear();
+            }
+            history.fromString(new String(sections[2], UTF_8));
+        }
+    }
+
+    // Loads the state saved as text by versions before the state file.
+    private void loadOldState() {
         final SharedPreferences state = getPreferences(MODE_PRIVATE);
         final int version = state.getInt("version", 0);
         if (version != 3) {
@@ -506,8 +562,10 @@ public class Mathdroid extends Activity implements AdapterView.OnItemClickListen
         queryView.setText(oldQuery);
         queryView.selectAll();
 
-        final String serializedHistory = state.getString("transcript", "");
-        history.fromString(serializedHistory);
+        if (history.getCount() == 0) {
+            final String serializedHistory = state.getString("transcript", "");
+            history.fromString(serializedHistory);
+        }
 
         final String serializedPlotData = state.getString("plotData", "");
         if (serializedPlotData.length() > 0) {
@@ -516,16 +574,27 @@ public class Mathdroid extends Activity implements AdapterView.OnItemClickListen
     }
 
     private void saveState() {
-        final String serializedHistory = history.toString();
-
         final EditText queryView = (EditText) findViewById(R.id.q);
 
-        final SharedPreferences.Editor state = getPreferences(MODE_PRIVATE).edit();
-        state.putInt("version", 3);
-        state.putString("query", queryView.getText().toString());
-        state.putString("transcript", serializedHistory);
-        state.putString("plotData", (plotData != null) ? plotData.toString() : "");
-        state.commit();
+        final ArrayList<byte[]> sections = new ArrayList<byte[]>();
+        sections.add(queryView.getText().toString().getBytes(UTF_8));
+        sections.add((plotData != null) ? plotData.toByteArray() : new byte[0]);
+        if (!history.isLogging()) {
+            // The history normally has its own log, but we can't lose it just because that's unavailable.
+            sections.add(history.toString().getBytes(UTF_8));
+        }
+        try {
+            StateFile.write(getFileStreamPath(STATE_FILE), sections.toArray(new byte[sections.size()][]));
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return;
+        }
+
+        // The state file and the log supersede anything an older version saved, but only once the log has the history.
+        final SharedPreferences oldState = getPreferences(MODE_PRIVATE);
+        if (history.isLogging() && oldState.contains("version")) {
+            oldState.edit().clear().commit();
+        }
     }
 
     private ListView transcriptView() {
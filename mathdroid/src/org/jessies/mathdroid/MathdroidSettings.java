@@ -44,5 +44,8 @@ public class MathdroidSettings extends PreferenceActivity implements SharedPrefe
 
     String outputBase = settings.getString("outputBase", "10");
     findPreference("outputBase").setSummary(outputBase);
+
+    ListPreference precision = (ListPreference) findPreference("precision");
+    precision.setSummary(precision.getEntry());
   }
 }
@@ -14,6 +14,9 @@ import org.jessies.calc.*;
 public class PlotView extends View {
     private static final String TAG = "PlotView";
     
+    // The colors of successive curves.
+    private static final int[] CURVE_COLORS = { Color.GREEN, Color.CYAN, Color.MAGENTA, Color.YELLOW, Color.RED };
+    
     private Calculator calculator;
     private CalculatorPlotData plotData;
     
@@ -35,8 +38,12 @@ public class PlotView extends View {
         int width = clipBounds.width();
         int height = clipBounds.height();
         
-        float xScale = 300/*width*/ / plotData.xRange;
+        float xScale = width / plotData.xRange;
         float yScale = height / plotData.yRange;
+        if (plotData.isParametric) {
+            // Circles should look like circles.
+            xScale = yScale = Math.min(xScale, yScale);
+        }
         
         //Log.i(TAG, "width="+width+" height="+height);
         //Log.i(TAG, "matrix="+cv.getMatrix()+" clip="+cv.getClipBounds());
@@ -64,19 +71,31 @@ public class PlotView extends View {
         // FIXME: ticks.
         // FIXME: axis labels.
         
-        // Curve.
-        p.setColor(Color.GREEN);
+        // Curves.
         p.setStrokeWidth(2.0f);
-        float screenX = 0.0f;
-        float screenY = (float) (height - (plotData.data[0] - plotData.yMin) * yScale);
-        for (int i = 1; i < plotData.data.length; ++i) {
-            float newScreenY = (float) (height - (plotData.data[i] - plotData.yMin) * yScale);
-            //System.err.println("drawLine("+screenX+", "+screenY+", "+(screenX + 1)+", "+newScreenY+")");
-            if (!Float.isNaN(screenY) && !Float.isNaN(newScreenY)) {
-                cv.drawLine(screenX, (float)(height - (plotData.data[i - 1] - plotData.yMin) * yScale), screenX + 1, newScreenY, p);
+        // The samples aren't evenly spaced, and a NaN means we shouldn't join its neighbors.
+        final int sampleCount = plotData.sampleCount();
+        final float[] lines = new float[4 * Math.max(sampleCount - 1, 0)];
+        for (int c = 0; c < plotData.curveCount(); ++c) {
+            final double[] xs = plotData.xColumns[c];
+            final double[] ys = plotData.yColumns[c];
+            int lineCount = 0;
+            float screenX = (float) ((xs[0] - plotData.xMin) * xScale);
+            float screenY = (float) (height - (ys[0] - plotData.yMin) * yScale);
+            for (int i = 1; i < sampleCount; ++i) {
+                float newScreenX = (float) ((xs[i] - plotData.xMin) * xScale);
+                float newScreenY = (float) (height - (ys[i] - plotData.yMin) * yScale);
+                if (!Float.isNaN(screenX) && !Float.isNaN(screenY) && !Float.isNaN(newScreenX) && !Float.isNaN(newScreenY)) {
+                    lines[lineCount++] = screenX;
+                    lines[lineCount++] = screenY;
+                    lines[lineCount++] = newScreenX;
+                    lines[lineCount++] = newScreenY;
+                }
+                screenX = newScreenX;
+                screenY = newScreenY;
             }
-            screenY = newScreenY;
-            ++screenX;
+            p.setColor(CURVE_COLORS[c % CURVE_COLORS.length]);
+            cv.drawLines(lines, 0, lineCount, p);
         }
         
         // Title.
@@ -0,0 +1,131 @@
+package org.jessies.mathdroid;
+
+import java.io.*;
+import java.nio.*;
+import java.util.zip.*;
+
+/**
+ * Reads and writes the file Mathdroid saves its state in.
+ *
+ * A state file is a header (a magic number, the version, and flags), followed by the sections: the number of
+ * sections, and then each section's length and bytes. All the ints are little-endian. If the COMPRESSED flag is
+ * set, everything after the header is deflated. We only compress when that saves space, because the raw doubles
+ * of a plot hardly shrink at all.
+ *
+ * We write to a temporary file and rename it, so a crash while saving leaves the old state intact.
+ */
+final class StateFile {
+    // "MDST" when read as bytes.
+    private static final int MAGIC = 0x5453444d;
+    private static final int VERSION = 1;
+
+    // Flags in the header.
+    private static final int COMPRESSED = 1;
+
+    private static final int HEADER_SIZE = 3 * 4;
+
+    private StateFile() {
+    }
+
+    /**
+     * Writes the given sections to the given file.
+     */
+    static void write(File file, byte[]... sections) throws IOException {
+        int length = 4;
+        for (byte[] section : sections) {
+            length += 4 + section.length;
+        }
+        final ByteBuffer body = ByteBuffer.allocate(length);
+        body.order(ByteOrder.LITTLE_ENDIAN);
+        body.putInt(sections.length);
+        for (byte[] section : sections) {
+            body.putInt(section.length);
+            body.put(section);
+        }
+
+        int flags = 0;
+        byte[] bytes = body.array();
+        final byte[] deflatedBytes = deflate(bytes);
+        if (deflatedBytes.length < bytes.length) {
+            bytes = deflatedBytes;
+            flags |= COMPRESSED;
+        }
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(flags);
+
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        final FileOutputStream out = new FileOutputStream(tmpFile);
+        try {
+            out.write(header.array());
+            out.write(bytes);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("couldn't rename " + tmpFile + " to " + file);
+        }
+    }
+
+    /**
+     * Returns the sections of the given file.
+     */
+    static byte[][] read(File file) throws IOException {
+        final byte[] bytes = readFully(new FileInputStream(file));
+        final ByteBuffer header = ByteBuffer.wrap(bytes, 0, HEADER_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        if (header.getInt() != MAGIC) {
+            throw new IOException(file + " isn't a Mathdroid state file");
+        }
+        final int version = header.getInt();
+        if (version != VERSION) {
+            throw new IOException(file + " has unknown version " + version);
+        }
+        final int flags = header.getInt();
+
+        InputStream in = new ByteArrayInputStream(bytes, HEADER_SIZE, bytes.length - HEADER_SIZE);
+        if ((flags & COMPRESSED) != 0) {
+            in = new InflaterInputStream(in);
+        }
+        final ByteBuffer body = ByteBuffer.wrap(readFully(in));
+        body.order(ByteOrder.LITTLE_ENDIAN);
+        final byte[][] sections = new byte[body.getInt()][];
+        for (int i = 0; i < sections.length; ++i) {
+            sections[i] = new byte[body.getInt()];
+            body.get(sections[i]);
+        }
+        return sections;
+    }
+
+    private static byte[] deflate(byte[] bytes) throws IOException {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream(bytes.length / 4);
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            final DeflaterOutputStream out = new DeflaterOutputStream(result, deflater);
+            out.write(bytes);
+            out.close();
+        } finally {
+            deflater.end();
+        }
+        return result.toByteArray();
+    }
+
+    // Reads everything from the stream, and closes it.
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            final ByteArrayOutputStream result = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int byteCount;
+            while ((byteCount = in.read(buffer)) != -1) {
+                result.write(buffer, 0, byteCount);
+            }
+            return result.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}